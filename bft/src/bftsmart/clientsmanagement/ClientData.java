@@ -16,13 +16,11 @@ limitations under the License.
 package bftsmart.clientsmanagement;
 
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.tom.core.messages.TOMMessage;
-import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,7 +32,7 @@ public class ClientData {
     ReentrantLock clientLock = new ReentrantLock();
 
     private int clientId;
-    //private PublicKey publicKey = null;
+    private PublicKey publicKey = null;
 
     private int session = -1;
 
@@ -44,29 +42,23 @@ public class ClientData {
     private int lastMessageDelivered = -1;
 
     private RequestList pendingRequests = new RequestList();
+    //pending requests that were not yet proposed, in arrival order
+    private ArrayDeque<TOMMessage> unproposedRequests = new ArrayDeque<>();
+    //true while this client is in the ClientsManager queue of clients with unproposed requests
+    boolean queued = false;
     //anb: new code to deal with client requests that arrive after their execution
     private RequestList orderedRequests = new RequestList(5);
 
-    private Signature signatureVerificator = null;
-    
     /**
-     * Class constructor. Just store the clientId and creates a signature
-     * verificator for a given client public key.
+     * Class constructor. Just store the clientId and the public key used to
+     * verify the signatures of its requests.
      *
      * @param clientId client unique id
      * @param publicKey client public key
      */
     public ClientData(int clientId, PublicKey publicKey) {
         this.clientId = clientId;
-        if(publicKey != null) {
-            try {
-                signatureVerificator = TOMUtil.getSigEngine();
-                signatureVerificator.initVerify(publicKey);
-                logger.debug("Signature verifier initialized for client "+clientId);
-            } catch (Exception ex) {
-                logger.error("Failed to create client data object",ex);
-            }
-        }
+        this.publicKey = publicKey;
     }
 
     public int getClientId() {
@@ -85,6 +77,68 @@ public class ClientData {
         return pendingRequests;
     }
 
+    /**
+     * Adds a new request to the pending requests of this client, making it
+     * available to be proposed. Must be called with the client lock held.
+     *
+     * @param request the request to be added
+     */
+    public void addPendingRequest(TOMMessage request) {
+        pendingRequests.add(request);
+        if (!request.alreadyProposed) {
+            unproposedRequests.addLast(request);
+        }
+    }
+
+    /**
+     * Removes all pending requests of this client (e.g., on a new session).
+     * Must be called with the client lock held.
+     */
+    public void clearPendingRequests() {
+        pendingRequests.clear();
+        unproposedRequests.clear();
+    }
+
+    /**
+     * Takes the oldest request of this client that was not yet proposed and
+     * marks it as proposed. Must be called with the client lock held.
+     *
+     * @return the request, or null if all pending requests were proposed
+     */
+    public TOMMessage pollUnproposedRequest() {
+        TOMMessage request = unproposedRequests.pollFirst();
+        if (request != null) {
+            request.alreadyProposed = true;
+        }
+        return request;
+    }
+
+    /**
+     * Makes a request previously taken by pollUnproposedRequest() available to
+     * be proposed again, ahead of the ones that were never proposed. Does
+     * nothing if the request is no longer pending. Must be called with the
+     * client lock held.
+     *
+     * @param request the request that was not ordered
+     * @return true if the request is available to be proposed again
+     */
+    public boolean returnUnproposedRequest(TOMMessage request) {
+        if (request.alreadyProposed && pendingRequests.contains(request)) {
+            request.alreadyProposed = false;
+            unproposedRequests.addFirst(request);
+            return true;
+        }
+        request.alreadyProposed = false;
+        return false;
+    }
+
+    /**
+     * @return the number of pending requests that were not yet proposed
+     */
+    public int countUnproposedRequests() {
+        return unproposedRequests.size();
+    }
+
     public RequestList getOrderedRequests() {
         return orderedRequests;
     }
@@ -113,20 +167,20 @@ public class ClientData {
         return lastMessageReceivedTime;
     }
 
-    public boolean verifySignature(byte[] message, byte[] signature) {
-        if(signatureVerificator != null) {
-            try {
-                return TOMUtil.verifySignature(signatureVerificator, message, signature);
-            } catch (SignatureException ex) {
-                logger.error("Failed to verify signature", ex);
-            }
-        }
-        return false;
+    public PublicKey getPublicKey() {
+        return publicKey;
     }
 
     public boolean removeOrderedRequest(TOMMessage request) {
-        if(pendingRequests.remove(request)) {
+        TOMMessage pending = pendingRequests.getBySequence(request.getSequence());
+        if(pending != null && pending.equals(request)) {
+            pendingRequests.remove(pending);
+            if (!pending.alreadyProposed) {
+                removeUnproposed(pending);
+            }
             //anb: new code to deal with client requests that arrive after their execution
+            //only the reply is needed, so the request does not keep the batch it was read from
+            request.setSerializedMessage(null, 0, 0);
             orderedRequests.addLast(request);
             return true;
         }
@@ -137,6 +191,8 @@ public class ClientData {
 	lastMessageDelivered = request.getSequence();
 	boolean result = pendingRequests.remove(request);
         //anb: new code to deal with client requests that arrive after their execution
+        //only the reply is needed, so the request does not keep the batch it was read from
+        request.setSerializedMessage(null, 0, 0);
         orderedRequests.addLast(request);
 
 	for(Iterator<TOMMessage> it = pendingRequests.iterator();it.hasNext();){
@@ -146,9 +202,27 @@ public class ClientData {
 		}
 	}
 
+	//keep only the unproposed requests that are still pending
+	for(Iterator<TOMMessage> it = unproposedRequests.iterator();it.hasNext();){
+		TOMMessage msg = it.next();
+		if(msg.getSequence()<=request.getSequence()){
+			it.remove();
+		}
+	}
+
     	return result;
     }
 
+    private void removeUnproposed(TOMMessage request) {
+        //the ordered request is usually the first one, so this is cheap
+        for (Iterator<TOMMessage> it = unproposedRequests.iterator(); it.hasNext();) {
+            if (it.next() == request) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
     public TOMMessage getReply(int reqSequence) {
         TOMMessage request = orderedRequests.getBySequence(reqSequence);
         if(request != null) {
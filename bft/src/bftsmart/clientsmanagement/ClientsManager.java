@@ -15,10 +15,10 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
@@ -26,14 +26,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.leaderchange.RequestsTimer;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.util.TOMUtil;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.Signature;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Enumeration;
-import java.util.List;
-import java.util.Random;
+import java.security.PublicKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,14 +40,20 @@ public class ClientsManager {
 
     private ServerViewController controller;
     private RequestsTimer timer;
-    private HashMap<Integer, ClientData> clientsData = new HashMap<Integer, ClientData>();
+    private ConcurrentHashMap<Integer, ClientData> clientsData = new ConcurrentHashMap<Integer, ClientData>();
+    //clients that have pending requests not yet proposed (each one at most once)
+    private ConcurrentLinkedQueue<ClientData> readyClients = new ConcurrentLinkedQueue<ClientData>();
+    //number of pending requests not yet proposed, over all clients
+    private AtomicInteger unproposedCount = new AtomicInteger(0);
     private RequestVerifier verifier;
     
     //Used when the intention is to perform benchmarking with signature verification, but
     //without having to make the clients create one first. Useful to optimize resources
     private byte[] benchMsg = null;
     private byte[] benchSig = null;
-    private HashMap<String,Signature> benchEngines = new HashMap<>();
+    private PublicKey benchKey = null;
+
+    private SignatureVerifier signatureVerifier;
     
     private ReentrantLock clientsLock = new ReentrantLock();
 
@@ -62,41 +61,38 @@ public class ClientsManager {
         this.controller = controller;
         this.timer = timer;
         this.verifier = verifier;
+        this.signatureVerifier = new SignatureVerifier(controller.getStaticConf().getUseSignatures() == 1
+                ? controller.getStaticConf().getSignatureCacheSize() : 0);
         
         if (controller.getStaticConf().getUseSignatures() == 2) {
             benchMsg = new byte []{3,5,6,7,4,3,5,6,4,7,4,1,7,7,5,4,3,1,4,85,7,5,7,3};
             benchSig = TOMUtil.signMessage(controller.getStaticConf().getPrivateKey(), benchMsg);            
+            benchKey = controller.getStaticConf().getPublicKey();
         }
     }
 
     /**
-     * We are assuming that no more than one thread will access
-     * the same clientData during creation.
-     *
+     * Returns the data of a client, creating it on its first request.
      *
      * @param clientId
      * @return the ClientData stored on the manager
      */
     public ClientData getClientData(int clientId) {
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
         ClientData clientData = clientsData.get(clientId);
 
         if (clientData == null) {
-            logger.debug("Creating new client data, client id=" + clientId);
-
-            //******* EDUARDO BEGIN **************//
-            clientData = new ClientData(clientId,
-                    (controller.getStaticConf().getUseSignatures() == 1)
-                    ? controller.getStaticConf().getPublicKey(clientId)
-                    : null);
-            //******* EDUARDO END **************//
-            clientsData.put(clientId, clientData);
+            clientData = clientsData.computeIfAbsent(clientId, id -> {
+                logger.debug("Creating new client data, client id=" + id);
+
+                //******* EDUARDO BEGIN **************//
+                return new ClientData(id,
+                        (controller.getStaticConf().getUseSignatures() == 1)
+                        ? controller.getStaticConf().getPublicKey(id)
+                        : null);
+                //******* EDUARDO END **************//
+            });
         }
 
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-
         return clientData;
     }
 
@@ -104,138 +100,72 @@ public class ClientsManager {
      * Get pending requests in a fair way (one request from each client
      * queue until the max number of requests is obtained).
      *
+     * Clients with requests not yet proposed are kept in a FIFO queue. Each
+     * client taken from the queue contributes its oldest unproposed request
+     * and goes back to the end of the queue if it still has others, so the
+     * rotation among clients carries over from one batch to the next and the
+     * cost of a batch is proportional to its size.
+     *
      * @return the set of all pending requests of this system
      */
     public RequestList getPendingRequests() {
         RequestList allReq = new RequestList();
-        
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/
-        
-        List<Entry<Integer, ClientData>> clientsEntryList = new ArrayList<>(clientsData.entrySet().size());
-        clientsEntryList.addAll(clientsData.entrySet());
-        
-        if (controller.getStaticConf().getFairBatch()) // ensure fairness
-            Collections.shuffle(clientsEntryList);
-
-        logger.debug("Number of active clients: {}", clientsEntryList.size());
-        
-        for (int i = 0; true; i++) {
-                        
-            Iterator<Entry<Integer, ClientData>> it = clientsEntryList.iterator();
-            int noMoreMessages = 0;
-            
-            logger.debug("Fetching requests with internal index {}", i);
-            
-            while (it.hasNext()
-                    && allReq.size() < controller.getStaticConf().getMaxBatchSize()
-                    && noMoreMessages < clientsEntryList.size()) {
+        int maxBatchSize = controller.getStaticConf().getMaxBatchSize();
 
-                ClientData clientData = it.next().getValue();
-                RequestList clientPendingRequests = clientData.getPendingRequests();
+        ClientData clientData;
+        while (allReq.size() < maxBatchSize && (clientData = readyClients.poll()) != null) {
 
-                clientData.clientLock.lock();
-
-                logger.debug("Number of pending requests for client {}: {}.", clientData.getClientId(), clientPendingRequests.size());
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            TOMMessage request = clientData.pollUnproposedRequest();
 
-                /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
-                TOMMessage request = (clientPendingRequests.size() > i) ? clientPendingRequests.get(i) : null;
+            if (clientData.countUnproposedRequests() > 0) {
+                readyClients.offer(clientData);
+            } else {
+                clientData.queued = false;
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
 
-                /******* END CLIENTDATA CRITICAL SECTION ******/
-                clientData.clientLock.unlock();
+            if (request != null) {
+                unproposedCount.decrementAndGet();
 
-                if (request != null) {
-                    if(!request.alreadyProposed) {
-                        
-                        logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
-                        
-                        //this client have pending message
-                        request.alreadyProposed = true;
-                        allReq.addLast(request);
-                    }
-                } else {
-                    //this client don't have more pending requests
-                    noMoreMessages++;
-                }
-            }
-            
-            if(allReq.size() == controller.getStaticConf().getMaxBatchSize() ||
-                    noMoreMessages == clientsEntryList.size()) {
-                
-                break;
+                logger.debug("Selected request with sequence number {} from client {}", request.getSequence(), request.getSender());
+                allReq.addLast(request);
             }
         }
-        
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
+
         return allReq;
     }
 
     /**
-     * We've implemented some protection for individual client
-     * data, but the clients table can change during the operation.
+     * Verifies if there are requests waiting to be proposed.
      *
      * @return true if there are some pending requests and false otherwise
      */
     public boolean havePendingRequests() {
-        boolean havePending = false;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
-
-        while (it.hasNext() && !havePending) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        havePending = true;
-                        break;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
-        }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return havePending;
+        return unproposedCount.get() > 0;
     }
     
     /**
-     * Retrieves the number of pending requests
+     * Retrieves the number of pending requests that were not yet proposed
      * @return Number of pending requests
      */
     public int countPendingRequests() {
-        int count = 0;
-
-        clientsLock.lock();
-        /******* BEGIN CLIENTS CRITICAL SECTION ******/        
-        
-        Iterator<Entry<Integer, ClientData>> it = clientsData.entrySet().iterator();
+        return unproposedCount.get();
+    }
 
-        while (it.hasNext()) {
-            ClientData clientData = it.next().getValue();
-            
-            clientData.clientLock.lock();
-            RequestList reqs = clientData.getPendingRequests();
-            if (!reqs.isEmpty()) {
-                for(TOMMessage msg:reqs) {
-                    if(!msg.alreadyProposed) {
-                        count++;
-                    }
-                }
-            }
-            clientData.clientLock.unlock();
+    /**
+     * Puts a client in the queue of clients with unproposed requests, if it
+     * has some and is not there yet. Must be called with the client lock held.
+     *
+     * @param clientData the client to be queued
+     */
+    private void enqueueIfReady(ClientData clientData) {
+        if (!clientData.queued && clientData.countUnproposedRequests() > 0) {
+            clientData.queued = true;
+            readyClients.offer(clientData);
         }
-
-        /******* END CLIENTS CRITICAL SECTION ******/
-        clientsLock.unlock();
-        return count;
     }
 
     /**
@@ -267,6 +197,25 @@ public class ClientsManager {
         return pendingMessage;
     }
 
+    /**
+     * Verifies the signature of a request received in a batch, before
+     * requestReceived() and without holding the lock of its client, so the
+     * requests of a batch can be verified in parallel. A request whose
+     * signature was verified when it arrived from the client is not verified
+     * again.
+     *
+     * @param request the request
+     * @return true if the request is not signed or its signature is valid
+     */
+    public boolean verifySignature(TOMMessage request) {
+        if (!request.signed || request.signatureVerified) {
+            return true;
+        }
+        ClientData clientData = getClientData(request.getSender());
+        request.signatureVerified = signatureVerifier.verify(request, clientData.getPublicKey());
+        return request.signatureVerified;
+    }
+
     public boolean requestReceived(TOMMessage request, boolean fromClient) {
         return requestReceived(request, fromClient, null);
     }
@@ -333,7 +282,8 @@ public class ClientsManager {
             clientData.setLastMessageReceived(-1);
             clientData.setLastMessageDelivered(-1);
             clientData.getOrderedRequests().clear();
-            clientData.getPendingRequests().clear();
+            unproposedCount.addAndGet(-clientData.countUnproposedRequests());
+            clientData.clearPendingRequests();
         }
 
         if ((clientData.getLastMessageReceived() == -1) || //first message received or new session (see above)
@@ -345,26 +295,11 @@ public class ClientsManager {
             //and not an erroneous requests sent by a Byzantine leader.
             boolean isValid = (!controller.getStaticConf().isBFT() || verifier.isValidRequest(request));
 
-            Signature engine = benchEngines.get(Thread.currentThread().getName());
-            
-            if (engine == null) {
-                
-                try {
-                    engine = TOMUtil.getSigEngine();
-                    engine.initVerify(controller.getStaticConf().getPublicKey());
-                    
-                    benchEngines.put(Thread.currentThread().getName(), engine);
-                } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
-                    logger.error("Signature error.",ex);
-                    engine = null;
-                }
-            }
-            
             //it is a valid new message and I have to verify it's signature
+            //(unless it was already verified by verifySignature)
             if (isValid &&
-                    ((engine != null && benchMsg != null && benchSig != null && TOMUtil.verifySigForBenchmark(engine, benchMsg, benchSig)) || !request.signed ||
-                    clientData.verifySignature(request.serializedMessage,
-                            request.serializedMessageSignature))) {
+                    ((benchMsg != null && benchSig != null && signatureVerifier.verify(benchKey, benchMsg, benchSig)) || !request.signed ||
+                    request.signatureVerified || signatureVerifier.verify(request, clientData.getPublicKey()))) {
                 
                 logger.debug("Message from client {} is valid", clientData.getClientId());
 
@@ -372,7 +307,11 @@ public class ClientsManager {
                 //insert it in the pending requests of this client
 
                 request.recvFromClient = fromClient;
-                clientData.getPendingRequests().add(request); 
+                clientData.addPendingRequest(request);
+                if (!request.alreadyProposed) {
+                    unproposedCount.incrementAndGet();
+                    enqueueIfReady(clientData);
+                }
                 clientData.setLastMessageReceived(request.getSequence());
                 clientData.setLastMessageReceivedTime(request.receptionTime);
 
@@ -430,13 +369,11 @@ public class ClientsManager {
      * @param requests the array of requests to account as ordered
      */
     public void requestsOrdered(TOMMessage[] requests) {
-        clientsLock.lock();
         logger.debug("Updating client manager");
         for (TOMMessage request : requests) {
             requestOrdered(request);
         }
         logger.debug("Finished updating client manager");
-        clientsLock.unlock();
     }
 
     /**
@@ -450,20 +387,53 @@ public class ClientsManager {
         if (timer != null) {
             timer.unwatch(request);
         }
+        signatureVerifier.forget(request);
 
         ClientData clientData = getClientData(request.getSender());
 
         clientData.clientLock.lock();
         /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+        int unproposed = clientData.countUnproposedRequests();
         if (!clientData.removeOrderedRequest(request)) {
             logger.debug("Request " + request + " does not exist in pending requests");
         }
+        unproposedCount.addAndGet(clientData.countUnproposedRequests() - unproposed);
         clientData.setLastMessageDelivered(request.getSequence());
 
         /******* END CLIENTDATA CRITICAL SECTION ******/
         clientData.clientLock.unlock();
     }
 
+    /**
+     * Notifies the ClientsManager that these requests, previously fetched by
+     * getPendingRequests(), were not ordered and can be proposed again (e.g.,
+     * the consensus instance carrying them was abandoned during a leader change).
+     * 
+     * @param requests the requests to make available for a new batch
+     */
+    public void requestsNotProposed(RequestList requests) {
+        //in reverse order, so that each client gets its requests back in sequence order
+        for (Iterator<TOMMessage> it = requests.descendingIterator(); it.hasNext();) {
+            TOMMessage request = it.next();
+            ClientData clientData = getClientData(request.getSender());
+
+            clientData.clientLock.lock();
+            /******* BEGIN CLIENTDATA CRITICAL SECTION ******/
+            if (clientData.returnUnproposedRequest(request)) {
+                unproposedCount.incrementAndGet();
+                enqueueIfReady(clientData);
+            }
+            /******* END CLIENTDATA CRITICAL SECTION ******/
+            clientData.clientLock.unlock();
+        }
+    }
+
+    /**
+     * The clients table is now a concurrent map and is no longer protected
+     * by this lock, which is kept for code that still synchronizes on it.
+     *
+     * @return the clients lock
+     */
     public ReentrantLock getClientsLock() {
         return clientsLock;
     }
@@ -471,6 +441,9 @@ public class ClientsManager {
     public void clear() {
         clientsLock.lock();
         clientsData.clear();
+        readyClients.clear();
+        unproposedCount.set(0);
+        signatureVerifier.clear();
         clientsLock.unlock();
         logger.info("ClientsManager cleared.");
 
@@ -15,23 +15,52 @@ limitations under the License.
 */
 package bftsmart.clientsmanagement;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractSequentialList;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
 import bftsmart.tom.core.messages.TOMMessage;
 
 /**
- * Extended LinkedList used to store pending requests issued by a client.
+ * List used to store pending requests issued by a client.
+ *
+ * Besides keeping the requests in insertion order (as a doubly linked list),
+ * the list indexes them by id and by sequence number, so lookups and removals
+ * of a request do not need to scan the list. Lookups by serialized message
+ * use a third index, built the first time one of them is made, which assumes
+ * that the serialized message of a request does not change while the request
+ * is in the list.
+ *
+ * When several requests have the same key (e.g., the same sequence number
+ * from different clients), the index points to the first of them in the list,
+ * as a scan would, and the requests with that key are chained in list order,
+ * so that removing any of them does not need to scan the list either.
  *
  * @author alysson
  */
-public class RequestList extends LinkedList<TOMMessage> {
+public class RequestList extends AbstractSequentialList<TOMMessage> implements Serializable {
 	
 	private static final long serialVersionUID = -3639222602426147629L;
 	
 	private int maxSize = Integer.MAX_VALUE;
 
+    private transient Node first;
+    private transient Node last;
+    private transient int size = 0;
+
+    private transient Index<Integer> byId = new Index<>(ID);
+    private transient Index<Integer> bySequence = new Index<>(SEQUENCE);
+    private transient Index<Content> byContent = null; // built on demand
+
     public RequestList() {
     }
 
@@ -40,83 +69,457 @@ public class RequestList extends LinkedList<TOMMessage> {
         this.maxSize = maxSize;
     }
 
+    /* list operations */
+
     @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean add(TOMMessage msg) {
+        link(msg, null);
+        return true;
+    }
+
+    /**
+     * Appends a request to the end of the list, evicting the first one if the
+     * list becomes larger than its maximum size.
+     *
+     * @param msg the request
+     */
     public void addLast(TOMMessage msg) {
-        super.addLast(msg);
+        link(msg, null);
         if(size() > maxSize) {
-            super.removeFirst();
+            removeFirst();
         }
     }
 
-    public TOMMessage remove(byte[] serializedMessage) {
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(Arrays.equals(serializedMessage,msg.serializedMessage)) {
-                li.remove();
-                return msg;
-            }
+    public void addFirst(TOMMessage msg) {
+        link(msg, first);
+    }
+
+    public TOMMessage getFirst() {
+        if (first == null) throw new NoSuchElementException();
+        return first.msg;
+    }
+
+    public TOMMessage getLast() {
+        if (last == null) throw new NoSuchElementException();
+        return last.msg;
+    }
+
+    public TOMMessage removeFirst() {
+        if (first == null) throw new NoSuchElementException();
+        return unlink(first);
+    }
+
+    public TOMMessage removeLast() {
+        if (last == null) throw new NoSuchElementException();
+        return unlink(last);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return find(o) != null;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Node node = find(o);
+        if (node == null) {
+            return false;
         }
-        return null;
+        unlink(node);
+        return true;
     }
 
-    public TOMMessage removeById(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                li.remove();
-                return msg;
+    @Override
+    public void clear() {
+        first = last = null;
+        size = 0;
+        byId.clear();
+        bySequence.clear();
+        byContent = null;
+        modCount++;
+    }
+
+    @Override
+    public ListIterator<TOMMessage> listIterator(int index) {
+        if (index < 0 || index > size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return new Itr(index);
+    }
+
+    public Iterator<TOMMessage> descendingIterator() {
+        final ListIterator<TOMMessage> it = new Itr(size);
+        return new Iterator<TOMMessage>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasPrevious();
             }
-        }
-        return null;
+
+            @Override
+            public TOMMessage next() {
+                return it.previous();
+            }
+
+            @Override
+            public void remove() {
+                it.remove();
+            }
+        };
+    }
+
+    /* lookups by key */
+
+    public TOMMessage remove(byte[] serializedMessage) {
+        Node node = contentIndex().first(new Content(serializedMessage));
+        return node != null ? unlink(node) : null;
+    }
+
+    public TOMMessage removeById(int id){
+        Node node = byId.first(id);
+        return node != null ? unlink(node) : null;
     }
 
      // I think this method can be removed in future versions of JBP
     public int[] getIds(){
         int ids[] = new int[size()];
-        for(int i = 0; i < ids.length; i++){
-            ids[i] = get(i).getId();
+        int i = 0;
+        for (Node node = first; node != null; node = node.next) {
+            ids[i++] = node.msg.getId();
         }
 
         return ids;
     }
 
     public TOMMessage get(byte[] serializedMessage){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(Arrays.equals(serializedMessage,msg.serializedMessage)) {
-                return msg;
+        Node node = contentIndex().first(new Content(serializedMessage));
+        return node != null ? node.msg : null;
+    }
+
+    public TOMMessage getById(int id){
+        Node node = byId.first(id);
+        return node != null ? node.msg : null;
+    }
+    
+    public TOMMessage getBySequence(int sequence){
+        Node node = bySequence.first(sequence);
+        return node != null ? node.msg : null;
+    }
+
+    public boolean contains(int id){
+        return byId.first(id) != null;
+    }
+
+    /* linked list and index maintenance */
+
+    private static final int ID = 0;
+    private static final int SEQUENCE = 1;
+    private static final int CONTENT = 2;
+
+    private static final class Node {
+        final TOMMessage msg;
+        Content content; // null until the content index is built
+        Node prev;
+        Node next;
+        // next and previous node with the same key, for each index (the
+        // previous node of the first one with a key is the last one)
+        final Node[] nextWith = new Node[3];
+        final Node[] prevWith = new Node[3];
+
+        Node(TOMMessage msg) {
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * Index from a key of the requests to the first node with that key, the
+     * nodes with the same key being chained in list order.
+     */
+    private static final class Index<K> {
+        private final int slot;
+        private final Map<K, Node> heads = new HashMap<>();
+
+        Index(int slot) {
+            this.slot = slot;
+        }
+
+        Node first(K key) {
+            return heads.get(key);
+        }
+
+        // adds a node that is now the last one in the list
+        void append(K key, Node node) {
+            Node head = heads.putIfAbsent(key, node);
+            insertAfter(key, head, head == null ? null : head.prevWith[slot], node);
+        }
+
+        // adds a node anywhere in the list
+        void add(K key, Node node) {
+            Node head = heads.putIfAbsent(key, node);
+            Node pred = null;
+            if (head != null) {
+                // the node with the same key that comes before this one, if any
+                for (Node n = node.prev; n != null; n = n.prev) {
+                    if (key.equals(keyOf(n))) {
+                        pred = n;
+                        break;
+                    }
+                }
             }
+            insertAfter(key, head, pred, node);
+        }
+
+        void remove(K key, Node node) {
+            Node head = heads.get(key);
+            Node succ = node.nextWith[slot];
+            if (node == head) {
+                if (succ == null) {
+                    heads.remove(key);
+                } else {
+                    succ.prevWith[slot] = node.prevWith[slot];
+                    heads.put(key, succ);
+                }
+            } else {
+                Node pred = node.prevWith[slot];
+                pred.nextWith[slot] = succ;
+                if (succ != null) succ.prevWith[slot] = pred; else head.prevWith[slot] = pred;
+            }
+            node.nextWith[slot] = node.prevWith[slot] = null;
+        }
+
+        void clear() {
+            heads.clear();
+        }
+
+        // links node after pred in the chain of key (as the first one if pred is null)
+        private void insertAfter(K key, Node head, Node pred, Node node) {
+            if (head == null) {
+                node.prevWith[slot] = node;
+            } else if (pred == null) {
+                node.nextWith[slot] = head;
+                node.prevWith[slot] = head.prevWith[slot];
+                head.prevWith[slot] = node;
+                heads.put(key, node);
+            } else {
+                Node succ = pred.nextWith[slot];
+                node.nextWith[slot] = succ;
+                node.prevWith[slot] = pred;
+                if (succ != null) succ.prevWith[slot] = node; else head.prevWith[slot] = node;
+                pred.nextWith[slot] = node;
+            }
+        }
+
+        private Object keyOf(Node node) {
+            if (slot == ID) return node.msg.getId();
+            if (slot == SEQUENCE) return node.msg.getSequence();
+            return node.content;
         }
-        return null;
     }
 
+    /**
+     * Serialized message of a request, with its hash code computed once.
+     */
+    private static final class Content {
+        final byte[] bytes;
+        final int hash;
 
-    public TOMMessage getById(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                return msg;
+        Content(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Content && hash == ((Content) o).hash && Arrays.equals(bytes, ((Content) o).bytes);
+        }
+    }
+
+    // inserts msg before succ (at the end if succ is null)
+    private void link(TOMMessage msg, Node succ) {
+        Node node = new Node(msg);
+        if (byContent != null) node.content = new Content(msg.getSerializedMessage());
+
+        Node pred = (succ == null) ? last : succ.prev;
+        node.prev = pred;
+        node.next = succ;
+        if (pred == null) first = node; else pred.next = node;
+        if (succ == null) last = node; else succ.prev = node;
+        size++;
+        modCount++;
+
+        if (succ == null) {
+            byId.append(msg.getId(), node);
+            bySequence.append(msg.getSequence(), node);
+            if (byContent != null) byContent.append(node.content, node);
+        } else {
+            byId.add(msg.getId(), node);
+            bySequence.add(msg.getSequence(), node);
+            if (byContent != null) byContent.add(node.content, node);
+        }
+    }
+
+    private TOMMessage unlink(Node node) {
+        Node pred = node.prev;
+        Node succ = node.next;
+        if (pred == null) first = succ; else pred.next = succ;
+        if (succ == null) last = pred; else succ.prev = pred;
+        node.prev = node.next = null;
+        size--;
+        modCount++;
+
+        byId.remove(node.msg.getId(), node);
+        bySequence.remove(node.msg.getSequence(), node);
+        if (byContent != null) byContent.remove(node.content, node);
+
+        return node.msg;
+    }
+
+    private Index<Content> contentIndex() {
+        if (byContent == null) {
+            byContent = new Index<>(CONTENT);
+            for (Node node = first; node != null; node = node.next) {
+                node.content = new Content(node.msg.getSerializedMessage());
+                byContent.append(node.content, node);
             }
         }
-        return null;
+        return byContent;
     }
-    
-    public TOMMessage getBySequence(int sequence){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getSequence() == sequence) {
-                return msg;
+
+    // finds the node of a request equal to o, using the sequence number index when possible
+    private Node find(Object o) {
+        if (!(o instanceof TOMMessage)) {
+            return null;
+        }
+        TOMMessage msg = (TOMMessage) o;
+        for (Node node = bySequence.first(msg.getSequence()); node != null; node = node.nextWith[SEQUENCE]) {
+            if (msg.equals(node.msg)) {
+                return node;
             }
         }
         return null;
     }
-    public boolean contains(int id){
-        for(ListIterator<TOMMessage> li = listIterator(); li.hasNext(); ) {
-            TOMMessage msg = li.next();
-            if(msg.getId() == id) {
-                return true;
+
+    private class Itr implements ListIterator<TOMMessage> {
+        private Node next;
+        private Node lastReturned;
+        private int nextIndex;
+        private int expectedModCount = modCount;
+
+        Itr(int index) {
+            if (index == size) {
+                next = null;
+            } else if (index < (size >> 1)) {
+                next = first;
+                for (int i = 0; i < index; i++) next = next.next;
+            } else {
+                next = last;
+                for (int i = size - 1; i > index; i--) next = next.prev;
             }
+            nextIndex = index;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextIndex < size;
+        }
+
+        @Override
+        public TOMMessage next() {
+            checkForComodification();
+            if (!hasNext()) throw new NoSuchElementException();
+            lastReturned = next;
+            next = next.next;
+            nextIndex++;
+            return lastReturned.msg;
+        }
+
+        @Override
+        public boolean hasPrevious() {
+            return nextIndex > 0;
+        }
+
+        @Override
+        public TOMMessage previous() {
+            checkForComodification();
+            if (!hasPrevious()) throw new NoSuchElementException();
+            next = (next == null) ? last : next.prev;
+            lastReturned = next;
+            nextIndex--;
+            return lastReturned.msg;
+        }
+
+        @Override
+        public int nextIndex() {
+            return nextIndex;
+        }
+
+        @Override
+        public int previousIndex() {
+            return nextIndex - 1;
+        }
+
+        @Override
+        public void remove() {
+            checkForComodification();
+            if (lastReturned == null) throw new IllegalStateException();
+            Node lastNext = lastReturned.next;
+            unlink(lastReturned);
+            if (next == lastReturned) next = lastNext; else nextIndex--;
+            lastReturned = null;
+            expectedModCount = modCount;
+        }
+
+        @Override
+        public void set(TOMMessage msg) {
+            checkForComodification();
+            if (lastReturned == null) throw new IllegalStateException();
+            Node succ = lastReturned.next;
+            boolean wasNext = (next == lastReturned);
+            unlink(lastReturned);
+            link(msg, succ);
+            lastReturned = (succ == null) ? last : succ.prev;
+            if (wasNext) next = lastReturned;
+            expectedModCount = modCount;
+        }
+
+        @Override
+        public void add(TOMMessage msg) {
+            checkForComodification();
+            lastReturned = null;
+            link(msg, next);
+            nextIndex++;
+            expectedModCount = modCount;
+        }
+
+        private void checkForComodification() {
+            if (modCount != expectedModCount) throw new ConcurrentModificationException();
+        }
+    }
+
+    /* serialization (the indexes are rebuilt when reading) */
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (Node node = first; node != null; node = node.next) {
+            out.writeObject(node.msg);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        byId = new Index<>(ID);
+        bySequence = new Index<>(SEQUENCE);
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            link((TOMMessage) in.readObject(), null);
         }
-        return false;
     }
 }
@@ -0,0 +1,169 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.clientsmanagement;
+
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.HashService;
+import bftsmart.tom.util.TOMUtil;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies the signatures of client requests. Each thread has its own
+ * signature engine, so requests can be verified in parallel and without
+ * holding the lock of their client.
+ *
+ * The requests verified are remembered by (client, sequence, digest of the
+ * request), so that a request verified when it arrives from the client is
+ * not verified again when it is proposed, as long as the leader proposes the
+ * same request. The oldest entries are dropped when the cache is full.
+ */
+public class SignatureVerifier {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final ThreadLocal<Engine> engines = new ThreadLocal<>();
+
+    private final int capacity;
+    private final Map<Long, byte[]> verified;
+
+    /**
+     * Creates a verifier.
+     *
+     * @param capacity number of verified requests to remember (0 to remember none)
+     */
+    public SignatureVerifier(int capacity) {
+        this.capacity = capacity;
+        this.verified = Collections.synchronizedMap(new LinkedHashMap<Long, byte[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > SignatureVerifier.this.capacity;
+            }
+        });
+    }
+
+    /**
+     * Verifies the signature of a request, unless the same request was
+     * already verified.
+     *
+     * @param request the request, with its serialized message and signature
+     * @param key public key of the client
+     * @return true if the signature is valid
+     */
+    public boolean verify(TOMMessage request, PublicKey key) {
+        byte[] message = request.getSerializedMessage();
+        byte[] signature = request.serializedMessageSignature;
+        if (key == null || message == null || signature == null) {
+            return false;
+        }
+        if (capacity <= 0) {
+            return verify(key, message, signature);
+        }
+
+        Long entry = key(request);
+        byte[] digest = HashService.hash(message);
+        byte[] known = verified.get(entry);
+        if (known != null && MessageDigest.isEqual(known, digest)) {
+            logger.debug("Signature of request {} from client {} already verified", request.getSequence(), request.getSender());
+            return true;
+        }
+        if (!verify(key, message, signature)) {
+            return false;
+        }
+        verified.put(entry, digest);
+        return true;
+    }
+
+    /**
+     * Verifies a signature with the engine of the calling thread.
+     *
+     * @param key public key of the signer
+     * @param message signed message
+     * @param signature signature of the message
+     * @return true if the signature is valid
+     */
+    public boolean verify(PublicKey key, byte[] message, byte[] signature) {
+        try {
+            return TOMUtil.verifySignature(engine(key), message, signature);
+        } catch (NoSuchAlgorithmException | InvalidKeyException | SignatureException ex) {
+            logger.error("Failed to verify signature", ex);
+            Engine engine = engines.get();
+            if (engine != null) {
+                engine.key = null;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Forgets a request, e.g. because it was ordered and will not be proposed
+     * again.
+     *
+     * @param request the request
+     */
+    public void forget(TOMMessage request) {
+        if (capacity > 0) {
+            verified.remove(key(request));
+        }
+    }
+
+    /**
+     * Forgets all the requests.
+     */
+    public void clear() {
+        verified.clear();
+    }
+
+    private Signature engine(PublicKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Engine engine = engines.get();
+        if (engine == null) {
+            engine = new Engine(TOMUtil.getSigEngine());
+            engines.set(engine);
+        }
+        //a verification leaves the engine ready for another with the same key
+        if (engine.key != key) {
+            engine.key = null;
+            engine.signature.initVerify(key);
+            engine.key = key;
+        }
+        return engine.signature;
+    }
+
+    private static Long key(TOMMessage request) {
+        return ((long) request.getSender() << 32) | (request.getSequence() & 0xFFFFFFFFL);
+    }
+
+    private static class Engine {
+
+        private final Signature signature;
+        private PublicKey key;
+
+        private Engine(Signature signature) {
+            this.signature = signature;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import org.slf4j.LoggerFactory;
 
 import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.roles.Acceptor;
+import bftsmart.consensus.roles.AcceptorWorkers;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.ForwardedMessage;
@@ -48,6 +49,14 @@ public class MessageHandler {
 		this.tomLayer = tomLayer;
 	}
 
+	/**
+	 * @return the threads processing consensus messages, or null if they are
+	 *         processed by the communication thread
+	 */
+	public AcceptorWorkers getAcceptorWorkers() {
+		return acceptor == null ? null : acceptor.getWorkers();
+	}
+
 	@SuppressWarnings("unchecked")
 	protected void processData(SystemMessage sm) {
 		if (sm instanceof ConsensusMessage) {
@@ -57,13 +66,17 @@ public class MessageHandler {
 			ConsensusMessage consMsg = (ConsensusMessage) sm;
 
 			if (consMsg.authenticated || consMsg.getSender() == myId)
-				acceptor.deliver(consMsg);
+				acceptor.route(consMsg);
 			else {
 				logger.warn("Discarding unauthenticated message from " + sm.getSender());
 			}
 
 		} else {
 			if (sm.authenticated) {
+				// process it after the consensus messages received before it
+				if (!(sm instanceof ForwardedMessage))
+					acceptor.awaitIdle();
+
 				/*** This is Joao's code, related to leader change */
 				if (sm instanceof LCMessage) {
 					LCMessage lcMsg = (LCMessage) sm;
@@ -107,8 +107,11 @@ public class ServerCommunicationSystem extends Thread {
         long count = 0;
         while (doWork) {
             try {
-                if (count % 1000 == 0 && count > 0) {
+                if (count % 1000 == 0 && count > 0 && logger.isDebugEnabled()) {
                     logger.debug("After " + count + " messages, inQueue size=" + inQueue.size());
+                    if (messageHandler.getAcceptorWorkers() != null) {
+                        logger.debug("Acceptor workers: " + messageHandler.getAcceptorWorkers());
+                    }
                 }
 
                 SystemMessage sm = inQueue.poll(MESSAGE_WAIT_TIME, TimeUnit.MILLISECONDS);
@@ -146,6 +149,14 @@ public class ServerCommunicationSystem extends Thread {
         }
     }
 
+    /**
+     * @return number of messages received from the other replicas that wait
+     * to be processed
+     */
+    public int getInQueueSize() {
+        return inQueue.size();
+    }
+
     public ServersCommunicationLayer getServersConn() {
         return serversConn;
     }
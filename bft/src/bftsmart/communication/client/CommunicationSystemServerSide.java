@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.communication.client;
 
 import bftsmart.tom.core.messages.TOMMessage;
+import java.util.List;
 
 /**
  * Methods that should be implemented by the server side of the client-server communication system
@@ -24,6 +25,10 @@ import bftsmart.tom.core.messages.TOMMessage;
  */
 public interface CommunicationSystemServerSide {   
    public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders);
+   /**
+    * Sends several messages to a single client, flushing its connection once
+    */
+   public void send(int target, List<TOMMessage> sms, boolean serializeClassHeaders);
    public int[] getClients();
    public void setRequestReceiver(RequestReceiver requestReceiver);
    public void shutdown();
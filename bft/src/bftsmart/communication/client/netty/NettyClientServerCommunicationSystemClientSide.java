@@ -61,6 +61,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 import io.netty.util.concurrent.GenericFutureListener;
 
 /**
@@ -396,6 +397,8 @@ public class NettyClientServerCommunicationSystemClientSide extends SimpleChanne
 		ChannelInitializer channelInitializer = new ChannelInitializer<SocketChannel>() {
 			@Override
 			public void initChannel(SocketChannel ch) throws Exception {
+				// several writeAndFlush queued on the event loop result in a single flush
+				ch.pipeline().addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
 				ch.pipeline().addLast(nettyClientPipelineFactory.getDecoder());
 				ch.pipeline().addLast(nettyClientPipelineFactory.getEncoder());
 				ch.pipeline().addLast(nettyClientPipelineFactory.getHandler());
@@ -27,6 +27,7 @@ import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.flush.FlushConsolidationHandler;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
@@ -38,6 +39,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.ArrayList;
@@ -114,6 +116,8 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 					.childHandler(new ChannelInitializer<SocketChannel>() {
 						@Override
 						public void initChannel(SocketChannel ch) throws Exception {
+							// several writeAndFlush queued on the event loop result in a single flush
+							ch.pipeline().addLast(new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true));
 							ch.pipeline().addLast(serverPipelineFactory.getDecoder());
 							ch.pipeline().addLast(serverPipelineFactory.getEncoder());
 							ch.pipeline().addLast(serverPipelineFactory.getHandler());
@@ -299,28 +303,7 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 	@Override
 	public void send(int[] targets, TOMMessage sm, boolean serializeClassHeaders) {
 
-		// serialize message
-		DataOutputStream dos = null;
-
-		byte[] data = null;
-		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			dos = new DataOutputStream(baos);
-			sm.wExternal(dos);
-			dos.flush();
-			data = baos.toByteArray();
-			sm.serializedMessage = data;
-		} catch (IOException ex) {
-			logger.error("Failed to serialize message.", ex);
-		}
-
-		// replies are not signed in the current JBP version
-		sm.signed = false;
-		// produce signature if necessary (never in the current version)
-		if (sm.signed) {
-			byte[] signature = TOMUtil.signMessage(privKey, data);
-			sm.serializedMessageSignature = signature;
-		}
+		serialize(sm);
 
 		for (int target : targets) {
 			try {
@@ -347,6 +330,59 @@ public class NettyClientServerCommunicationSystemServerSide extends SimpleChanne
 		}
 	}
 
+	@Override
+	public void send(int target, List<TOMMessage> sms, boolean serializeClassHeaders) {
+
+		rl.readLock().lock();
+		NettyClientServerSession session = sessionReplicaToClient.get(target);
+		rl.readLock().unlock();
+
+		if (session == null) {
+			logger.debug("Client not into sessionReplicaToClient({}), dropping {} messages.", target, sms.size());
+			return;
+		}
+
+		Channel channel = session.getChannel();
+		for (TOMMessage sm : sms) {
+			serialize(sm);
+			try {
+				sm = (TOMMessage) sm.clone();
+			} catch (CloneNotSupportedException ex) {
+				logger.error("Failed to clone TOMMessage", ex);
+				continue;
+			}
+			sm.destination = target;
+			channel.write(sm);
+		}
+		channel.flush();
+	}
+
+	private void serialize(TOMMessage sm) {
+
+		// serialize message
+		DataOutputStream dos = null;
+
+		byte[] data = null;
+		try {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			dos = new DataOutputStream(baos);
+			sm.wExternal(dos);
+			dos.flush();
+			data = baos.toByteArray();
+			sm.serializedMessage = data;
+		} catch (IOException ex) {
+			logger.error("Failed to serialize message.", ex);
+		}
+
+		// replies are not signed in the current JBP version
+		sm.signed = false;
+		// produce signature if necessary (never in the current version)
+		if (sm.signed) {
+			byte[] signature = TOMUtil.signMessage(privKey, data);
+			sm.serializedMessageSignature = signature;
+		}
+	}
+
 	@Override
 	public int[] getClients() {
 
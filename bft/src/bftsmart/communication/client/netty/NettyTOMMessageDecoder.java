@@ -15,8 +15,7 @@ limitations under the License.
 */
 package bftsmart.communication.client.netty;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -29,6 +28,7 @@ import bftsmart.tom.core.messages.TOMMessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.CorruptedFrameException;
 
 /**
  *
@@ -48,6 +48,7 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
     private ViewController controller;
     private boolean firstTime;
     private ReentrantReadWriteLock rl;
+    private int registeredSender = -1; // client whose session points to this channel
     
     
     public NettyTOMMessageDecoder(boolean isClient, 
@@ -82,6 +83,9 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         }
 
         int dataLength = buffer.getInt(buffer.readerIndex());
+        if (dataLength < 2 * Integer.BYTES) {
+            throw new CorruptedFrameException("Invalid frame length " + dataLength);
+        }
 
         //Logger.println("Receiving message with "+dataLength+" bytes.");
 
@@ -94,57 +98,76 @@ public class NettyTOMMessageDecoder extends ByteToMessageDecoder {
         buffer.skipBytes(Integer.BYTES);
 
         int size = buffer.readInt();
-        byte[] data = new byte[size];
-        buffer.readBytes(data);
+        if (size < 0 || size > dataLength - 2 * Integer.BYTES) {
+            throw new CorruptedFrameException("Invalid message size " + size + " in a frame of " + dataLength + " bytes");
+        }
+        int dataIndex = buffer.readerIndex();
+        buffer.skipBytes(size);
 
         byte[] signature = null;
-        size = buffer.readInt();            
-            
-        if (size > 0) {
-            signature = new byte[size];
+        int sigSize = buffer.readInt();
+        if (sigSize < 0 || sigSize != dataLength - 2 * Integer.BYTES - size) {
+            throw new CorruptedFrameException("Invalid signature size " + sigSize);
+        }
+        if (sigSize > 0) {
+            signature = new byte[sigSize];
             buffer.readBytes(signature);
         }
 
-        DataInputStream dis = null;
-        TOMMessage sm = null;
-
+        TOMMessage sm = new TOMMessage();
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(data);
-            dis = new DataInputStream(bais);
-            sm = new TOMMessage();
-            sm.rExternal(dis);
-            sm.serializedMessage = data;
+            if (isClient) {
+                // replies are only parsed, their header is read in place and
+                // only the content is copied out of the buffer
+                sm.rExternal(buffer.nioBuffer(dataIndex, size));
+            } else {
+                // requests keep their bytes for ordering (and signature verification)
+                byte[] data = new byte[size];
+                buffer.getBytes(dataIndex, data);
+                sm.rExternal(ByteBuffer.wrap(data));
+                sm.serializedMessage = data;
+            }
 
             if (signature != null) {
                 sm.serializedMessageSignature = signature;
                 sm.signed = true;
             }
-
-            if (!isClient) {                
-                rl.readLock().lock();                
-                if (!sessionTable.containsKey(sm.getSender())) {
-                    rl.readLock().unlock();
-              
-                    NettyClientServerSession cs = new NettyClientServerSession(
-                    		context.channel(), 
-                    		sm.getSender());
-                                       
-                    rl.writeLock().lock();
-                    sessionTable.put(sm.getSender(), cs);
-                    logger.debug("Active clients: " + sessionTable.size());
-                    rl.writeLock().unlock();
-                    
-                }else {
-                	rl.readLock().unlock();   
-                }
-            }
-            logger.debug("Decoded reply from " + sm.getSender() + " with sequence number " + sm.getSequence());
-            list.add(sm);
         } catch (Exception ex) {
-            
             logger.error("Failed to decode TOMMessage", ex);
+            return;
+        }
+
+        if (!isClient && sm.getSender() != registeredSender) {
+            register(context, sm.getSender());
+        }
+        logger.debug("Decoded reply from {} with sequence number {}", sm.getSender(), sm.getSequence());
+        list.add(sm);
+    }
+
+    /**
+     * Associates the client with this channel, so that replies can be sent
+     * to it. Done for the first message of the channel only, instead of
+     * looking at the session table for every message.
+     *
+     * The session of another channel is only replaced if that channel is no
+     * longer active (client connections are not authenticated, so a message
+     * from a new connection must not take over the replies of a client).
+     * Otherwise, this channel tries again with its next message.
+     */
+    private void register(ChannelHandlerContext context, int sender) {
+        rl.writeLock().lock();
+        try {
+            NettyClientServerSession session = sessionTable.get(sender);
+            if (session == null || !session.getChannel().isActive()) {
+                sessionTable.put(sender, new NettyClientServerSession(context.channel(), sender));
+                logger.debug("Active clients: " + sessionTable.size());
+            } else if (!session.getChannel().equals(context.channel())) {
+                return;
+            }
+        } finally {
+            rl.writeLock().unlock();
         }
-        return;
+        registeredSender = sender;
     }
 
 }
@@ -43,6 +43,14 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
         this.rl = rl;
     }
 
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext context, TOMMessage sm, boolean preferDirect) throws Exception {
+        // exact size of the frame, so the buffer never grows while encoding
+        int frameLength = 3 * Integer.BYTES + sm.serializedMessage.length
+                + (sm.signed ? sm.serializedMessageSignature.length : 0);
+        return preferDirect ? context.alloc().ioBuffer(frameLength) : context.alloc().heapBuffer(frameLength);
+    }
+
     @Override
 	protected void encode(ChannelHandlerContext context, TOMMessage sm, ByteBuf buffer) throws Exception {
         byte[] msgData;
@@ -72,7 +80,8 @@ public class NettyTOMMessageEncoder extends MessageToByteEncoder<TOMMessage> {
                 buffer.writeInt(0);
         }
         
-        context.flush();
+        // no flush here, the writer decides when to flush (and flushes are
+        // consolidated by the pipeline)
     }
 
 }
@@ -0,0 +1,116 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import bftsmart.tom.leaderchange.LCMessage;
+import bftsmart.tom.util.TOMUtil;
+
+/**
+ * Compares Java serialization with SystemMessageCodec for the messages
+ * exchanged between replicas, reporting the bytes per message and the time
+ * per encode/decode.
+ *
+ * Usage: ... CodecBenchmark [iterations] [propose size]
+ */
+public class CodecBenchmark {
+
+    private static volatile Object sink; // keeps the JIT from removing the work
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int proposeSize = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+
+        Random rnd = new Random(42);
+        byte[] batch = new byte[proposeSize];
+        byte[] hash = new byte[32];
+        byte[] signature = new byte[72];
+        rnd.nextBytes(batch);
+        rnd.nextBytes(hash);
+        rnd.nextBytes(signature);
+
+        ConsensusMessage accept = new ConsensusMessage(MessageFactory.ACCEPT, 10, 0, 1, hash);
+        accept.setProof(signature);
+
+        TOMMessage request = new TOMMessage(1001, 0, 7, 7, new byte[64], 0, TOMMessageType.ORDERED_REQUEST);
+        request.serializedMessage = TOMMessage.messageToBytes(request);
+
+        SystemMessage[] messages = {
+            new ConsensusMessage(MessageFactory.PROPOSE, 10, 0, 0, batch),
+            new ConsensusMessage(MessageFactory.WRITE, 10, 0, 1, hash),
+            accept,
+            new LCMessage(1, TOMUtil.STOP, 3, new byte[256]),
+            new ForwardedMessage(1, request)
+        };
+        String[] names = {"PROPOSE", "WRITE", "ACCEPT", "STOP", "FORWARDED"};
+
+        System.out.println("message      java B  codec B  java enc ns  codec enc ns  java dec ns  codec dec ns");
+        for (int i = 0; i < messages.length; i++) {
+            SystemMessage sm = messages[i];
+
+            byte[] javaBytes = javaEncode(sm);
+            byte[] codecBytes = SystemMessageCodec.encode(sm);
+
+            // warm up both paths before measuring
+            run(sm, javaBytes, codecBytes, iterations / 2);
+
+            long[] times = run(sm, javaBytes, codecBytes, iterations);
+
+            System.out.println(String.format("%-10s %8d %8d %12d %13d %12d %13d", names[i],
+                    javaBytes.length, codecBytes.length,
+                    times[0] / iterations, times[1] / iterations, times[2] / iterations, times[3] / iterations));
+        }
+    }
+
+    private static long[] run(SystemMessage sm, byte[] javaBytes, byte[] codecBytes, int iterations) throws Exception {
+        long[] times = new long[4];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = javaEncode(sm);
+        times[0] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = SystemMessageCodec.encode(sm);
+        times[1] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = new ObjectInputStream(new ByteArrayInputStream(javaBytes)).readObject();
+        times[2] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = SystemMessageCodec.decode(codecBytes);
+        times[3] = System.nanoTime() - start;
+
+        return times;
+    }
+
+    private static byte[] javaEncode(SystemMessage sm) throws Exception {
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        new ObjectOutputStream(bOut).writeObject(sm);
+        return bOut.toByteArray();
+    }
+}
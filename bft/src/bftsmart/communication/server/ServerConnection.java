@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.communication.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
@@ -28,6 +30,7 @@ import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
@@ -71,6 +74,12 @@ public class ServerConnection {
 
 
     private static final long POOL_TIME = 5000;
+    // size of the buffers placed between the socket and the streams used for framing
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+    // received messages up to this size are read into a buffer reused across messages
+    private static final int MAX_RECEIVE_BUFFER_SIZE = 1024 * 1024;
+    // maximum number of messages the sender thread takes from the out queue at once
+    private static final int MAX_DRAIN = 1024;
     private ServerViewController controller;
     private SSLSocket socket;
     private DataOutputStream socketOutStream = null;
@@ -87,6 +96,10 @@ public class ServerConnection {
     
     private SecretKey secretKey = null;
 
+    // statistics of the sender thread, to see how well it coalesces messages
+    private volatile long flushes = 0;
+    private volatile long flushedMessages = 0;
+
     /**
      * Tulio A. Ribeiro
      * TLS vars. 
@@ -121,8 +134,8 @@ public class ServerConnection {
      		
      		if (this.socket != null) {
     			try {
-    				socketOutStream = new DataOutputStream(this.socket.getOutputStream());
-    				socketInStream = new DataInputStream(this.socket.getInputStream());
+    				socketOutStream = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream(), SOCKET_BUFFER_SIZE));
+    				socketInStream = new DataInputStream(new BufferedInputStream(this.socket.getInputStream(), SOCKET_BUFFER_SIZE));
     			} catch (IOException ex) {
     				logger.error("Error creating connection to " + remoteId, ex);
     			}
@@ -197,6 +210,8 @@ public class ServerConnection {
     /**
 	 * try to send a message through the socket if some problem is detected, a
 	 * reconnection is done
+	 *
+	 * @param messageData the message to send
 	 */
 	private final void sendBytes(byte[] messageData) {
 		boolean abort = false;
@@ -205,16 +220,59 @@ public class ServerConnection {
 				return; // if there is a need to reconnect, abort this method
 			if (socket != null && socketOutStream != null) {
 				try {
-					// do an extra copy of the data to be sent, but on a single out stream write
-					byte[] data = new byte[5 + messageData.length];// without MAC
-					int value = messageData.length;
+					// the frame is assembled in the buffer of the stream and
+					// reaches the socket in a single write when flushed
+					writeFrame(messageData);
+					socketOutStream.flush();
 
-					System.arraycopy(new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8),
-							(byte) value }, 0, data, 0, 4);
-					System.arraycopy(messageData, 0, data, 4, messageData.length);
-					System.arraycopy(new byte[] { (byte) 0 }, 0, data, 4 + messageData.length, 1);
+					return;
+				} catch (IOException ex) {
+					closeSocket();
+					waitAndConnect();
+					abort = true;
+				}
+			} else {
+				waitAndConnect();
+				abort = true;
+			}
+		} while (doWork);
+	}
 
-					socketOutStream.write(data);
+	/**
+	 * Sends the messages at the head of pending with a single flush, up to
+	 * the configured byte budget (but at least one message). Used by the
+	 * sender thread. If some problem is detected, the pending messages are
+	 * discarded and a reconnection is done.
+	 *
+	 * @param pending the messages to be sent, in order
+	 * @param budget maximum number of bytes to write before flushing
+	 */
+	private final void sendBytes(ArrayDeque<byte[]> pending, int budget) {
+		boolean abort = false;
+		do {
+			if (abort) {
+				pending.clear(); // the out queue is cleared on reconnection too
+				return;
+			}
+			if (socket != null && socketOutStream != null) {
+				try {
+					int count = 0;
+					int bytes = 0;
+					do {
+						byte[] messageData = pending.poll();
+						writeFrame(messageData);
+						bytes += messageData.length + 5;
+						count++;
+					} while (!pending.isEmpty() && bytes + pending.peek().length + 5 <= budget);
+
+					socketOutStream.flush();
+
+					flushes++;
+					flushedMessages += count;
+					if (logger.isDebugEnabled() && flushes % 1000 == 0) {
+						logger.debug("Sender for {}: {} messages per flush on average", remoteId,
+								String.format("%.2f", getAverageMessagesPerFlush()));
+					}
 
 					return;
 				} catch (IOException ex) {
@@ -229,6 +287,32 @@ public class ServerConnection {
 		} while (doWork);
 	}
 
+	/**
+	 * Average number of messages written by the sender thread between
+	 * flushes of the socket.
+	 *
+	 * @return average messages per flush, or 0 if nothing was sent yet
+	 */
+	public double getAverageMessagesPerFlush() {
+		long f = flushes;
+		return f == 0 ? 0 : (double) flushedMessages / f;
+	}
+
+	public long getFlushCount() {
+		return flushes;
+	}
+
+	public long getFlushedMessageCount() {
+		return flushedMessages;
+	}
+
+	// frame format: LENGTH(int) + DATA(byte[]) + HAS_MAC(byte, always 0)
+	private void writeFrame(byte[] messageData) throws IOException {
+		socketOutStream.writeInt(messageData.length);
+		socketOutStream.write(messageData);
+		socketOutStream.write(0); // without MAC
+	}
+
     //******* EDUARDO BEGIN **************//
     //return true of a process shall connect to the remote process, false otherwise
     private boolean isToConnect() {
@@ -299,8 +383,8 @@ public class ServerConnection {
 
 			if (socket != null) {
 				try {
-					socketOutStream = new DataOutputStream(socket.getOutputStream());
-					socketInStream = new DataInputStream(socket.getInputStream());
+					socketOutStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE));
+					socketInStream = new DataInputStream(new BufferedInputStream(socket.getInputStream(), SOCKET_BUFFER_SIZE));
 
 					// authKey = null;
 					// authenticateAndEstablishAuthKey();
@@ -320,12 +404,18 @@ public class ServerConnection {
         
         if (socket != null) {
             try {
+                // best effort: on a broken link the buffered bytes cannot be written
                 socketOutStream.flush();
-                socket.close();
             } catch (IOException ex) {
-                logger.debug("Error closing socket to "+remoteId);
+                logger.debug("Error flushing socket to "+remoteId);
             } catch (NullPointerException npe) {
             	logger.debug("Socket already closed");
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    logger.debug("Error closing socket to "+remoteId);
+                }
             }
 
             socket = null;
@@ -359,19 +449,25 @@ public class ServerConnection {
 
         @Override
         public void run() {
-            byte[] data = null;
+            // messages taken from the out queue and not sent yet, in order
+            ArrayDeque<byte[]> pending = new ArrayDeque<byte[]>();
+            int budget = controller.getStaticConf().getSenderFlushBytes();
 
             while (doWork) {
-                //get a message to be sent
-                try {
-                    data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
-                } catch (InterruptedException ex) {
+                //get the messages to be sent
+                if (pending.isEmpty()) {
+                    byte[] data = null;
+                    try {
+                        data = outQueue.poll(POOL_TIME, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException ex) {
+                    }
+                    if (data == null) continue;
+                    pending.add(data);
                 }
+                outQueue.drainTo(pending, MAX_DRAIN - pending.size());
 
-                if (data != null) {
-					logger.trace("Sending data to, RemoteId:{}", remoteId);
-					sendBytes(data);
-				}
+                logger.trace("Sending data to, RemoteId:{}", remoteId);
+                sendBytes(pending, budget);
             }
 
             logger.debug("Sender for " + remoteId + " stopped!");
@@ -387,6 +483,9 @@ public class ServerConnection {
             super("Receiver for " + remoteId);
         }
 
+        // reused for every message that fits in it (messages are decoded before the next read)
+        private byte[] receiveBuffer = new byte[SOCKET_BUFFER_SIZE];
+
         @Override
         public void run() {
           
@@ -396,20 +495,27 @@ public class ServerConnection {
 					try {
 						// read data length
 						int dataLength = socketInStream.readInt();
-						byte[] data = new byte[dataLength];
+						if (dataLength < 0) {
+							throw new IOException("Invalid message length " + dataLength);
+						}
+
+						byte[] data;
+						if (dataLength <= receiveBuffer.length) {
+							data = receiveBuffer;
+						} else if (dataLength <= MAX_RECEIVE_BUFFER_SIZE) {
+							data = receiveBuffer = new byte[dataLength];
+						} else {
+							data = new byte[dataLength];
+						}
 
 						// read data
-						int read = 0;
-						do {
-							read += socketInStream.read(data, read, dataLength - read);
-						} while (read < dataLength);
+						socketInStream.readFully(data, 0, dataLength);
 
 						byte hasMAC = socketInStream.readByte();
 
-						logger.trace("Read: {}, HasMAC: {}", read, hasMAC);
+						logger.trace("Read: {}, HasMAC: {}", dataLength, hasMAC);
 
-						SystemMessage sm = (SystemMessage) (new ObjectInputStream(new ByteArrayInputStream(data))
-								.readObject());
+						SystemMessage sm = SystemMessageCodec.decode(data, 0, dataLength);
 
 						//The verification it is done for the SSL/TLS protocol.
 						sm.authenticated = true;
@@ -277,14 +277,25 @@ public class ServersCommunicationLayer extends Thread {
 
 
     public final void send(int[] targets, SystemMessage sm, boolean useMAC) {
-        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
-        try {
-            new ObjectOutputStream(bOut).writeObject(sm);
-        } catch (IOException ex) {
-            logger.error("Failed to serialize message", ex);
+        byte[] data = null;
+        if (controller.getStaticConf().isUseBinaryCodec()) {
+            try {
+                data = SystemMessageCodec.encode(sm);
+            } catch (IOException ex) {
+                logger.error("Failed to encode message", ex);
+            }
         }
 
-        byte[] data = bOut.toByteArray();
+        if (data == null) { // no binary encoding for this message, fall back to Java serialization
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+            try {
+                new ObjectOutputStream(bOut).writeObject(sm);
+            } catch (IOException ex) {
+                logger.error("Failed to serialize message", ex);
+            }
+
+            data = bOut.toByteArray();
+        }
         
         // this shuffling is done to prevent the replica with the lowest ID/index  from being always
         // the last one receiving the messages, which can result in that replica  to become consistently
@@ -0,0 +1,400 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.communication.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+import bftsmart.communication.SystemMessage;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.reconfiguration.views.View;
+import bftsmart.statemanagement.ApplicationState;
+import bftsmart.statemanagement.SMMessage;
+import bftsmart.statemanagement.durability.CSTRequestF1;
+import bftsmart.statemanagement.durability.CSTSMMessage;
+import bftsmart.statemanagement.standard.StandardSMMessage;
+import bftsmart.tom.core.messages.ForwardedMessage;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.leaderchange.LCMessage;
+
+/**
+ * Compact binary encoding for the messages exchanged between replicas.
+ *
+ * Every encoded message starts with the codec version, followed by a type tag
+ * and the sender ID. The rest of the message is written by the writer of the
+ * respective type. Messages of other types (and the application state carried
+ * by state transfer messages) are still encoded with Java serialization.
+ *
+ * A Java serialization stream always starts with 0xACED, so both formats can
+ * be told apart by the first byte.
+ */
+public final class SystemMessageCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte JAVA_STREAM_MAGIC = (byte) 0xAC;
+
+    // type tags
+    private static final byte CONSENSUS = 1;
+    private static final byte LEADER_CHANGE = 2;
+    private static final byte FORWARDED = 3;
+    private static final byte STANDARD_SM = 4;
+    private static final byte CST_SM = 5;
+
+    // proof formats of a consensus message
+    private static final byte NO_PROOF = 0;
+    private static final byte SIGNATURE_PROOF = 1;
+    private static final byte OBJECT_PROOF = 2;
+
+    private static final int HEADER_SIZE = 6; // version + type + sender
+
+    private SystemMessageCodec() {
+    }
+
+    /**
+     * Encodes a message with the binary codec.
+     *
+     * @param sm The message to be encoded
+     * @return The encoded message, or null if there is no binary encoding for
+     * the type of the message
+     * @throws IOException if a field that falls back to Java serialization
+     * could not be serialized
+     */
+    public static byte[] encode(SystemMessage sm) throws IOException {
+        if (sm instanceof ConsensusMessage) {
+            return writeConsensus((ConsensusMessage) sm);
+        } else if (sm instanceof LCMessage) {
+            return writeLeaderChange((LCMessage) sm);
+        } else if (sm instanceof ForwardedMessage) {
+            return writeForwarded((ForwardedMessage) sm);
+        } else if (sm instanceof StandardSMMessage || sm instanceof CSTSMMessage) {
+            return writeStateManagement((SMMessage) sm);
+        }
+        return null;
+    }
+
+    /**
+     * Decodes a message received from another replica, which may have been
+     * encoded either with this codec or with Java serialization.
+     *
+     * @param data The received bytes
+     * @return The decoded message
+     * @throws IOException if the message is malformed
+     * @throws ClassNotFoundException if the Java serialized message (or field)
+     * is of an unknown class
+     */
+    public static SystemMessage decode(byte[] data) throws IOException, ClassNotFoundException {
+        return decode(data, 0, data.length);
+    }
+
+    /**
+     * Decodes a message stored in a region of an array. The decoded message
+     * does not reference the array, so it can be reused afterwards.
+     *
+     * @param data The array holding the received bytes
+     * @param offset Offset of the message in the array
+     * @param length Length of the message
+     * @return The decoded message
+     * @throws IOException if the message is malformed
+     * @throws ClassNotFoundException if the Java serialized message (or field)
+     * is of an unknown class
+     */
+    public static SystemMessage decode(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        if (length > 0 && data[offset] == JAVA_STREAM_MAGIC) {
+            return (SystemMessage) new ObjectInputStream(new ByteArrayInputStream(data, offset, length)).readObject();
+        }
+        if (length < HEADER_SIZE) {
+            throw new IOException("Message too short (" + length + " bytes)");
+        }
+        if (data[offset] != VERSION) {
+            throw new IOException("Unsupported codec version " + data[offset]);
+        }
+
+        byte type = data[offset + 1];
+        ByteBuffer in = ByteBuffer.wrap(data, offset + 2, length - 2);
+        int sender = in.getInt();
+
+        try {
+            switch (type) {
+                case CONSENSUS:
+                    return readConsensus(in, sender);
+                case LEADER_CHANGE:
+                    return readLeaderChange(in, sender);
+                case FORWARDED:
+                    return readForwarded(in, sender);
+                case STANDARD_SM:
+                case CST_SM:
+                    return readStateManagement(in, sender, type);
+                default:
+                    throw new IOException("Unknown message type " + type);
+            }
+        } catch (RuntimeException ex) { // buffer underflows, negative sizes, etc
+            throw new IOException("Malformed message of type " + type, ex);
+        }
+    }
+
+    private static ByteBuffer header(int size, byte type, SystemMessage sm) {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + size);
+        out.put(VERSION);
+        out.put(type);
+        out.putInt(sm.getSender());
+        return out;
+    }
+
+    /* ConsensusMessage: cid, epoch, type, value and proof */
+
+    private static byte[] writeConsensus(ConsensusMessage cm) throws IOException {
+        byte[] value = cm.getValue();
+        Object proof = cm.getProof();
+
+        byte proofType;
+        byte[] proofBytes;
+        if (proof == null) {
+            proofType = NO_PROOF;
+            proofBytes = null;
+        } else if (proof instanceof byte[]) {
+            proofType = SIGNATURE_PROOF;
+            proofBytes = (byte[]) proof;
+        } else {
+            proofType = OBJECT_PROOF;
+            proofBytes = serialize(proof);
+        }
+
+        int size = 16 + (value != null ? value.length : 0) + 1 + (proofBytes != null ? 4 + proofBytes.length : 0);
+        ByteBuffer out = header(size, CONSENSUS, cm);
+
+        out.putInt(cm.getNumber());
+        out.putInt(cm.getEpoch());
+        out.putInt(cm.getType());
+        putBytes(out, value);
+
+        out.put(proofType);
+        if (proofBytes != null) {
+            putBytes(out, proofBytes);
+        }
+
+        return out.array();
+    }
+
+    private static ConsensusMessage readConsensus(ByteBuffer in, int sender) throws IOException, ClassNotFoundException {
+        int number = in.getInt();
+        int epoch = in.getInt();
+        int paxosType = in.getInt();
+        byte[] value = getBytes(in);
+
+        ConsensusMessage cm = new ConsensusMessage(paxosType, number, epoch, sender, value);
+
+        switch (in.get()) {
+            case SIGNATURE_PROOF:
+                cm.setProof(getBytes(in));
+                break;
+            case OBJECT_PROOF:
+                cm.setProof(deserialize(getBytes(in)));
+                break;
+            default:
+                break;
+        }
+
+        return cm;
+    }
+
+    /* LCMessage: type, regency and payload */
+
+    private static byte[] writeLeaderChange(LCMessage lcm) {
+        byte[] payload = lcm.getPayload();
+
+        ByteBuffer out = header(12 + (payload != null ? payload.length : 0), LEADER_CHANGE, lcm);
+
+        out.putInt(lcm.getType());
+        out.putInt(lcm.getReg());
+        putBytes(out, payload);
+
+        return out.array();
+    }
+
+    private static LCMessage readLeaderChange(ByteBuffer in, int sender) {
+        int type = in.getInt();
+        int ts = in.getInt();
+        byte[] payload = getBytes(in);
+
+        return new LCMessage(sender, type, ts, payload);
+    }
+
+    /* ForwardedMessage: serialized request and its signature */
+
+    private static byte[] writeForwarded(ForwardedMessage fm) {
+        TOMMessage request = fm.getRequest();
+        byte[] signature = request.signed ? request.serializedMessageSignature : null;
+
+        byte[] serReq = request.getSerializedMessage();
+
+        ByteBuffer out = header(4 + serReq.length + 1 + (signature != null ? 4 + signature.length : 0),
+                FORWARDED, fm);
+
+        putBytes(out, serReq);
+        out.put((byte) (signature != null ? 1 : 0));
+        if (signature != null) {
+            putBytes(out, signature);
+        }
+
+        return out.array();
+    }
+
+    private static ForwardedMessage readForwarded(ByteBuffer in, int sender) throws IOException {
+        byte[] serReq = getBytes(in);
+        if (serReq == null) {
+            throw new IOException("Forwarded message without request");
+        }
+
+        TOMMessage request = TOMMessage.bytesToMessage(serReq);
+        if (request == null) {
+            throw new IOException("Forwarded message with invalid request");
+        }
+        request.serializedMessage = serReq;
+
+        if (in.get() == 1) {
+            request.serializedMessageSignature = getBytes(in);
+        }
+
+        return new ForwardedMessage(sender, request);
+    }
+
+    /* SMMessage: cid, type, regency, leader, plus the Java serialized state and view;
+       StandardSMMessage adds the replica and the chunk hashes, CSTSMMessage the CST config */
+
+    private static byte[] writeStateManagement(SMMessage smsg) throws IOException {
+        byte[] state = serialize(smsg.getState());
+        byte[] view = serialize(smsg.getView());
+
+        byte type;
+        byte[] extra;
+        byte[][] chunkHashes = null;
+        int extraSize;
+        if (smsg instanceof StandardSMMessage) {
+            type = STANDARD_SM;
+            extra = null;
+            chunkHashes = ((StandardSMMessage) smsg).getChunkHashes();
+            extraSize = 4 + 4;
+            if (chunkHashes != null) {
+                for (byte[] hash : chunkHashes) {
+                    extraSize += 4 + hash.length;
+                }
+            }
+        } else {
+            type = CST_SM;
+            extra = serialize(((CSTSMMessage) smsg).getCstConfig());
+            extraSize = 4 + (extra != null ? extra.length : 0);
+        }
+
+        int size = 16 + 4 + (state != null ? state.length : 0) + 4 + (view != null ? view.length : 0)
+                + extraSize;
+        ByteBuffer out = header(size, type, smsg);
+
+        out.putInt(smsg.getCID());
+        out.putInt(smsg.getType());
+        out.putInt(smsg.getRegency());
+        out.putInt(smsg.getLeader());
+        putBytes(out, state);
+        putBytes(out, view);
+
+        if (type == STANDARD_SM) {
+            out.putInt(((StandardSMMessage) smsg).getReplica());
+            if (chunkHashes == null) {
+                out.putInt(-1);
+            } else {
+                out.putInt(chunkHashes.length);
+                for (byte[] hash : chunkHashes) {
+                    putBytes(out, hash);
+                }
+            }
+        } else {
+            putBytes(out, extra);
+        }
+
+        return out.array();
+    }
+
+    private static SMMessage readStateManagement(ByteBuffer in, int sender, byte type) throws IOException, ClassNotFoundException {
+        int cid = in.getInt();
+        int smType = in.getInt();
+        int regency = in.getInt();
+        int leader = in.getInt();
+        ApplicationState state = (ApplicationState) deserialize(getBytes(in));
+        View view = (View) deserialize(getBytes(in));
+
+        if (type == STANDARD_SM) {
+            int replica = in.getInt();
+            int chunks = in.getInt();
+            byte[][] chunkHashes = null;
+            if (chunks > in.remaining() / 4) {
+                throw new IOException("Invalid number of chunk hashes " + chunks);
+            }
+            if (chunks >= 0) {
+                chunkHashes = new byte[chunks][];
+                for (int i = 0; i < chunks; i++) {
+                    chunkHashes[i] = getBytes(in);
+                }
+            }
+            return new StandardSMMessage(sender, cid, smType, replica, state, view, regency, leader, chunkHashes);
+        } else {
+            CSTRequestF1 cstConfig = (CSTRequestF1) deserialize(getBytes(in));
+            return new CSTSMMessage(sender, cid, smType, cstConfig, state, view, regency, leader);
+        }
+    }
+
+    /* helpers */
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        if (bytes == null) {
+            out.putInt(-1);
+        } else {
+            out.putInt(bytes.length);
+            out.put(bytes);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] serialize(Object obj) throws IOException {
+        if (obj == null) {
+            return null;
+        }
+        ByteArrayOutputStream bOut = new ByteArrayOutputStream(248);
+        ObjectOutputStream out = new ObjectOutputStream(bOut);
+        out.writeObject(obj);
+        out.flush();
+        return bOut.toByteArray();
+    }
+
+    private static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
+        if (data == null) {
+            return null;
+        }
+        return new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+    }
+}
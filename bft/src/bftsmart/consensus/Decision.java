@@ -15,6 +15,7 @@ limitations under the License.
 */
 package bftsmart.consensus;
 
+import bftsmart.clientsmanagement.RequestList;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +39,9 @@ public class Decision {
     //for benchmarking
     public TOMMessage firstMessageProposed = null;
     public int batchSize = 0;
+    
+    // requests put in the proposed value by this replica (only set at the leader)
+    public RequestList proposedRequests = null;
 
     /**
      * Creates a new instance of Decision
@@ -59,6 +59,9 @@ public final class Acceptor {
 	// thread pool used to paralelise creation of consensus proofs
 	private ExecutorService proofExecutor = null;
 
+	// threads processing consensus messages, or null to process them in the communication thread
+	private AcceptorWorkers workers = null;
+
 	/**
 	 * Tulio Ribeiro
 	 */
@@ -89,6 +92,11 @@ public final class Acceptor {
 		 * this.proofExecutor = Executors.newWorkStealingPool(nWorkers);
 		 */
 		this.proofExecutor = Executors.newSingleThreadExecutor();
+
+		int nWorkers = controller.getStaticConf().getAcceptorWorkers();
+		if (nWorkers > 0) {
+			this.workers = new AcceptorWorkers(nWorkers, controller.getStaticConf().getInQueueSize());
+		}
 	}
 
 	public MessageFactory getFactory() {
@@ -113,6 +121,64 @@ public final class Acceptor {
 		this.tomLayer = tom;
 	}
 
+	/**
+	 * Returns the threads processing consensus messages
+	 * 
+	 * @return the acceptor workers, or null if messages are processed by the
+	 *         communication thread
+	 */
+	public AcceptorWorkers getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Called by the communication layer with each Paxos message received. The
+	 * message is delivered by the worker of its consensus, or right away if there
+	 * are no workers.
+	 *
+	 * @param msg Paxos message received by the communication layer
+	 */
+	public final void route(ConsensusMessage msg) {
+		if (workers == null) {
+			deliver(msg);
+		} else {
+			workers.route(msg.getNumber(), () -> deliver(msg));
+		}
+	}
+
+	/**
+	 * Runs a task that processes messages of a consensus (e.g., out of context
+	 * ones) in the worker of that consensus. Without workers, or if the caller is
+	 * that worker, the task runs right away.
+	 *
+	 * @param cid  Consensus ID
+	 * @param task the task to run
+	 */
+	public void execute(int cid, Runnable task) {
+		if (workers == null) {
+			task.run();
+		} else {
+			workers.execute(cid, task);
+		}
+	}
+
+	/**
+	 * Waits until the consensus messages routed so far are processed. Called by
+	 * the communication layer before processing other messages.
+	 */
+	public void awaitIdle() {
+		if (workers != null) {
+			workers.awaitIdle();
+		}
+	}
+
+	public void shutdown() {
+		if (workers != null) {
+			workers.shutdown();
+		}
+		proofExecutor.shutdown();
+	}
+
 	/**
 	 * Called by communication layer to delivery Paxos messages. This method only
 	 * verifies if the message can be executed and calls process message (storing it
@@ -124,6 +190,13 @@ public final class Acceptor {
 		if (executionManager.checkLimits(msg)) {
 			logger.debug("Processing paxos msg with id " + msg.getNumber());
 			processMessage(msg);
+
+			// the workers may have found the PROPOSE of the next consensus out of
+			// context, if they checked it before this one was started
+			if (workers != null && msg.getType() == MessageFactory.PROPOSE
+					&& executionManager.receivedOutOfContextPropose(msg.getNumber() + 1)) {
+				tomLayer.processOutOfContext();
+			}
 		} else {
 			logger.debug("Out of context msg with id " + msg.getNumber());
 			tomLayer.processOutOfContext();
@@ -199,8 +272,8 @@ public final class Acceptor {
 			/*****************************************/
 
 			// start this consensus if it is not already running
-			if (cid == tomLayer.getLastExec() + 1) {
-				tomLayer.setInExec(cid);
+			if (cid > tomLayer.getLastExec() && cid <= tomLayer.getLastExec() + tomLayer.getPipelineWindow()) {
+				tomLayer.startExec(cid);
 			}
 			epoch.deserializedPropValue = tomLayer.checkProposedValue(value, true);
 
@@ -231,21 +304,13 @@ public final class Acceptor {
 					logger.debug("WRITE computed for cId:{}, I am:{}", cid, me);
 
 				} else {
-					epoch.setAccept(me, epoch.propValueHash);
 					epoch.getConsensus().getDecision().firstMessageProposed.writeSentTime = System.nanoTime();
-					epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
 
-					/**** LEADER CHANGE CODE! ******/
-					logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to "
-							+ epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
-					epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
-					/*****************************************/
-
-					communication.send(this.controller.getCurrentViewOtherAcceptors(),
-							factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
-
-					epoch.acceptSent();
-					computeAccept(cid, epoch, epoch.propValueHash);
+					if (tomLayer.getPipelineWindow() == 1 || cid == tomLayer.getLastExec() + 1) {
+						sendCFTAccept(cid, epoch);
+					} else {
+						logger.debug("Deferring ACCEPT for cId:{} until cId:{} is decided", cid, cid - 1);
+					}
 				}
 				executionManager.processOutOfContext(epoch.getConsensus());
 
@@ -256,6 +321,32 @@ public final class Acceptor {
 		}
 	}
 
+	/**
+	 * Sends the ACCEPT for the proposed value in CFT mode, where there is no
+	 * WRITE phase.
+	 *
+	 * @param cid   Consensus ID of the proposed value
+	 * @param epoch Epoch of the proposed value
+	 */
+	private void sendCFTAccept(int cid, Epoch epoch) {
+		epoch.setAccept(me, epoch.propValueHash);
+		if (epoch.getConsensus().getDecision().firstMessageProposed != null) {
+			epoch.getConsensus().getDecision().firstMessageProposed.acceptSentTime = System.nanoTime();
+		}
+
+		/**** LEADER CHANGE CODE! ******/
+		logger.debug("[CFT Mode] Setting consensus " + cid + " QuorumWrite tiemstamp to "
+				+ epoch.getConsensus().getEts() + " and value " + Arrays.toString(epoch.propValueHash));
+		epoch.getConsensus().setQuorumWrites(epoch.propValueHash);
+		/*****************************************/
+
+		communication.send(this.controller.getCurrentViewOtherAcceptors(),
+				factory.createAccept(cid, epoch.getTimestamp(), epoch.propValueHash));
+
+		epoch.acceptSent();
+		computeAccept(cid, epoch, epoch.propValueHash);
+	}
+
 	/**
 	 * Called when a WRITE message is received
 	 *
@@ -290,6 +381,13 @@ public final class Acceptor {
 
 			if (!epoch.isAcceptSent()) {
 
+				// with pipelining, an ACCEPT is only sent once the previous consensus is decided,
+				// so that the leader change only needs to recover the lowest running instance
+				if (tomLayer.getPipelineWindow() > 1 && cid > tomLayer.getLastExec() + 1) {
+					logger.debug("Deferring ACCEPT for cId:{} until cId:{} is decided", cid, cid - 1);
+					return;
+				}
+
 				logger.debug("Sending ACCEPT message, cId:{}, I am:{}", cid, me);
 
 				/**** LEADER CHANGE CODE! ******/
@@ -429,5 +527,51 @@ public final class Acceptor {
 			epoch.getConsensus().getDecision().firstMessageProposed.decisionTime = System.nanoTime();
 
 		epoch.getConsensus().decided(epoch, true);
+
+		if (tomLayer.getPipelineWindow() > 1) {
+			sendDeferredAccept();
+		}
+	}
+
+	/**
+	 * Sends the ACCEPT of the consensus after the last executed one, if it was
+	 * deferred. Also called by the delivery thread once it advances the last
+	 * executed consensus itself (after a reconfiguration).
+	 */
+	public void sendDeferredAccept() {
+		int next = tomLayer.getLastExec() + 1;
+		if (workers != null) {
+			// the worker of the next consensus takes its lock, so the caller
+			// does not wait for it while holding the locks of another consensus
+			workers.execute(next, () -> sendDeferredAccept(next));
+		} else {
+			sendDeferredAccept(next);
+		}
+	}
+
+	/**
+	 * Sends the ACCEPT of the next pipelined consensus, if it was deferred
+	 * while waiting for the previous consensus to be decided.
+	 *
+	 * @param cid Consensus ID of the next consensus
+	 */
+	private void sendDeferredAccept(int cid) {
+		if (cid > tomLayer.getLastStarted()) return; // the next consensus is not running yet
+
+		Consensus consensus = executionManager.getConsensus(cid);
+
+		consensus.lock.lock();
+		Epoch epoch = consensus.getLastEpoch();
+		if (epoch != null && epoch.propValueHash != null && epoch.deserializedPropValue != null
+				&& !epoch.isAcceptSent() && !consensus.isDecided()) {
+
+			logger.debug("Resuming deferred ACCEPT for cId:{}", cid);
+			if (controller.getStaticConf().isBFT()) {
+				computeWrite(cid, epoch, epoch.propValueHash);
+			} else {
+				sendCFTAccept(cid, epoch);
+			}
+		}
+		consensus.lock.unlock();
 	}
 }
@@ -0,0 +1,253 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.consensus.roles;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Threads that process the consensus messages on behalf of the Acceptor.
+ * Each consensus instance is assigned to one worker by its id, so the
+ * messages of an instance are processed one at a time and in the order they
+ * were routed, while the messages of different instances (with pipelining)
+ * are processed in parallel.
+ *
+ * The communication thread routes consensus messages here and waits for the
+ * workers to become idle before processing any other message (leader change,
+ * state transfer), so these still see every consensus message received
+ * before them as processed.
+ */
+public final class AcceptorWorkers {
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private static final long WAIT_TIME = 100; // milliseconds
+
+    private final Worker[] workers;
+    private final int capacity; // tasks waiting before route() blocks
+
+    private final AtomicInteger pending = new AtomicInteger(0); // tasks routed and not yet finished
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    private final Condition pendingChanged = pendingLock.newCondition();
+
+    /**
+     * Creates and starts the workers.
+     *
+     * @param nWorkers number of workers
+     * @param capacity number of tasks that can wait for the workers before
+     * route() blocks
+     */
+    public AcceptorWorkers(int nWorkers, int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.workers = new Worker[nWorkers];
+        for (int i = 0; i < nWorkers; i++) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * @return number of workers
+     */
+    public int getWorkers() {
+        return workers.length;
+    }
+
+    /**
+     * Routes a task for a consensus instance to its worker, waiting while
+     * too many tasks are pending. Called by the communication thread.
+     *
+     * @param cid the consensus id
+     * @param task the task
+     */
+    public void route(int cid, Runnable task) {
+        if (pending.get() >= capacity) {
+            pendingLock.lock();
+            try {
+                while (pending.get() >= capacity) {
+                    pendingChanged.await(WAIT_TIME, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException ex) {
+                logger.error("Interrupted while waiting for the acceptor workers", ex);
+            } finally {
+                pendingLock.unlock();
+            }
+        }
+        execute(cid, task);
+    }
+
+    /**
+     * Runs a task for a consensus instance: right away if the calling thread
+     * is the worker of that instance, and in its worker otherwise (without
+     * waiting).
+     *
+     * @param cid the consensus id
+     * @param task the task
+     */
+    public void execute(int cid, Runnable task) {
+        Worker worker = workers[Math.floorMod(cid, workers.length)];
+        if (Thread.currentThread() == worker) {
+            task.run();
+            return;
+        }
+        pending.incrementAndGet();
+        worker.add(task);
+    }
+
+    /**
+     * Waits until all the tasks routed to the workers are finished.
+     */
+    public void awaitIdle() {
+        if (pending.get() == 0 || isWorker()) {
+            return;
+        }
+        pendingLock.lock();
+        try {
+            while (pending.get() > 0) {
+                pendingChanged.await(WAIT_TIME, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            logger.error("Interrupted while waiting for the acceptor workers", ex);
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * @return true if the calling thread is one of the workers
+     */
+    public boolean isWorker() {
+        return Thread.currentThread() instanceof Worker && ((Worker) Thread.currentThread()).owner() == this;
+    }
+
+    /**
+     * @return number of tasks routed to the workers and not yet finished
+     */
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @param worker index of the worker
+     * @return number of tasks waiting in the queue of the worker
+     */
+    public int getQueueSize(int worker) {
+        return workers[worker].queue.size();
+    }
+
+    /**
+     * @param worker index of the worker
+     * @return largest number of tasks that waited in the queue of the worker
+     */
+    public int getMaxQueueSize(int worker) {
+        return workers[worker].maxQueueSize;
+    }
+
+    /**
+     * @param worker index of the worker
+     * @return number of tasks run by the worker
+     */
+    public long getProcessed(int worker) {
+        return workers[worker].processed.get();
+    }
+
+    /**
+     * Stops the workers, discarding the tasks still waiting.
+     */
+    public void shutdown() {
+        for (Worker worker : workers) {
+            worker.doWork = false;
+            worker.queue.clear();
+        }
+        pending.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("pending=").append(pending.get());
+        for (int i = 0; i < workers.length; i++) {
+            sb.append(", worker ").append(i).append(": queue=").append(getQueueSize(i))
+                    .append(" max=").append(getMaxQueueSize(i))
+                    .append(" processed=").append(getProcessed(i));
+        }
+        return sb.toString();
+    }
+
+    private void finished() {
+        int n = pending.decrementAndGet();
+        if (n == 0 || n == capacity - 1) {
+            pendingLock.lock();
+            pendingChanged.signalAll();
+            pendingLock.unlock();
+        }
+    }
+
+    private class Worker extends Thread {
+
+        private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<>();
+        private final AtomicLong processed = new AtomicLong(0);
+        private volatile int maxQueueSize = 0;
+        private volatile boolean doWork = true;
+
+        private Worker(int id) {
+            super("Acceptor worker " + id);
+            setDaemon(true);
+        }
+
+        private AcceptorWorkers owner() {
+            return AcceptorWorkers.this;
+        }
+
+        private void add(Runnable task) {
+            queue.add(task);
+            int size = queue.size();
+            if (size > maxQueueSize) {
+                maxQueueSize = size;
+            }
+        }
+
+        @Override
+        public void run() {
+            while (doWork) {
+                Runnable task;
+                try {
+                    task = queue.poll(WAIT_TIME, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                if (task == null) {
+                    continue;
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.error("Error while processing consensus message", ex);
+                } finally {
+                    processed.incrementAndGet();
+                    finished();
+                }
+            }
+            logger.info("{} stopped.", getName());
+        }
+    }
+}
@@ -22,10 +22,13 @@ import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.util.Arrays;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ServiceReplica;
+import bftsmart.tom.server.ConflictAwareExecutable;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 
 /**
@@ -33,13 +36,16 @@ import bftsmart.tom.server.defaultservices.DefaultRecoverable;
  * @author Marcel Santos
  *
  */
-public class YCSBServer extends DefaultRecoverable {
+public class YCSBServer extends DefaultRecoverable implements ConflictAwareExecutable {
 
     private static final boolean _debug = false;
     private TreeMap<String, YCSBTable> mTables;
 
     private boolean logPrinted = false;
 
+    // requests parsed by getConflictKeys(), by identity of the command
+    private final ConcurrentHashMap<byte[], YCSBMessage> parsedRequests = new ConcurrentHashMap<>();
+
     public static void main(String[] args) throws Exception {
         if (args.length == 1) {
             new YCSBServer(new Integer(args[0]));
@@ -56,8 +62,7 @@ public class YCSBServer extends DefaultRecoverable {
     @Override
     public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtx, boolean fromConsensus) {
         byte[][] replies = new byte[commands.length][];
-        int index = 0;
-        for (byte[] command : commands) {
+        for (int index = 0; index < commands.length; index++) {
             if (msgCtx != null && msgCtx[index] != null && msgCtx[index].getConsensusId() % 1000 == 0 && !logPrinted) {
                 System.out.println("YCSBServer executing CID: " + msgCtx[index].getConsensusId());
                 logPrinted = true;
@@ -65,55 +70,87 @@ public class YCSBServer extends DefaultRecoverable {
                 logPrinted = false;
             }
 
-            YCSBMessage aRequest = YCSBMessage.getObject(command);
-            YCSBMessage reply = YCSBMessage.newErrorMessage("");
-            if (aRequest == null) {
-                replies[index] = reply.getBytes();
-                continue;
-            }
-            if (_debug) {
-                System.out.println("[INFO] Processing an ordered request");
+            replies[index] = executeNonConflicting(commands[index], msgCtx != null ? msgCtx[index] : null);
+        }
+//		System.out.println("RETURNING REPLY");
+        return replies;
+    }
+
+    /**
+     * Updates of existing records conflict only with requests on the same
+     * record. Requests that insert a table or a record change the structure
+     * of the (non thread-safe) maps, so they conflict with everything.
+     */
+    @Override
+    public Object[] getConflictKeys(byte[] command, MessageContext msgCtx) {
+        YCSBMessage aRequest = YCSBMessage.getObject(command);
+        if (aRequest == null) {
+            return new Object[0]; // error reply, the state is not touched
+        }
+        parsedRequests.put(command, aRequest);
+
+        if ((aRequest.getType() == YCSBMessage.Type.CREATE || aRequest.getType() == YCSBMessage.Type.UPDATE)
+                && aRequest.getEntity() == YCSBMessage.Entity.RECORD) {
+            YCSBTable table = mTables.get(aRequest.getTable());
+            if (table == null || !table.containsKey(aRequest.getKey())) {
+                return null;
             }
-            switch (aRequest.getType()) {
-                case CREATE: { // ##### operation: create #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
-                            if (!mTables.get(aRequest.getTable()).containsKey(aRequest.getKey())) {
-                                mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                                reply = YCSBMessage.newInsertResponse(0);
-                            }
-                            break;
-                        default: // Only create records
-                            break;
-                    }
-                    break;
-                }
+            return new Object[] {Arrays.asList(aRequest.getTable(), aRequest.getKey())};
+        }
+        return new Object[0];
+    }
 
-                case UPDATE: { // ##### operation: update #####
-                    switch (aRequest.getEntity()) {
-                        case RECORD: // ##### entity: record #####
-                            if (!mTables.containsKey(aRequest.getTable())) {
-                                mTables.put((String) aRequest.getTable(), new YCSBTable());
-                            }
+    @Override
+    public byte[] executeNonConflicting(byte[] command, MessageContext msgCtx) {
+        // requests are already parsed if their conflict keys were asked for
+        YCSBMessage aRequest = parsedRequests.remove(command);
+        if (aRequest == null) {
+            aRequest = YCSBMessage.getObject(command);
+        }
+        YCSBMessage reply = YCSBMessage.newErrorMessage("");
+        if (aRequest == null) {
+            return reply.getBytes();
+        }
+        if (_debug) {
+            System.out.println("[INFO] Processing an ordered request");
+        }
+        switch (aRequest.getType()) {
+            case CREATE: { // ##### operation: create #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        if (!mTables.containsKey(aRequest.getTable())) {
+                            mTables.put((String) aRequest.getTable(), new YCSBTable());
+                        }
+                        if (!mTables.get(aRequest.getTable()).containsKey(aRequest.getKey())) {
                             mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
-                            reply = YCSBMessage.newUpdateResponse(1);
-                            break;
-                        default: // Only update records
-                            break;
-                    }
-                    break;
+                            reply = YCSBMessage.newInsertResponse(0);
+                        }
+                        break;
+                    default: // Only create records
+                        break;
                 }
+                break;
             }
-            if (_debug) {
-                System.out.println("[INFO] Sending reply");
+
+            case UPDATE: { // ##### operation: update #####
+                switch (aRequest.getEntity()) {
+                    case RECORD: // ##### entity: record #####
+                        if (!mTables.containsKey(aRequest.getTable())) {
+                            mTables.put((String) aRequest.getTable(), new YCSBTable());
+                        }
+                        mTables.get(aRequest.getTable()).put(aRequest.getKey(), aRequest.getValues());
+                        reply = YCSBMessage.newUpdateResponse(1);
+                        break;
+                    default: // Only update records
+                        break;
+                }
+                break;
             }
-            replies[index++] = reply.getBytes();
         }
-//		System.out.println("RETURNING REPLY");
-        return replies;
+        if (_debug) {
+            System.out.println("[INFO] Sending reply");
+        }
+        return reply.getBytes();
     }
 
     @Override
@@ -1,40 +1,114 @@
 package bftsmart.mvptools.frontend;
 
 import bftsmart.communication.client.ReplyListener;
+import bftsmart.mvptools.util.SampledEventLogger;
 import bftsmart.tom.AsynchServiceProxy;
 import bftsmart.tom.RequestContext;
 import bftsmart.tom.core.messages.TOMMessage;
 import bftsmart.tom.core.messages.TOMMessageType;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.ScheduledFuture;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-class FrontEndEventHandler extends SimpleChannelInboundHandler<String> {
+/**
+ * Handles one TCP client of the Frontend. Each message (or group of messages
+ * read together, up to batchSize) is sent to the replicas as an asynchronous
+ * ordered request, with at most maxOutstanding requests in flight. Replies
+ * are written back in the order the messages were received.
+ *
+ * In text mode messages are lines (String) and replies are written as lines.
+ * In binary mode messages are length-prefixed frames decoded into byte[] by
+ * SorrirMessageDecoder, which are passed to the proxy as they are, and replies
+ * are written as byte[] frames.
+ *
+ * The state of the connection is only accessed from its event loop; replies
+ * collected by the proxy threads are handed over to it.
+ */
+class FrontEndEventHandler extends SimpleChannelInboundHandler<Object> {
 
-    AsynchServiceProxy serviceProxy;
+    private static final byte[] TIMEOUT_REPLY = "⚠️ No reply from replicas (timeout)".getBytes(StandardCharsets.UTF_8);
 
-    public FrontEndEventHandler(AsynchServiceProxy serviceProxy) {
-        this.serviceProxy = serviceProxy;
+    private final ProxyPool pool;
+    private int proxyIndex = -1; // proxy of this connection in the pool
+    private AsynchServiceProxy serviceProxy;
+    private final int maxOutstanding;
+    private final int batchSize;
+    private final boolean verbose;
+    private final boolean binary;
+
+    // shared by all connections
+    private final SampledEventLogger events;
+    private final LongAdder receivedCount;
+    private final LongAdder requestCount;
+    private final LongAdder timeoutCount;
+
+    private ChannelHandlerContext ctx;
+    private final List<byte[]> messages = new ArrayList<>(); // received, not sent yet
+    private final ArrayDeque<PendingRequest> inFlight = new ArrayDeque<>(); // sent, in order
+
+    public FrontEndEventHandler(ProxyPool pool, int maxOutstanding, int batchSize, boolean verbose, boolean binary,
+            SampledEventLogger events) {
+        this.pool = pool;
+        this.maxOutstanding = Math.max(1, maxOutstanding);
+        this.batchSize = Math.max(1, batchSize);
+        this.verbose = verbose;
+        this.binary = binary;
+        this.events = events;
+        this.receivedCount = events.counter("messages");
+        this.requestCount = events.counter("requests");
+        this.timeoutCount = events.counter("timeouts");
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        this.proxyIndex = pool.connect();
+        this.serviceProxy = pool.get(proxyIndex);
+        if (verbose) events.logger().info("🔗 New connection using client {}", serviceProxy.getProcessId());
+        super.channelActive(ctx);
     }
 
-@Override
-protected void channelRead0(ChannelHandlerContext ctx, String msg) {
-    try {
-        System.out.println("🔹 Received from TCP: " + msg);
-        byte[] result = serviceProxy.invokeOrdered(msg.getBytes(StandardCharsets.UTF_8));
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, Object msg) {
+        byte[] data = (msg instanceof byte[]) ? (byte[]) msg : ((String) msg).getBytes(StandardCharsets.UTF_8);
+        receivedCount.increment();
+        if (verbose && events.sample()) events.logger().info("🔹 Received from TCP: {}", describe(data));
 
-        if (result != null) {
-            String response = new String(result, StandardCharsets.UTF_8);
-            System.out.println("✅ BFT Response: " + response);
-            ctx.writeAndFlush(response + "\n");  // echo response
-        } else {
-            System.out.println("⚠️ BFT Response is null (likely due to timeout)");
-            ctx.writeAndFlush("⚠️ No reply from replicas (timeout)\n");
+        messages.add(data);
+        if (messages.size() >= batchSize) {
+            sendMessages();
         }
-    } catch (Exception e) {
-        e.printStackTrace();
     }
-}
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        // messages that arrived in the same read are sent together
+        sendMessages();
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (PendingRequest request : inFlight) {
+            if (request.responses == null) {
+                pool.requestDone(proxyIndex);
+                request.responses = new byte[0][]; // replies arriving later are ignored
+            }
+            request.cancel();
+        }
+        inFlight.clear();
+        messages.clear();
+        if (proxyIndex != -1) {
+            pool.disconnect(proxyIndex);
+        }
+        super.channelInactive(ctx);
+    }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
@@ -42,4 +116,167 @@ protected void channelRead0(ChannelHandlerContext ctx, String msg) {
         ctx.close();
     }
 
+    // sends the buffered messages while there is room for more requests in flight
+    private void sendMessages() {
+        while (!messages.isEmpty() && inFlight.size() < maxOutstanding) {
+            int n = Math.min(batchSize, messages.size());
+            List<byte[]> batch = new ArrayList<>(messages.subList(0, n));
+            messages.subList(0, n).clear();
+            invoke(batch);
+        }
+
+        // stop reading from the client until some replies arrive
+        ctx.channel().config().setAutoRead(messages.isEmpty() && inFlight.size() < maxOutstanding);
+    }
+
+    private void invoke(List<byte[]> batch) {
+        // a single binary message starting with the magic byte is packed as
+        // well, so that the replica does not take it for a batch
+        boolean packed = batch.size() > 1 || RequestBatch.isBatch(batch.get(0));
+        byte[] request = packed ? RequestBatch.pack(batch) : batch.get(0);
+
+        requestCount.increment();
+        PendingRequest pending = new PendingRequest(batch.size(), packed);
+        inFlight.add(pending);
+        pool.requestSent(proxyIndex);
+
+        try {
+            pending.operationId = serviceProxy.invokeAsynchRequest(request, pending, TOMMessageType.ORDERED_REQUEST);
+            pending.timeout = ctx.executor().schedule(() -> complete(pending, null),
+                    serviceProxy.getInvokeTimeout(), TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+            complete(pending, null);
+        }
+    }
+
+    // invoked in the event loop when a request is answered or timed out
+    private void complete(PendingRequest request, byte[] result) {
+        if (request.responses != null) {
+            return; // already completed
+        }
+        pool.requestDone(proxyIndex);
+
+        if (result == null) {
+            timeoutCount.increment();
+            if (verbose && events.sample()) events.logger().warn("⚠️ BFT Response is null (likely due to timeout)");
+            request.cancel();
+            request.responses = new byte[request.count][];
+            Arrays.fill(request.responses, TIMEOUT_REPLY);
+        } else {
+            if (request.timeout != null) request.timeout.cancel(false);
+            request.responses = toResponses(request, result);
+            if (verbose && events.sample()) {
+                events.logger().info("✅ BFT Response: {}", describe(request.responses[0]));
+            }
+        }
+
+        // write the replies of the requests completed so far, in order
+        boolean written = false;
+        while (!inFlight.isEmpty() && inFlight.peek().responses != null) {
+            for (byte[] response : inFlight.poll().responses) {
+                if (binary) {
+                    ctx.write(response);
+                } else {
+                    ctx.write(new String(response, StandardCharsets.UTF_8) + "\n");
+                }
+            }
+            written = true;
+        }
+        if (written) {
+            ctx.flush();
+        }
+
+        sendMessages();
+    }
+
+    private byte[][] toResponses(PendingRequest request, byte[] result) {
+        byte[][] items = request.packed ? RequestBatch.unpack(result) : null;
+        if (items != null && items.length == request.count) {
+            return items;
+        }
+
+        // single request, or a replica that does not know batches
+        byte[][] responses = new byte[request.count][];
+        Arrays.fill(responses, result);
+        return responses;
+    }
+
+    private String describe(byte[] data) {
+        return binary ? data.length + " bytes" : new String(data, StandardCharsets.UTF_8);
+    }
+
+    private int getReplyQuorum() {
+        int n = serviceProxy.getViewManager().getCurrentViewN();
+        int f = serviceProxy.getViewManager().getCurrentViewF();
+        if (serviceProxy.getViewManager().getStaticConf().isBFT()) {
+            return (int) Math.ceil((n + f) / 2) + 1;
+        } else {
+            return (int) Math.ceil(n / 2) + 1;
+        }
+    }
+
+    /**
+     * A request in flight. Replies are collected by the proxy threads until
+     * a quorum of them have the same content, as ServiceProxy.invokeOrdered()
+     * would do.
+     */
+    private class PendingRequest implements ReplyListener {
+
+        final int count; // number of messages in the request
+        final boolean packed; // sent as a RequestBatch
+        int operationId = -1;
+        ScheduledFuture<?> timeout;
+        byte[][] responses; // set in the event loop once completed
+
+        // accessed by the proxy threads only
+        private TOMMessage[] replies;
+        private volatile boolean decided = false;
+
+        PendingRequest(int count, boolean packed) {
+            this.count = count;
+            this.packed = packed;
+        }
+
+        @Override
+        public void reset() {
+            replies = null;
+        }
+
+        @Override
+        public void replyReceived(RequestContext context, TOMMessage reply) {
+            if (decided) return;
+
+            int pos = serviceProxy.getViewManager().getCurrentViewPos(reply.getSender());
+            if (pos < 0) return;
+
+            if (replies == null || replies.length != serviceProxy.getViewManager().getCurrentViewN()) {
+                replies = new TOMMessage[serviceProxy.getViewManager().getCurrentViewN()];
+            }
+            replies[pos] = reply;
+
+            int sameContent = 0;
+            for (TOMMessage r : replies) {
+                if (r != null && Arrays.equals(r.getContent(), reply.getContent())) {
+                    sameContent++;
+                }
+            }
+
+            if (sameContent >= getReplyQuorum()) {
+                decided = true;
+                serviceProxy.cleanAsynchRequest(context.getOperationId());
+                byte[] result = reply.getContent();
+                ctx.executor().execute(() -> complete(this, result));
+            }
+        }
+
+        // stops waiting for replies
+        void cancel() {
+            if (timeout != null) timeout.cancel(false);
+            if (!decided && operationId != -1) {
+                decided = true;
+                serviceProxy.cleanAsynchRequest(operationId);
+            }
+        }
+    }
 }
@@ -3,7 +3,9 @@ package bftsmart.mvptools.frontend;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 
-import bftsmart.tom.AsynchServiceProxy;
+import bftsmart.mvptools.sorrirmessage.SorrirMessageDecoder;
+import bftsmart.mvptools.sorrirmessage.SorrirMessageEncoder;
+import bftsmart.mvptools.util.SampledEventLogger;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
@@ -14,6 +16,7 @@ import io.netty.handler.codec.string.StringDecoder;
 import io.netty.handler.codec.string.StringEncoder;
 
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 public class Frontend {
 
@@ -22,7 +25,7 @@ public class Frontend {
     public static void main(String[] args) throws IOException {
         System.out.println("Frontend, v0.1bench");
         if (args.length < 5) {
-            System.out.println("Usage: ... Frontend <initial client id> <listening on port (number)> <configPath> <verbose?> <nosig | default | ecdsa>");
+            System.out.println("Usage: ... Frontend <initial client id> <listening on port (number)> <configPath> <verbose?> <nosig | default | ecdsa> [max outstanding requests per connection] [max lines per request] [number of proxies] [rr | least] [text | binary]");
             System.exit(-1);
         }
 
@@ -31,13 +34,18 @@ public class Frontend {
         String configPath = args[2];
         boolean verbose = Boolean.parseBoolean(args[3]);
         String sign = args[4];
+        int maxOutstanding = args.length > 5 ? Integer.parseInt(args[5]) : 16;
+        int batchSize = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+        int poolSize = args.length > 7 ? Integer.parseInt(args[7]) : 1;
+        ProxyPool.Policy policy = ProxyPool.Policy.parse(args.length > 8 ? args[8] : "rr");
+        boolean binary = args.length > 9 && args[9].equalsIgnoreCase("binary");
 
         int s = 0;
         if (!sign.equalsIgnoreCase("nosig")) s++;
         if (sign.equalsIgnoreCase("ecdsa")) s++;
 
         System.out.println("Launching frontend ");
-        Client client = new Client(initId, port, configPath, verbose, s);
+        Client client = new Client(initId, port, configPath, verbose, s, maxOutstanding, batchSize, poolSize, policy, binary);
         System.out.println("Frontend initialized");
 
         client.start();
@@ -47,16 +55,25 @@ public class Frontend {
 
         int id;
         String configPath;
-        AsynchServiceProxy serviceProxy;
+        ProxyPool pool;
         boolean verbose;
         int port;
+        int maxOutstanding;
+        int batchSize;
+        boolean binary;
+        SampledEventLogger events = new SampledEventLogger(Frontend.class, "Frontend");
 
-        public Client(int id, int port, String configPath, boolean verbose, int sign) {
+        public Client(int id, int port, String configPath, boolean verbose, int sign, int maxOutstanding, int batchSize,
+                int poolSize, ProxyPool.Policy policy, boolean binary) {
             this.id = id;
             this.configPath = configPath;
             this.port = port;
-            this.serviceProxy = new AsynchServiceProxy(id, configPath);
+            // client IDs id, id + 1, ..., id + poolSize - 1
+            this.pool = new ProxyPool(id, poolSize, configPath, policy);
             this.verbose = verbose;
+            this.maxOutstanding = maxOutstanding;
+            this.batchSize = batchSize;
+            this.binary = binary;
         }
 
         public void run() {
@@ -70,14 +87,27 @@ public class Frontend {
                 serverBootstrap.channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) {
-                        ch.pipeline().addLast(new LineBasedFrameDecoder(1024));
-                        ch.pipeline().addLast(new StringDecoder(StandardCharsets.UTF_8));
-                        ch.pipeline().addLast(new FrontEndEventHandler(serviceProxy));
+                        if (binary) {
+                            // length-prefixed frames, passed on as byte[]
+                            ch.pipeline().addLast(new SorrirMessageDecoder(true, SorrirMessageDecoder.DEFAULT_MAX_FRAME_LENGTH));
+                            ch.pipeline().addLast(new SorrirMessageEncoder());
+                        } else {
+                            ch.pipeline().addLast(new LineBasedFrameDecoder(1024));
+                            ch.pipeline().addLast(new StringDecoder(StandardCharsets.UTF_8));
+                            ch.pipeline().addLast(new StringEncoder(StandardCharsets.UTF_8));
+                        }
+                        ch.pipeline().addLast(new FrontEndEventHandler(pool, maxOutstanding, batchSize, verbose, binary, events));
                     }
                 }).childOption(ChannelOption.SO_KEEPALIVE, true).childOption(ChannelOption.TCP_NODELAY, true);
                 serverBootstrap.localAddress(new InetSocketAddress(address, this.port));
 
-                System.out.println("Listening on tcp://" + address + ":" + port);
+                System.out.println("Listening on tcp://" + address + ":" + port + (binary ? " (binary)" : ""));
+
+                if (verbose) {
+                    // sampled events and counters instead of one line per message
+                    events.start(10, TimeUnit.SECONDS);
+                    group.scheduleAtFixedRate(() -> events.logger().info("📊 {}", pool.metrics()), 10, 10, TimeUnit.SECONDS);
+                }
 
                 ChannelFuture channelFuture = serverBootstrap.bind().sync();
                 channelFuture.channel().closeFuture().sync();
@@ -0,0 +1,116 @@
+package bftsmart.mvptools.frontend;
+
+import bftsmart.tom.AsynchServiceProxy;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of proxies with consecutive client IDs, so that the requests of the
+ * Frontend are spread over several BFT-SMaRt sessions instead of being
+ * serialized behind a single client.
+ *
+ * Each TCP connection is assigned to one proxy when it is opened (keeping the
+ * order of its requests), either in turn or to the proxy with the fewest
+ * requests in flight.
+ */
+class ProxyPool {
+
+    enum Policy {
+        ROUND_ROBIN, LEAST_OUTSTANDING;
+
+        static Policy parse(String s) {
+            return s.equalsIgnoreCase("least") ? LEAST_OUTSTANDING : ROUND_ROBIN;
+        }
+    }
+
+    private final int firstId;
+    private final Policy policy;
+    private final AsynchServiceProxy[] proxies;
+    private final AtomicInteger[] inFlight;
+    private final AtomicInteger[] connections;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    ProxyPool(int firstId, int size, String configPath, Policy policy) {
+        this.firstId = firstId;
+        this.policy = policy;
+        this.proxies = new AsynchServiceProxy[Math.max(1, size)];
+        this.inFlight = new AtomicInteger[proxies.length];
+        this.connections = new AtomicInteger[proxies.length];
+
+        for (int i = 0; i < proxies.length; i++) {
+            proxies[i] = new AsynchServiceProxy(firstId + i, configPath);
+            inFlight[i] = new AtomicInteger(0);
+            connections[i] = new AtomicInteger(0);
+        }
+
+        int ttpId = proxies[0].getViewManager().getStaticConf().getTTPId();
+        if (ttpId >= firstId && ttpId < firstId + proxies.length) {
+            System.out.println("⚠️ Client ID " + ttpId + " of the proxy pool is the TTP ID (system.ttp.id); "
+                    + "its requests will not be handled as client requests");
+        }
+    }
+
+    /**
+     * Chooses the proxy for a new connection.
+     *
+     * @return index of the proxy in the pool
+     */
+    int connect() {
+        int chosen;
+        if (policy == Policy.ROUND_ROBIN) {
+            chosen = Math.floorMod(next.getAndIncrement(), proxies.length);
+        } else {
+            // fewest requests in flight, then fewest connections
+            chosen = 0;
+            for (int i = 1; i < proxies.length; i++) {
+                int diff = inFlight[i].get() - inFlight[chosen].get();
+                if (diff < 0 || (diff == 0 && connections[i].get() < connections[chosen].get())) {
+                    chosen = i;
+                }
+            }
+        }
+        connections[chosen].incrementAndGet();
+        return chosen;
+    }
+
+    void disconnect(int i) {
+        connections[i].decrementAndGet();
+    }
+
+    AsynchServiceProxy get(int i) {
+        return proxies[i];
+    }
+
+    void requestSent(int i) {
+        inFlight[i].incrementAndGet();
+    }
+
+    void requestDone(int i) {
+        inFlight[i].decrementAndGet();
+    }
+
+    int size() {
+        return proxies.length;
+    }
+
+    int getInFlight(int i) {
+        return inFlight[i].get();
+    }
+
+    int getConnections(int i) {
+        return connections[i].get();
+    }
+
+    /**
+     * @return one line with the pool size and, for each proxy, its client ID,
+     * connections and requests in flight
+     */
+    String metrics() {
+        StringBuilder sb = new StringBuilder("Proxy pool (" + proxies.length + ", " + policy + "):");
+        for (int i = 0; i < proxies.length; i++) {
+            sb.append(" [").append(firstId + i)
+              .append(" conns=").append(connections[i].get())
+              .append(" inflight=").append(inFlight[i].get()).append("]");
+        }
+        return sb.toString();
+    }
+}
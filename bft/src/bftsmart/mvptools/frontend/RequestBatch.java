@@ -0,0 +1,73 @@
+package bftsmart.mvptools.frontend;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Packs several Frontend requests (or their replies) into a single ordered
+ * request, so that lines read together from a TCP client go through one
+ * consensus.
+ *
+ * Format: MAGIC(byte) + COUNT(int) + COUNT*[LENGTH(int) + DATA(byte[])]
+ *
+ * The magic byte (0xFF) never appears in UTF-8 text, so a batch cannot be
+ * mistaken for a single text request. Single binary requests that start with
+ * it are sent as a batch of one.
+ */
+public final class RequestBatch {
+
+    public static final byte MAGIC = (byte) 0xFF;
+
+    private RequestBatch() {
+    }
+
+    public static boolean isBatch(byte[] data) {
+        return data != null && data.length >= 5 && data[0] == MAGIC;
+    }
+
+    public static byte[] pack(List<byte[]> items) {
+        int size = 5;
+        for (byte[] item : items) {
+            size += 4 + item.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(MAGIC);
+        buffer.putInt(items.size());
+        for (byte[] item : items) {
+            buffer.putInt(item.length);
+            buffer.put(item);
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @param data a batch created by pack()
+     * @return the packed items, or null if data is not a well formed batch
+     */
+    public static byte[][] unpack(byte[] data) {
+        if (!isBatch(data)) {
+            return null;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / 4) {
+            return null;
+        }
+
+        byte[][] items = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (buffer.remaining() < 4) {
+                return null;
+            }
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                return null;
+            }
+            items[i] = new byte[length];
+            buffer.get(items[i]);
+        }
+        return buffer.hasRemaining() ? null : items;
+    }
+}
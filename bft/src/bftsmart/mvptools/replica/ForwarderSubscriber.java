@@ -0,0 +1,194 @@
+package bftsmart.mvptools.replica;
+
+import io.netty.channel.Channel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A SORRIR component connected to the replica forwarder. Messages are kept in
+ * a bounded ring buffer until the event loop of the connection writes them;
+ * when the buffer is full, the overflow policy of the forwarder is applied.
+ *
+ * offer() is called by the replica, drain() by the event loop of the channel.
+ */
+class ForwarderSubscriber {
+
+    // maximum number of messages written before each flush
+    private static final int MAX_WRITE_BATCH = 64;
+
+    private final Channel channel;
+    private final ReplicaForwarderThread.OverflowPolicy policy;
+
+    private final String[] ring;
+    private int head = 0; // position of the oldest message
+    private int count = 0;
+    private boolean drainScheduled = false;
+    private boolean closed = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+
+    private volatile long dropped = 0;
+    private volatile long forwarded = 0;
+
+    ForwarderSubscriber(Channel channel, int capacity, ReplicaForwarderThread.OverflowPolicy policy) {
+        this.channel = channel;
+        this.policy = policy;
+        this.ring = new String[Math.max(1, capacity)];
+    }
+
+    /**
+     * Queues a message for this subscriber.
+     *
+     * @return false if the subscriber is (or has just been) disconnected
+     */
+    boolean offer(String message) {
+        boolean schedule = false;
+        boolean disconnect = false;
+
+        lock.lock();
+        /******* BEGIN SUBSCRIBER CRITICAL SECTION ******/
+        try {
+            if (closed) {
+                return false;
+            }
+
+            if (count == ring.length) {
+                switch (policy) {
+                    case DROP_OLDEST:
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                        count--;
+                        dropped++;
+                        break;
+                    case BLOCK:
+                        while (count == ring.length && !closed) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        if (closed) {
+                            return false;
+                        }
+                        break;
+                    default: // DISCONNECT
+                        disconnect = true;
+                        closed = true;
+                        dropped += count + 1;
+                        clearRing();
+                        break;
+                }
+            }
+
+            if (!disconnect) {
+                ring[(head + count) % ring.length] = message;
+                count++;
+                if (!drainScheduled) {
+                    drainScheduled = true;
+                    schedule = true;
+                }
+            }
+        } finally {
+            /******* END SUBSCRIBER CRITICAL SECTION ******/
+            lock.unlock();
+        }
+
+        if (disconnect) {
+            System.out.println("⚠️ SORRIR component " + channel.remoteAddress() + " is too slow, disconnecting it");
+            channel.close();
+            return false;
+        }
+        if (schedule) {
+            channel.eventLoop().execute(this::drain);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the queued messages while the channel is writable, flushing once
+     * per batch. Must be called from the event loop of the channel.
+     */
+    void drain() {
+        List<String> batch = new ArrayList<>(MAX_WRITE_BATCH);
+
+        while (true) {
+            lock.lock();
+            /******* BEGIN SUBSCRIBER CRITICAL SECTION ******/
+            try {
+                if (count == 0 || closed || !channel.isWritable()) {
+                    // writability changes trigger a new drain
+                    drainScheduled = false;
+                    return;
+                }
+                while (count > 0 && batch.size() < MAX_WRITE_BATCH) {
+                    batch.add(ring[head]);
+                    ring[head] = null;
+                    head = (head + 1) % ring.length;
+                    count--;
+                }
+                notFull.signalAll();
+            } finally {
+                /******* END SUBSCRIBER CRITICAL SECTION ******/
+                lock.unlock();
+            }
+
+            for (String message : batch) {
+                channel.write(message);
+            }
+            channel.flush();
+            forwarded += batch.size();
+            batch.clear();
+        }
+    }
+
+    /**
+     * Discards the queued messages and releases blocked senders.
+     */
+    void close() {
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                dropped += count;
+                clearRing();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void clearRing() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+
+    Channel getChannel() {
+        return channel;
+    }
+
+    int getQueueDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getCapacity() {
+        return ring.length;
+    }
+
+    long getDropped() {
+        return dropped;
+    }
+
+    long getForwarded() {
+        return forwarded;
+    }
+}
@@ -1,29 +1,79 @@
 package bftsmart.mvptools.replica;
 
+import bftsmart.mvptools.frontend.RequestBatch;
+import bftsmart.mvptools.util.SampledEventLogger;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.ServiceReplica;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.server.ConflictAwareExecutable;
 import bftsmart.tom.server.Replier;
+import bftsmart.tom.server.defaultservices.AsyncCheckpointable;
+import bftsmart.tom.server.defaultservices.ChunkedSnapshot;
+import bftsmart.tom.server.defaultservices.ChunkedState;
 import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class Replica extends DefaultRecoverable {
+/**
+ * Replica of the SORRIR MVP. Requests are forwarded to the connected SORRIR
+ * components, and the following commands are executed on a replicated store
+ * of sensor readings:
+ *
+ * PUT <device> <reading>  records a reading (ordered requests only)
+ * GET <device>            latest reading of a device
+ * HISTORY <device>        readings kept for a device, oldest first
+ * DEVICES                 IDs of all devices
+ *
+ * Replies only depend on the request and the state, so that all replicas
+ * give the same reply and clients can reach a reply quorum.
+ *
+ * With system.numexecutors greater than 1, requests on different devices
+ * are executed in parallel. Requests on the same device keep their order,
+ * also when forwarded to the SORRIR components, and other requests are
+ * executed alone.
+ *
+ * With system.totalordermulticast.async_ckp, checkpoints only freeze the
+ * store, which is serialized in the background. Checkpoints are hashed, and
+ * transferred to other replicas, by chunk of the store.
+ */
+public class Replica extends DefaultRecoverable implements ConflictAwareExecutable, AsyncCheckpointable, ChunkedState {
 
     private ReplicaContext rc;
     private ReplicaForwarderThread forwarderThread;
     private String configHome;
     private int replicaId;
     private ServiceReplica serviceReplica; // Store the ServiceReplica instance
+    private final SensorStateStore store;
+
+    // sampled per-request logging and periodic counters
+    private final SampledEventLogger events;
+    private final LongAdder requestCount;
+    private final LongAdder batchCount;
 
     public Replica(int id, String configHome) {
+        this(id, configHome, ReplicaForwarderThread.DEFAULT_QUEUE_CAPACITY, ReplicaForwarderThread.OverflowPolicy.DROP_OLDEST,
+                SensorStateStore.DEFAULT_HISTORY_SIZE);
+    }
+
+    public Replica(int id, String configHome, int forwarderQueueCapacity, ReplicaForwarderThread.OverflowPolicy forwarderPolicy,
+            int historySize) {
         this.replicaId = id;
         this.configHome = configHome;
+        this.store = new SensorStateStore(SensorStateStore.DEFAULT_CHUNKS, historySize);
+        this.events = new SampledEventLogger(Replica.class, "Replica " + id);
+        this.requestCount = events.counter("requests");
+        this.batchCount = events.counter("batches");
         
         // Create forwarder thread with a base port + replica ID to avoid conflicts
         int forwarderPort = 12000 + id; // Use different port range for forwarder
-        this.forwarderThread = new ReplicaForwarderThread(forwarderPort);
+        this.forwarderThread = new ReplicaForwarderThread(forwarderPort, forwarderQueueCapacity, forwarderPolicy);
         
         // Initialize BFT-SMaRt ServiceReplica - Try the simpler constructor
         // Most BFT-SMaRt applications use this constructor
@@ -31,6 +81,12 @@ public class Replica extends DefaultRecoverable {
         
         // Start the forwarder thread
         forwarderThread.start();
+
+        events.gauge("devices", store::size);
+        events.gauge("forwarded", forwarderThread::getForwardedCount);
+        events.gauge("dropped", forwarderThread::getDroppedCount);
+        events.gauge("forwarderQueue", forwarderThread::getQueueDepth);
+        events.start(10, TimeUnit.SECONDS);
         
         System.out.println("✅ Replica " + id + " initialized with forwarder on port " + forwarderPort);
     }
@@ -38,7 +94,7 @@ public class Replica extends DefaultRecoverable {
     public static void main(String[] args) {
         System.out.println("Replica, v0.1bench");
         if (args.length < 1) {
-            System.out.println("Use: java Replica <processId> [configPath]");
+            System.out.println("Use: java Replica <processId> [configPath] [forwarder queue size per SORRIR component] [drop-oldest | block | disconnect] [readings kept per device]");
             System.exit(-1);
         }
 
@@ -46,21 +102,37 @@ public class Replica extends DefaultRecoverable {
 
         String configPath = args.length > 1 ? args[1] : "config";
         int replicaId = Integer.parseInt(args[0]);
+        int queueCapacity = args.length > 2 ? Integer.parseInt(args[2]) : ReplicaForwarderThread.DEFAULT_QUEUE_CAPACITY;
+        ReplicaForwarderThread.OverflowPolicy policy = ReplicaForwarderThread.OverflowPolicy.parse(args.length > 3 ? args[3] : "drop-oldest");
+        int historySize = args.length > 4 ? Integer.parseInt(args[4]) : SensorStateStore.DEFAULT_HISTORY_SIZE;
         
-        new Replica(replicaId, configPath);
+        new Replica(replicaId, configPath, queueCapacity, policy, historySize);
     }
 
     @Override
     public byte[] appExecuteUnordered(byte[] command, MessageContext msgCtx) {
-        return execute(command, msgCtx);
+        return execute(command, msgCtx, false);
+    }
+
+    private byte[] execute(byte[] command, MessageContext msgCtx, boolean ordered) {
+        // several requests sent together by the Frontend get their replies packed the same way
+        byte[][] requests = RequestBatch.unpack(command);
+        if (requests != null) {
+            List<byte[]> replies = new ArrayList<>(requests.length);
+            for (byte[] request : requests) {
+                replies.add(executeSingle(request, msgCtx, ordered));
+            }
+            return RequestBatch.pack(replies);
+        }
+        return executeSingle(command, msgCtx, ordered);
     }
 
-    private byte[] execute(byte[] command, MessageContext msgCtx) {
+    private byte[] executeSingle(byte[] command, MessageContext msgCtx, boolean ordered) {
         String request = new String(command, StandardCharsets.UTF_8).trim();
-        System.out.println("📥 Replica " + replicaId + " received request: " + request);
+        requestCount.increment();
 
         if (request.equalsIgnoreCase("FAULTY")) {
-            System.out.println("⚠️ FAULTY command received by replica " + replicaId + ". Simulating failure...");
+            events.logger().warn("⚠️ FAULTY command received by replica {}. Simulating failure...", replicaId);
 
             try {
                 Thread.sleep(1000); // Reduced sleep time to avoid timeout
@@ -69,8 +141,7 @@ public class Replica extends DefaultRecoverable {
                 e.printStackTrace();
             }
 
-            String response = "Replica " + replicaId + " processed FAULTY command (with delay)";
-            System.out.println("📤 Replica " + replicaId + " responding: " + response);
+            String response = "processed FAULTY command (with delay)";
             return response.getBytes(StandardCharsets.UTF_8);
         }
 
@@ -79,30 +150,133 @@ public class Replica extends DefaultRecoverable {
             forwarderThread.send(request);
         }
         
-        // Normal response
-        String response = "Replica " + replicaId + " processed: " + request;
-        System.out.println("📤 Replica " + replicaId + " responding: " + response);
+        String response = executeCommand(request, msgCtx, ordered);
+        if (events.sample()) {
+            events.logger().info("📥 Replica {} executed request: {} 📤 {}", replicaId, request, response);
+        }
         return response.getBytes(StandardCharsets.UTF_8);
     }
 
+    @Override
+    public Object[] getConflictKeys(byte[] command, MessageContext msgCtx) {
+        byte[][] requests = RequestBatch.unpack(command);
+        if (requests == null) {
+            return conflictKeys(command);
+        }
+
+        List<Object> keys = new ArrayList<>(requests.length);
+        for (byte[] request : requests) {
+            Object[] requestKeys = conflictKeys(request);
+            if (requestKeys == null) {
+                return null;
+            }
+            keys.addAll(Arrays.asList(requestKeys));
+        }
+        return keys.toArray();
+    }
+
+    // the device of a store command, no key for FAULTY, everything for the others
+    private Object[] conflictKeys(byte[] command) {
+        String request = new String(command, StandardCharsets.UTF_8).trim();
+        if (request.equalsIgnoreCase("FAULTY")) {
+            return new Object[0];
+        }
+
+        String[] tokens = request.split("\\s+", 3);
+        String op = tokens[0].toUpperCase();
+        if ((op.equals("PUT") && tokens.length == 3)
+                || ((op.equals("GET") || op.equals("HISTORY")) && tokens.length == 2)) {
+            return new Object[] {tokens[1]};
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] executeNonConflicting(byte[] command, MessageContext msgCtx) {
+        return execute(command, msgCtx, true);
+    }
+
+    private String executeCommand(String request, MessageContext msgCtx, boolean ordered) {
+        String[] tokens = request.split("\\s+", 3);
+        String op = tokens[0].toUpperCase();
+
+        if (op.equals("PUT") && tokens.length == 3) {
+            if (!ordered) {
+                return "ERROR PUT must be ordered";
+            }
+            // the consensus timestamp is the same in every replica
+            store.put(tokens[1], msgCtx.getTimestamp(), tokens[2]);
+            return "OK " + tokens[1];
+        } else if (op.equals("GET") && tokens.length == 2) {
+            SensorStateStore.Reading reading = store.latest(tokens[1]);
+            return reading != null ? tokens[1] + " " + reading : "NOT_FOUND " + tokens[1];
+        } else if (op.equals("HISTORY") && tokens.length == 2) {
+            StringBuilder sb = new StringBuilder(tokens[1]);
+            for (SensorStateStore.Reading reading : store.history(tokens[1])) {
+                sb.append(" | ").append(reading);
+            }
+            return sb.toString();
+        } else if (op.equals("DEVICES") && tokens.length == 1) {
+            return "DEVICES " + String.join(" ", store.devices());
+        }
+
+        // Normal response
+        return "processed: " + request;
+    }
+
     @Override
     public void installSnapshot(byte[] state) {
-        System.out.println("📸 Replica " + replicaId + " installing snapshot");
-        // Implement state recovery if needed
+        try {
+            store.installSnapshot(state);
+            events.logger().info("📸 Replica {} installed snapshot: {} devices, {}/{} chunks changed", replicaId,
+                    store.size(), store.getLastInstalledChunks(), store.getChunkCount());
+        } catch (IOException e) {
+            events.logger().error("❌ Replica " + replicaId + " failed to install snapshot", e);
+        }
     }
 
     @Override
     public byte[] getSnapshot() {
-        System.out.println("📸 Replica " + replicaId + " creating snapshot");
-        return new byte[0]; // Return current state if needed
+        return ChunkedSnapshot.serialize(getSnapshotChunks());
+    }
+
+    @Override
+    public byte[][] getSnapshotChunks() {
+        byte[][] chunks = store.getSnapshotChunks();
+        events.logger().info("📸 Replica {} created snapshot: {} devices, {}/{} chunks serialized", replicaId,
+                store.size(), store.getLastSerializedChunks(), store.getChunkCount());
+        return chunks;
+    }
+
+    @Override
+    public FrozenSnapshot freezeState() {
+        SensorStateStore.FrozenState frozen = store.freeze();
+        return new FrozenSnapshot() {
+
+            @Override
+            public byte[] serialize() {
+                return ChunkedSnapshot.serialize(serializeChunks());
+            }
+
+            @Override
+            public byte[][] serializeChunks() {
+                byte[][] chunks = frozen.serializeChunks();
+                events.logger().info("📸 Replica {} created snapshot in background: {} devices, {}/{} chunks serialized",
+                        replicaId, frozen.size(), store.getLastSerializedChunks(), store.getChunkCount());
+                return chunks;
+            }
+        };
     }
 
     @Override
     public byte[][] appExecuteBatch(byte[][] commands, MessageContext[] msgCtxs, boolean fromConsensus) {
-        System.out.println("📦 Replica " + replicaId + " executing batch of " + commands.length + " commands");
+        batchCount.increment();
+        if (events.logger().isDebugEnabled()) {
+            events.logger().debug("📦 Replica {} executing batch of {} commands", replicaId, commands.length);
+        }
         byte[][] replies = new byte[commands.length][];
         for (int i = 0; i < commands.length; i++) {
-            replies[i] = execute(commands[i], msgCtxs[i]);
+            replies[i] = execute(commands[i], msgCtxs[i], true);
         }
         return replies;
     }
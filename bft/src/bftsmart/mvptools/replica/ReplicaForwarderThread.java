@@ -1,118 +1,231 @@
 package bftsmart.mvptools.replica;
 
-import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.io.PrintWriter;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import bftsmart.mvptools.util.SampledEventLogger;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LineBasedFrameDecoder;
+import io.netty.handler.codec.string.LineEncoder;
+import io.netty.handler.codec.string.StringDecoder;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Thread that forwards messages from BFT replicas to SORRIR components
+ *
+ * Every connected component receives every message, one per line. Each of
+ * them has its own bounded queue, so that a stalled component does not delay
+ * the others; when its queue is full, the overflow policy decides whether the
+ * oldest message is dropped, the replica waits, or the component is
+ * disconnected.
  */
 public class ReplicaForwarderThread extends Thread {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        DROP_OLDEST, BLOCK, DISCONNECT;
+
+        public static OverflowPolicy parse(String s) {
+            switch (s.toLowerCase()) {
+                case "block":
+                    return BLOCK;
+                case "disconnect":
+                    return DISCONNECT;
+                default:
+                    return DROP_OLDEST;
+            }
+        }
+    }
+
     private final int port;
-    private final BlockingQueue<String> messageQueue;
+    private final int queueCapacity;
+    private final OverflowPolicy policy;
+    private final CopyOnWriteArrayList<ForwarderSubscriber> subscribers = new CopyOnWriteArrayList<>();
     private volatile boolean running = true;
-    private ServerSocket serverSocket;
-    
+    private final SampledEventLogger events = new SampledEventLogger(ReplicaForwarderThread.class, "ReplicaForwarder");
+
+    private EventLoopGroup group;
+    private Channel serverChannel;
+
+    // counters of the subscribers that are gone
+    private final AtomicLong pastDropped = new AtomicLong(0);
+    private final AtomicLong pastForwarded = new AtomicLong(0);
+
     public ReplicaForwarderThread(int port) {
+        this(port, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST);
+    }
+
+    public ReplicaForwarderThread(int port, int queueCapacity, OverflowPolicy policy) {
         this.port = port;
-        this.messageQueue = new LinkedBlockingQueue<>();
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
         this.setDaemon(true); // Don't prevent JVM shutdown
         this.setName("ReplicaForwarder-" + port);
     }
-    
+
+    /**
+     * Queues a message for every connected SORRIR component. With the BLOCK
+     * policy, this waits while the queue of some component is full.
+     */
     public void send(String message) {
         if (running) {
-            messageQueue.offer(message);
+            for (ForwarderSubscriber subscriber : subscribers) {
+                subscriber.offer(message);
+            }
         }
     }
-    
+
     @Override
     public void run() {
+        group = new NioEventLoopGroup();
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("🔗 ReplicaForwarder listening on port " + port + " for SORRIR connections");
-            
-            while (running) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("🤝 SORRIR component connected to replica forwarder on port " + port);
-                    
-                    // Handle the connection in a separate thread
-                    new Thread(() -> handleConnection(clientSocket)).start();
-                    
-                } catch (IOException e) {
-                    if (running) {
-                        System.err.println("❌ Error accepting connection on port " + port + ": " + e.getMessage());
-                    }
+            ServerBootstrap serverBootstrap = new ServerBootstrap();
+            serverBootstrap.group(group);
+            serverBootstrap.channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+                @Override
+                public void initChannel(SocketChannel ch) {
+                    ch.pipeline().addLast(new LineBasedFrameDecoder(1024));
+                    ch.pipeline().addLast(new StringDecoder(StandardCharsets.UTF_8));
+                    ch.pipeline().addLast(new LineEncoder(StandardCharsets.UTF_8));
+                    ch.pipeline().addLast(new ReplicaForwarderThreadHandler(ReplicaForwarderThread.this));
                 }
+            }).childOption(ChannelOption.TCP_NODELAY, true)
+              // stop writing (and let the queue fill up) when a component does not keep up
+              .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(32 * 1024, 64 * 1024));
+            serverBootstrap.localAddress(new InetSocketAddress(port));
+
+            serverChannel = serverBootstrap.bind().sync().channel();
+            System.out.println("🔗 ReplicaForwarder listening on port " + port + " for SORRIR connections (queue "
+                    + queueCapacity + ", " + policy + ")");
+
+            serverChannel.closeFuture().sync();
+        } catch (Exception e) {
+            if (running) {
+                System.err.println("❌ Failed to start ReplicaForwarder on port " + port + ": " + e.getMessage());
             }
-        } catch (IOException e) {
-            System.err.println("❌ Failed to start ReplicaForwarder on port " + port + ": " + e.getMessage());
         } finally {
             cleanup();
         }
     }
-    
-    private void handleConnection(Socket clientSocket) {
-        try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()))) {
-            
-            // Send queued messages to SORRIR component
-            while (running && !clientSocket.isClosed()) {
-                try {
-                    String message = messageQueue.take(); // Blocking wait for messages
-                    out.println(message);
-                    System.out.println("📤 Forwarded to SORRIR: " + message);
-                    
-                    // Optional: Read response from SORRIR component
-                    if (in.ready()) {
-                        String response = in.readLine();
-                        if (response != null) {
-                            System.out.println("📥 SORRIR response: " + response);
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("❌ Error handling connection: " + e.getMessage());
-        } finally {
-            try {
-                clientSocket.close();
-            } catch (IOException e) {
-                // Ignore close errors
-            }
+
+    ForwarderSubscriber subscribe(Channel channel) {
+        ForwarderSubscriber subscriber = new ForwarderSubscriber(channel, queueCapacity, policy);
+        subscribers.add(subscriber);
+        if (!running) {
+            unsubscribe(subscriber);
+            channel.close();
+        }
+        return subscriber;
+    }
+
+    void unsubscribe(ForwarderSubscriber subscriber) {
+        if (subscribers.remove(subscriber)) {
+            subscriber.close();
+            pastDropped.addAndGet(subscriber.getDropped());
+            pastForwarded.addAndGet(subscriber.getForwarded());
+            System.out.println("👋 SORRIR component " + subscriber.getChannel().remoteAddress() + " disconnected ("
+                    + subscriber.getForwarded() + " forwarded, " + subscriber.getDropped() + " dropped)");
         }
     }
-    
+
+    SampledEventLogger getEvents() {
+        return events;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * @return number of messages queued for all the connected components
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ForwarderSubscriber subscriber : subscribers) {
+            depth += subscriber.getQueueDepth();
+        }
+        return depth;
+    }
+
+    /**
+     * @return largest number of messages queued for a single component
+     */
+    public int getMaxQueueDepth() {
+        int max = 0;
+        for (ForwarderSubscriber subscriber : subscribers) {
+            max = Math.max(max, subscriber.getQueueDepth());
+        }
+        return max;
+    }
+
+    /**
+     * @return number of messages dropped since the forwarder started, because
+     * of full queues or disconnections
+     */
+    public long getDroppedCount() {
+        long dropped = pastDropped.get();
+        for (ForwarderSubscriber subscriber : subscribers) {
+            dropped += subscriber.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * @return number of messages written to components since the forwarder started
+     */
+    public long getForwardedCount() {
+        long forwarded = pastForwarded.get();
+        for (ForwarderSubscriber subscriber : subscribers) {
+            forwarded += subscriber.getForwarded();
+        }
+        return forwarded;
+    }
+
+    /**
+     * @return one line with the counters of the forwarder and the queue depth
+     * of each connected component
+     */
+    public String metrics() {
+        StringBuilder sb = new StringBuilder("ReplicaForwarder " + port + ": subscribers=" + subscribers.size()
+                + " forwarded=" + getForwardedCount() + " dropped=" + getDroppedCount());
+        for (ForwarderSubscriber subscriber : subscribers) {
+            sb.append(" [").append(subscriber.getChannel().remoteAddress())
+              .append(" depth=").append(subscriber.getQueueDepth()).append("/").append(subscriber.getCapacity())
+              .append(" dropped=").append(subscriber.getDropped()).append("]");
+        }
+        return sb.toString();
+    }
+
     public void shutdown() {
         running = false;
-        messageQueue.clear();
-        interrupt();
-        
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // Ignore close errors
-            }
+
+        for (ForwarderSubscriber subscriber : subscribers) {
+            subscriber.close(); // releases blocked senders
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+        if (group != null) {
+            group.shutdownGracefully();
         }
     }
-    
+
     private void cleanup() {
-        if (serverSocket != null && !serverSocket.isClosed()) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                // Ignore close errors
-            }
+        for (ForwarderSubscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+        if (group != null) {
+            group.shutdownGracefully();
         }
     }
-}
\ No newline at end of file
+}
@@ -4,21 +4,53 @@ package bftsmart.mvptools.replica;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
+/**
+ * Handles one SORRIR component connected to the replica forwarder: registers
+ * it as a subscriber, resumes writing when the connection becomes writable
+ * again and logs the lines it sends back.
+ */
 public class ReplicaForwarderThreadHandler extends SimpleChannelInboundHandler<String> {
 
+    private final ReplicaForwarderThread forwarder;
+    private ForwarderSubscriber subscriber;
+
+    public ReplicaForwarderThreadHandler(ReplicaForwarderThread forwarder) {
+        this.forwarder = forwarder;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext channelHandlerContext) throws Exception {
+        System.out.println("🤝 SORRIR component connected to replica forwarder: " + channelHandlerContext.channel().remoteAddress());
+        subscriber = forwarder.subscribe(channelHandlerContext.channel());
+        super.channelActive(channelHandlerContext);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext channelHandlerContext) throws Exception {
+        if (subscriber != null) {
+            forwarder.unsubscribe(subscriber);
+        }
+        super.channelInactive(channelHandlerContext);
+    }
+
     @Override
-    public void channelActive(ChannelHandlerContext channelHandlerContext) {
-        //channelHandlerContext.writeAndFlush(Unpooled.copiedBuffer("Netty Rocks!", CharsetUtil.UTF_8));
+    public void channelWritabilityChanged(ChannelHandlerContext channelHandlerContext) throws Exception {
+        if (subscriber != null && channelHandlerContext.channel().isWritable()) {
+            subscriber.drain();
+        }
+        super.channelWritabilityChanged(channelHandlerContext);
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext channelHandlerContext, Throwable cause) {
-        cause.printStackTrace();
+        System.err.println("❌ Error handling SORRIR connection: " + cause.getMessage());
         channelHandlerContext.close();
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext channelHandlerContext, String s) throws Exception {
-        // System.out.println("ReplicaForwarderThreadHandler received: " + s);
+        if (forwarder.getEvents().sample()) {
+            forwarder.getEvents().logger().info("📥 SORRIR response: {}", s);
+        }
     }
 }
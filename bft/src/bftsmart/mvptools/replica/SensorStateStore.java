@@ -0,0 +1,424 @@
+package bftsmart.mvptools.replica;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bftsmart.tom.server.defaultservices.ChunkedSnapshot;
+
+/**
+ * Replicated state of the mvptools Replica: for each device, its latest
+ * readings, up to historySize of them, ordered by device ID.
+ *
+ * Devices are spread over a fixed number of chunks by the hash of their ID.
+ * Snapshots are made of the serialized chunks, and each chunk keeps its last
+ * serialized form until one of its devices changes, so taking a snapshot only
+ * serializes the chunks changed since the previous one. Likewise, installing
+ * a snapshot only deserializes the chunks that differ from the local ones.
+ *
+ * Each chunk has its own lock, so readings of devices in different chunks
+ * can be recorded concurrently.
+ *
+ * The state can also be frozen without copying it, to be serialized while
+ * readings keep being recorded: frozen chunks are copied on their next
+ * change, so each chunk is copied at most once per frozen state.
+ *
+ * Snapshot format: ChunkedSnapshot of the chunks, so that checkpoints are
+ * hashed with a Merkle tree over them (see ChunkedState)
+ * Chunk format: DEVICES(int) + DEVICES*[ID(int length + UTF-8) + READINGS(int) + READINGS*[TIMESTAMP(long) + VALUE(int length + UTF-8)]]
+ */
+final class SensorStateStore {
+
+    static final int DEFAULT_CHUNKS = 64;
+    static final int DEFAULT_HISTORY_SIZE = 16;
+
+    static final class Reading {
+
+        final long timestamp;
+        final String value;
+
+        Reading(long timestamp, String value) {
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return timestamp + " " + value;
+        }
+    }
+
+    private static final class Chunk {
+
+        TreeMap<String, ArrayDeque<Reading>> devices = new TreeMap<>();
+        byte[] serialized = null; // null while dirty
+        boolean frozen = false; // devices is shared with a frozen state
+    }
+
+    /**
+     * The state at the time freeze() was called.
+     */
+    final class FrozenState {
+
+        private final List<TreeMap<String, ArrayDeque<Reading>>> devices;
+        private final byte[][] serialized;
+
+        private FrozenState(List<TreeMap<String, ArrayDeque<Reading>>> devices, byte[][] serialized) {
+            this.devices = devices;
+            this.serialized = serialized;
+        }
+
+        /**
+         * Serializes the chunks of the frozen state, see getSnapshotChunks().
+         * The chunks serialized here are reused by later snapshots if they
+         * did not change in the meantime.
+         */
+        byte[][] serializeChunks() {
+            byte[][] data = new byte[chunks.length][];
+            int serializedChunks = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                data[i] = serialized[i];
+                if (data[i] == null) {
+                    data[i] = writeChunk(devices.get(i));
+                    serializedChunks++;
+                    synchronized (chunks[i]) {
+                        // still the frozen map if the chunk did not change
+                        if (chunks[i].devices == devices.get(i) && chunks[i].serialized == null) {
+                            chunks[i].serialized = data[i];
+                        }
+                    }
+                }
+            }
+            synchronized (SensorStateStore.this) {
+                lastSerializedChunks = serializedChunks;
+            }
+            return data;
+        }
+
+        /**
+         * Serializes the frozen state, in the format of getSnapshot().
+         */
+        byte[] serialize() {
+            return ChunkedSnapshot.serialize(serializeChunks());
+        }
+
+        /**
+         * @return number of devices in the frozen state
+         */
+        int size() {
+            int size = 0;
+            for (TreeMap<String, ArrayDeque<Reading>> chunk : devices) {
+                size += chunk.size();
+            }
+            return size;
+        }
+    }
+
+    private final int historySize;
+    private final Chunk[] chunks;
+    private final AtomicInteger deviceCount = new AtomicInteger(0);
+
+    // statistics of the last snapshot taken / installed
+    private int lastSerializedChunks = 0;
+    private int lastInstalledChunks = 0;
+
+    SensorStateStore() {
+        this(DEFAULT_CHUNKS, DEFAULT_HISTORY_SIZE);
+    }
+
+    SensorStateStore(int chunkCount, int historySize) {
+        this.historySize = Math.max(1, historySize);
+        this.chunks = new Chunk[Math.max(1, chunkCount)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+    }
+
+    private Chunk chunkOf(String deviceId) {
+        // String.hashCode() is specified, so every replica uses the same chunk
+        return chunks[(deviceId.hashCode() & 0x7fffffff) % chunks.length];
+    }
+
+    /**
+     * Records a reading, discarding the oldest one of the device if its
+     * history is full.
+     *
+     * @return number of readings kept for the device
+     */
+    int put(String deviceId, long timestamp, String value) {
+        Chunk chunk = chunkOf(deviceId);
+        synchronized (chunk) {
+            if (chunk.frozen) {
+                chunk.devices = copy(chunk.devices);
+                chunk.frozen = false;
+            }
+            ArrayDeque<Reading> history = chunk.devices.get(deviceId);
+            if (history == null) {
+                history = new ArrayDeque<>();
+                chunk.devices.put(deviceId, history);
+                deviceCount.incrementAndGet();
+            }
+            if (history.size() == historySize) {
+                history.pollFirst();
+            }
+            history.addLast(new Reading(timestamp, value));
+            chunk.serialized = null;
+            return history.size();
+        }
+    }
+
+    /**
+     * @return the latest reading of the device, or null if it is unknown
+     */
+    Reading latest(String deviceId) {
+        Chunk chunk = chunkOf(deviceId);
+        synchronized (chunk) {
+            ArrayDeque<Reading> history = chunk.devices.get(deviceId);
+            return history != null ? history.peekLast() : null;
+        }
+    }
+
+    /**
+     * @return the readings of the device, oldest first (empty if it is unknown)
+     */
+    List<Reading> history(String deviceId) {
+        Chunk chunk = chunkOf(deviceId);
+        synchronized (chunk) {
+            ArrayDeque<Reading> history = chunk.devices.get(deviceId);
+            return history != null ? new ArrayList<>(history) : new ArrayList<>();
+        }
+    }
+
+    /**
+     * @return the IDs of all devices, in order
+     */
+    List<String> devices() {
+        TreeMap<String, Boolean> ids = new TreeMap<>();
+        for (Chunk chunk : chunks) {
+            synchronized (chunk) {
+                for (String id : chunk.devices.keySet()) {
+                    ids.put(id, Boolean.TRUE);
+                }
+            }
+        }
+        return new ArrayList<>(ids.keySet());
+    }
+
+    int size() {
+        return deviceCount.get();
+    }
+
+    /**
+     * Serializes the state.
+     */
+    byte[] getSnapshot() {
+        return ChunkedSnapshot.serialize(getSnapshotChunks());
+    }
+
+    /**
+     * Serializes the chunks of the state, reusing the serialized form (the
+     * same array) of the chunks that did not change since the previous
+     * snapshot.
+     */
+    synchronized byte[][] getSnapshotChunks() {
+        byte[][] data = new byte[chunks.length][];
+        int serializedChunks = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            synchronized (chunk) {
+                if (chunk.serialized == null) {
+                    chunk.serialized = writeChunk(chunk.devices);
+                    serializedChunks++;
+                }
+                data[i] = chunk.serialized;
+            }
+        }
+        lastSerializedChunks = serializedChunks;
+        return data;
+    }
+
+    /**
+     * Freezes the state, to be serialized later. Readings recorded after
+     * this call are not part of the frozen state.
+     */
+    synchronized FrozenState freeze() {
+        List<TreeMap<String, ArrayDeque<Reading>>> devices = new ArrayList<>(chunks.length);
+        byte[][] serialized = new byte[chunks.length][];
+        for (int i = 0; i < chunks.length; i++) {
+            Chunk chunk = chunks[i];
+            synchronized (chunk) {
+                chunk.frozen = true;
+                devices.add(chunk.devices);
+                serialized[i] = chunk.serialized;
+            }
+        }
+        return new FrozenState(devices, serialized);
+    }
+
+    /**
+     * Replaces the state with the one of a snapshot, deserializing only the
+     * chunks that differ from the local ones. An empty snapshot clears the
+     * state.
+     *
+     * @throws IOException if the snapshot is malformed or has another layout
+     */
+    synchronized void installSnapshot(byte[] state) throws IOException {
+        if (state == null || state.length == 0) {
+            for (Chunk chunk : chunks) {
+                synchronized (chunk) {
+                    deviceCount.addAndGet(-chunk.devices.size());
+                    chunk.devices = new TreeMap<>();
+                    chunk.frozen = false;
+                    chunk.serialized = null;
+                }
+            }
+            lastInstalledChunks = chunks.length;
+            return;
+        }
+
+        // read all chunks before changing anything
+        byte[][] data = ChunkedSnapshot.deserialize(state);
+        int count = data.length;
+        if (count != chunks.length) {
+            throw new IOException("Unsupported snapshot (" + count + " chunks)");
+        }
+        for (byte[] chunk : data) {
+            if (chunk == null) {
+                throw new IOException("Incomplete snapshot");
+            }
+        }
+
+        List<TreeMap<String, ArrayDeque<Reading>>> changed = new ArrayList<>();
+        List<Integer> changedIndexes = new ArrayList<>();
+        boolean[] truncated = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            byte[] local;
+            synchronized (chunks[i]) {
+                local = chunks[i].serialized;
+            }
+            if (local == null || !Arrays.equals(local, data[i])) {
+                changed.add(readChunk(data[i], truncated, i));
+                changedIndexes.add(i);
+            }
+        }
+
+        for (int j = 0; j < changed.size(); j++) {
+            Chunk chunk = chunks[changedIndexes.get(j)];
+            synchronized (chunk) {
+                deviceCount.addAndGet(changed.get(j).size() - chunk.devices.size());
+                chunk.devices = changed.get(j);
+                chunk.frozen = false;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            synchronized (chunks[i]) {
+                // a truncated chunk no longer matches its serialized form
+                chunks[i].serialized = truncated[i] ? null : data[i];
+            }
+        }
+        lastInstalledChunks = changed.size();
+    }
+
+    /**
+     * @return number of chunks serialized by the last getSnapshot()
+     */
+    synchronized int getLastSerializedChunks() {
+        return lastSerializedChunks;
+    }
+
+    /**
+     * @return number of chunks deserialized by the last installSnapshot()
+     */
+    synchronized int getLastInstalledChunks() {
+        return lastInstalledChunks;
+    }
+
+    int getChunkCount() {
+        return chunks.length;
+    }
+
+    private static byte[] writeChunk(TreeMap<String, ArrayDeque<Reading>> devices) {
+        try {
+            ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bOut);
+
+            out.writeInt(devices.size());
+            for (Map.Entry<String, ArrayDeque<Reading>> device : devices.entrySet()) {
+                writeString(out, device.getKey());
+                out.writeInt(device.getValue().size());
+                for (Reading reading : device.getValue()) {
+                    out.writeLong(reading.timestamp);
+                    writeString(out, reading.value);
+                }
+            }
+            out.flush();
+            return bOut.toByteArray();
+        } catch (IOException ex) { // cannot happen with a byte array
+            throw new IllegalStateException("Failed to serialize state", ex);
+        }
+    }
+
+    // length-prefixed UTF-8, as writeUTF() is limited to 65535 bytes
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static TreeMap<String, ArrayDeque<Reading>> copy(TreeMap<String, ArrayDeque<Reading>> devices) {
+        TreeMap<String, ArrayDeque<Reading>> copy = new TreeMap<>();
+        for (Map.Entry<String, ArrayDeque<Reading>> device : devices.entrySet()) {
+            // readings are immutable, only the histories are copied
+            copy.put(device.getKey(), new ArrayDeque<>(device.getValue()));
+        }
+        return copy;
+    }
+
+    private TreeMap<String, ArrayDeque<Reading>> readChunk(byte[] data, boolean[] truncated, int index) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        TreeMap<String, ArrayDeque<Reading>> devices = new TreeMap<>();
+
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Invalid device count " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            String id = readString(in);
+            int readings = in.readInt();
+            if (readings < 0) {
+                throw new IOException("Invalid reading count " + readings);
+            }
+            ArrayDeque<Reading> history = new ArrayDeque<>();
+            for (int j = 0; j < readings; j++) {
+                history.addLast(new Reading(in.readLong(), readString(in)));
+            }
+            // a snapshot taken with a larger history keeps only the latest readings
+            while (history.size() > historySize) {
+                history.pollFirst();
+                truncated[index] = true;
+            }
+            devices.put(id, history);
+        }
+        return devices;
+    }
+}
@@ -3,18 +3,42 @@ package bftsmart.mvptools.sorrirmessage;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.TooLongFrameException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.DataInputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+/**
+ * Decodes length-prefixed SORRIR messages.
+ *
+ * Frame format: FRAME_LENGTH(int) + DATA_LENGTH(int) + DATA(byte[]), where
+ * FRAME_LENGTH = 4 + DATA_LENGTH.
+ *
+ * By default each message is decoded into a UTF-8 String. In binary mode the
+ * data is passed on as a byte[], without decoding it.
+ */
 public class SorrirMessageDecoder extends ByteToMessageDecoder {
 
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
+    private final boolean binary;
+    private final int maxFrameLength;
+
     public SorrirMessageDecoder() {
+        this(false, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param binary if true, messages are decoded into byte[] instead of String
+     * @param maxFrameLength largest frame accepted, larger ones close the connection
+     */
+    public SorrirMessageDecoder(boolean binary, int maxFrameLength) {
+        this.binary = binary;
+        this.maxFrameLength = maxFrameLength;
     }
 
     @Override
@@ -30,6 +54,10 @@ public class SorrirMessageDecoder extends ByteToMessageDecoder {
 
         int dataLength = buffer.getInt(buffer.readerIndex());
 
+        if (dataLength < Integer.BYTES || dataLength > maxFrameLength) {
+            throw new TooLongFrameException("Invalid SORRIR frame length " + dataLength);
+        }
+
         // Wait until the whole data is available.
         if (buffer.readableBytes() < dataLength + Integer.BYTES) {
             // System.out.println("message length " + dataLength);
@@ -41,11 +69,19 @@ public class SorrirMessageDecoder extends ByteToMessageDecoder {
         buffer.skipBytes(Integer.BYTES);
 
         int size = buffer.readInt();
+        if (size < 0 || size > dataLength - Integer.BYTES) {
+            throw new TooLongFrameException("Invalid SORRIR data length " + size);
+        }
         //System.out.println("Size of String to be decoded : " + size);
         byte[] data = new byte[size];
         buffer.readBytes(data);
+        buffer.skipBytes(dataLength - Integer.BYTES - size);
+
+        if (binary) {
+            list.add(data);
+            return;
+        }
 
-        DataInputStream dis = null;
         String message = null;
 
         try {
@@ -5,18 +5,31 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
 
+import java.nio.charset.StandardCharsets;
 
-public class SorrirMessageEncoder extends MessageToByteEncoder<String> {
+
+/**
+ * Encodes SORRIR messages (String, as UTF-8, or byte[]) with the framing read
+ * by SorrirMessageDecoder. Flushing is left to the writer, so several messages
+ * can go out together.
+ */
+public class SorrirMessageEncoder extends MessageToByteEncoder<Object> {
 
 
     public  SorrirMessageEncoder() {}
 
     @Override
-    protected void encode(ChannelHandlerContext context, String message, ByteBuf buffer) throws Exception {
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return msg instanceof String || msg instanceof byte[];
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext context, Object message, ByteBuf buffer) throws Exception {
 
         // System.out.println("Encode " + message + "" + message.length());
 
-        byte[] msgData = message.getBytes();
+        byte[] msgData = (message instanceof byte[]) ? (byte[]) message
+                : ((String) message).getBytes(StandardCharsets.UTF_8);
         int dataLength = Integer.BYTES + msgData.length;
 
         /* msg size */
@@ -27,8 +40,6 @@ public class SorrirMessageEncoder extends MessageToByteEncoder<String> {
         buffer.writeBytes(msgData);
 
         // System.out.println("Encoded " + buffer + buffer.readableBytes());
-
-        context.flush();
     }
 
 }
@@ -0,0 +1,129 @@
+package bftsmart.mvptools.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Logging for the per-request path of the mvptools components. Instead of one
+ * line per request, events are sampled (one in sampleEvery is logged, or all
+ * of them when the logger is at DEBUG level) and counted, and the counters are
+ * logged periodically.
+ *
+ * Usage:
+ *
+ *   if (events.sample()) events.logger().info("request {}", request);
+ *   requests.increment();
+ *
+ * The lines themselves should go to an asynchronous appender (see
+ * config/logback.xml), so the caller never waits for the console.
+ */
+public final class SampledEventLogger {
+
+    /** Default sampling rate, can be changed with -Dbftsmart.mvptools.sample=N (0 disables sampling). */
+    public static final int DEFAULT_SAMPLE_EVERY = Integer.getInteger("bftsmart.mvptools.sample", 100);
+
+    private static final ScheduledExecutorService REPORTER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mvptools-stats");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Logger logger;
+    private final String name;
+    private final int sampleEvery;
+    private final AtomicLong events = new AtomicLong(0);
+
+    private final Map<String, LongAdder> counters = new LinkedHashMap<>();
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private final Map<String, Long> lastValues = new LinkedHashMap<>();
+    private long lastReport = System.nanoTime();
+    private ScheduledFuture<?> report;
+
+    public SampledEventLogger(Class<?> owner, String name) {
+        this(owner, name, DEFAULT_SAMPLE_EVERY);
+    }
+
+    public SampledEventLogger(Class<?> owner, String name, int sampleEvery) {
+        this.logger = LoggerFactory.getLogger(owner);
+        this.name = name;
+        this.sampleEvery = sampleEvery;
+    }
+
+    public Logger logger() {
+        return logger;
+    }
+
+    /**
+     * @return true if the current event should be logged
+     */
+    public boolean sample() {
+        if (logger.isDebugEnabled()) {
+            return true;
+        }
+        return sampleEvery > 0 && logger.isInfoEnabled() && events.incrementAndGet() % sampleEvery == 0;
+    }
+
+    /**
+     * Registers a counter reported with its total and rate.
+     */
+    public synchronized LongAdder counter(String counterName) {
+        return counters.computeIfAbsent(counterName, k -> new LongAdder());
+    }
+
+    /**
+     * Registers a value reported as it is, e.g. a queue depth.
+     */
+    public synchronized void gauge(String gaugeName, LongSupplier value) {
+        gauges.put(gaugeName, value);
+    }
+
+    /**
+     * Starts logging the counters every period (only when some counter changed).
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (report == null) {
+            report = REPORTER.scheduleAtFixedRate(this::report, period, period, unit);
+        }
+    }
+
+    public synchronized void stop() {
+        if (report != null) {
+            report.cancel(false);
+            report = null;
+        }
+    }
+
+    private synchronized void report() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - lastReport) / 1e9;
+        lastReport = now;
+
+        boolean changed = false;
+        StringBuilder sb = new StringBuilder("📊 ").append(name).append(":");
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            long value = counter.getValue().sum();
+            Long last = lastValues.put(counter.getKey(), value);
+            long delta = value - (last != null ? last : 0);
+            changed |= delta != 0;
+            sb.append(' ').append(counter.getKey()).append('=').append(value)
+              .append(" (").append(String.format("%.1f", delta / seconds)).append("/s)");
+        }
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            sb.append(' ').append(gauge.getKey()).append('=').append(gauge.getValue().getAsLong());
+        }
+
+        if (changed) {
+            logger.info(sb.toString());
+        }
+    }
+}
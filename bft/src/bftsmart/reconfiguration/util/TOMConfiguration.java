@@ -40,10 +40,13 @@ public class TOMConfiguration extends Configuration {
     protected int numberOfNonces;
     protected int inQueueSize;
     protected int outQueueSize;
+    protected int senderFlushBytes;
     protected boolean shutdownHookEnabled;
     protected boolean useSenderThread;
+    protected boolean useBinaryCodec;
     private int numNIOThreads;
     private int useSignatures;
+    private int signatureCacheSize;
     private boolean stateTransferEnabled;
     private int checkpointPeriod;
     private int globalCheckpointPeriod;
@@ -52,15 +55,23 @@ public class TOMConfiguration extends Configuration {
     private int ttpId;
     private boolean isToLog;
     private boolean syncLog;
+    private int logGroupSize;
+    private int logGroupDelay;
     private boolean parallelLog;
     private boolean logToDisk;
     private boolean isToWriteCkpsToDisk;
     private boolean syncCkp;
+    private boolean asyncCkp;
     private boolean isBFT;
     private int numRepliers;
+    private int numExecutors;
     private int numNettyWorkers;
     private boolean sameBatchSize;
     private boolean fairbatch;
+    private int pipelineWindow;
+    private int acceptorWorkers;
+    private int treeHashThreshold;
+    private int treeHashChunkSize;
     private String bindAddress;
     
     /* Tulio Ribeiro*/
@@ -181,6 +192,13 @@ public class TOMConfiguration extends Configuration {
                 useSenderThread = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs.remove("system.communication.useBinaryCodec");
+            if (s == null) {
+                useBinaryCodec = false;
+            } else {
+                useBinaryCodec = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.communication.numNIOThreads");
             if (s == null) {
                 numNIOThreads = 2;
@@ -195,6 +213,13 @@ public class TOMConfiguration extends Configuration {
                 useSignatures = Integer.parseInt(s);
             }
 
+            s = (String) configs.remove("system.communication.signatureCacheSize");
+            if (s == null) {
+                signatureCacheSize = 16384;
+            } else {
+                signatureCacheSize = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.state_transfer");
             if (s == null) {
                 stateTransferEnabled = false;
@@ -259,6 +284,16 @@ public class TOMConfiguration extends Configuration {
                 }
             }
 
+            s = (String) configs.remove("system.communication.senderFlushBytes");
+            if (s == null) {
+                senderFlushBytes = 65536;
+            } else {
+                senderFlushBytes = Integer.parseInt(s);
+                if (senderFlushBytes < 0) {
+                    senderFlushBytes = 65536;
+                }
+            }
+
             s = (String) configs.remove("system.totalordermulticast.log");
             if (s != null) {
                     isToLog = Boolean.parseBoolean(s);
@@ -290,6 +325,22 @@ public class TOMConfiguration extends Configuration {
                     syncLog = false;
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.log_group_size");
+            if (s != null) {
+                    logGroupSize = Integer.parseInt(s);
+            } else {
+                    logGroupSize = 64;
+            }
+
+            s = (String) configs
+                            .remove("system.totalordermulticast.log_group_delay");
+            if (s != null) {
+                    logGroupDelay = Integer.parseInt(s);
+            } else {
+                    logGroupDelay = 0;
+            }
+
             s = (String) configs
                             .remove("system.totalordermulticast.checkpoint_to_disk");
             if (s == null) {
@@ -306,6 +357,14 @@ public class TOMConfiguration extends Configuration {
                     syncCkp = Boolean.parseBoolean(s);
             }
 
+            s = (String) configs
+                            .remove("system.totalordermulticast.async_ckp");
+            if (s == null) {
+                    asyncCkp = false;
+            } else {
+                    asyncCkp = Boolean.parseBoolean(s);
+            }
+
             s = (String) configs.remove("system.totalordermulticast.global_checkpoint_period");
             if (s == null) {
                 globalCheckpointPeriod = 1;
@@ -323,6 +382,13 @@ public class TOMConfiguration extends Configuration {
                 numRepliers = Integer.parseInt(s);
             }
  
+            s = (String) configs.remove("system.numexecutors");
+            if (s == null) {
+                numExecutors = 0;
+            } else {
+                numExecutors = Integer.parseInt(s);
+            }
+
             s = (String) configs.remove("system.numnettyworkers");
             if (s == null) {
                 numNettyWorkers = 0;
@@ -354,6 +420,34 @@ public class TOMConfiguration extends Configuration {
                     fairbatch = false;
             }
             
+            s = (String) configs.remove("system.totalordermulticast.pipeline_window");
+            if (s == null) {
+                pipelineWindow = 1;
+            } else {
+                pipelineWindow = Math.max(1, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.acceptor_workers");
+            if (s == null) {
+                acceptorWorkers = 0;
+            } else {
+                acceptorWorkers = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.tree_hash_threshold");
+            if (s == null) {
+                treeHashThreshold = 0;
+            } else {
+                treeHashThreshold = Math.max(0, Integer.parseInt(s));
+            }
+
+            s = (String) configs.remove("system.totalordermulticast.tree_hash_chunk");
+            if (s == null) {
+                treeHashChunkSize = 1048576;
+            } else {
+                treeHashChunkSize = Math.max(1, Integer.parseInt(s));
+            }
+            
             /**
              * Tulio Ribeiro 
              * 
@@ -482,10 +576,22 @@ public class TOMConfiguration extends Configuration {
         return outQueueSize;
     }
 
+    /**
+     * Maximum number of bytes the sender thread of a replica connection
+     * writes before flushing the socket (0 flushes after every message)
+     */
+    public int getSenderFlushBytes() {
+        return senderFlushBytes;
+    }
+
     public boolean isUseSenderThread() {
         return useSenderThread;
     }
 
+    public boolean isUseBinaryCodec() {
+        return useBinaryCodec;
+    }
+
     /**
      *     *
      */
@@ -505,6 +611,13 @@ public class TOMConfiguration extends Configuration {
         return useSignatures;
     }
 
+    /**
+     * Number of client requests whose signature is remembered as verified
+     */
+    public int getSignatureCacheSize() {
+        return signatureCacheSize;
+    }
+
     /**
      * Indicates the checkpoint period used when fetching the state from the application
      */
@@ -520,6 +633,10 @@ public class TOMConfiguration extends Configuration {
 		return syncCkp;
 	}
 
+	public boolean isToWriteAsyncCkp() {
+		return asyncCkp;
+	}
+
 	public boolean isToLog() {
 		return isToLog;
 	}
@@ -528,6 +645,14 @@ public class TOMConfiguration extends Configuration {
 		return syncLog;
 	}
 
+	public int getLogGroupSize() {
+		return logGroupSize;
+	}
+
+	public int getLogGroupDelay() {
+		return logGroupDelay;
+	}
+
 	public boolean logToDisk() {
 		return logToDisk;
 	}
@@ -560,6 +685,10 @@ public class TOMConfiguration extends Configuration {
         return numRepliers;
     }
     
+    public int getNumExecutors() {
+        return numExecutors;
+    }
+
     public int getNumNettyWorkers() {
         return numNettyWorkers;
     }
@@ -572,6 +701,22 @@ public class TOMConfiguration extends Configuration {
         return fairbatch;
     }
     
+    public int getPipelineWindow() {
+        return pipelineWindow;
+    }
+
+    public int getAcceptorWorkers() {
+        return acceptorWorkers;
+    }
+
+    public int getTreeHashThreshold() {
+        return treeHashThreshold;
+    }
+
+    public int getTreeHashChunkSize() {
+        return treeHashChunkSize;
+    }
+    
     public String getBindAddress() {
         return bindAddress;
     }
@@ -31,10 +31,16 @@ import bftsmart.statemanagement.SMMessage;
 public class StandardSMMessage extends SMMessage {
 
 	private int replica;
+	private byte[][] chunkHashes; // chunks the requesting replica has, see DefaultRecoverable.getChunkHashes()
 
     public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader) {
+    	this(sender, cid, type, replica, state, view, regency, leader, null);
+    }
+
+    public StandardSMMessage(int sender, int cid, int type, int replica, ApplicationState state, View view, int regency, int leader, byte[][] chunkHashes) {
     	super(sender, cid, type, state, view, regency, leader);
     	this.replica = replica;
+    	this.chunkHashes = chunkHashes;
     }
 	
     public StandardSMMessage() {
@@ -49,15 +55,40 @@ public class StandardSMMessage extends SMMessage {
         return replica;
     }
 
+    /**
+     * Retrieves the hashes of the chunks of the state of the requesting replica
+     * @return The hashes of the chunks, or null if the replica has none
+     */
+    public byte[][] getChunkHashes() {
+        return chunkHashes;
+    }
+
     @Override
     public void writeExternal(ObjectOutput out) throws IOException{
         super.writeExternal(out);
         out.writeInt(replica);
+        if (chunkHashes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(chunkHashes.length);
+            for (byte[] hash : chunkHashes) {
+                out.writeInt(hash.length);
+                out.write(hash);
+            }
+        }
     }
 
     @Override
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException{
         super.readExternal(in);
         replica = in.readInt();
+        int count = in.readInt();
+        if (count >= 0) {
+            chunkHashes = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                chunkHashes[i] = new byte[in.readInt()];
+                in.readFully(chunkHashes[i]);
+            }
+        }
     }
 }
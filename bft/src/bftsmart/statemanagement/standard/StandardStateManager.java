@@ -33,6 +33,7 @@ import bftsmart.statemanagement.ApplicationState;
 import bftsmart.statemanagement.SMMessage;
 import bftsmart.tom.core.DeliveryThread;
 import bftsmart.tom.core.TOMLayer;
+import bftsmart.tom.server.defaultservices.DefaultRecoverable;
 import bftsmart.tom.util.TOMUtil;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
@@ -93,8 +94,12 @@ public class StandardStateManager extends StateManager {
 
         changeReplica(); // always ask the complete state to a different replica
 
+        // the replica sending the state leaves out the chunks this replica has
+        byte[][] chunkHashes = (dt.getRecoverer() instanceof DefaultRecoverable
+                ? ((DefaultRecoverable) dt.getRecoverer()).getChunkHashes() : null);
+
         SMMessage smsg = new StandardSMMessage(SVController.getStaticConf().getProcessId(),
-                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1);
+                waitingCID, TOMUtil.SM_REQUEST, replica, null, null, -1, -1, chunkHashes);
         tomLayer.getCommunication().send(SVController.getCurrentViewOtherAcceptors(), smsg);
 
         logger.info("I just sent a request to the other replicas for the state up to CID " + waitingCID);
@@ -131,7 +136,9 @@ public class StandardStateManager extends StateManager {
             StandardSMMessage stdMsg = (StandardSMMessage) msg;
             boolean sendState = stdMsg.getReplica() == SVController.getStaticConf().getProcessId();
 
-            ApplicationState thisState = dt.getRecoverer().getState(msg.getCID(), sendState);
+            ApplicationState thisState = (dt.getRecoverer() instanceof DefaultRecoverable
+                    ? ((DefaultRecoverable) dt.getRecoverer()).getState(msg.getCID(), sendState, stdMsg.getChunkHashes())
+                    : dt.getRecoverer().getState(msg.getCID(), sendState));
             if (thisState == null) {
 
                 logger.warn("For some reason, I am sending a void state");
@@ -186,6 +193,9 @@ public class StandardStateManager extends StateManager {
                 if (msg.getSender() == replica && msg.getState().getSerializedState() != null) {
                     logger.debug("Expected replica sent state. Setting it to state");
                     state = msg.getState();
+                    if (dt.getRecoverer() instanceof DefaultRecoverable) {
+                        ((DefaultRecoverable) dt.getRecoverer()).completeState(state);
+                    }
                     if (stateTimer != null) {
                         stateTimer.cancel();
                     }
@@ -200,7 +210,9 @@ public class StandardStateManager extends StateManager {
                     int haveState = 0;
                     if (state != null) {
                         byte[] hash = null;
-                        hash = tomLayer.computeHash(state.getSerializedState());
+                        hash = (dt.getRecoverer() instanceof DefaultRecoverable
+                                ? ((DefaultRecoverable) dt.getRecoverer()).computeStateHash(state.getSerializedState())
+                                : tomLayer.computeHash(state.getSerializedState()));
                         if (otherReplicaState != null) {
                             if (Arrays.equals(hash, otherReplicaState.getStateHash())) {
                                 haveState = 1;
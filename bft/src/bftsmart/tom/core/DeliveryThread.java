@@ -16,6 +16,7 @@ limitations under the License.
 package bftsmart.tom.core;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import java.util.concurrent.locks.Condition;
@@ -54,6 +55,9 @@ public final class DeliveryThread extends Thread {
 	private final ServerViewController controller;
 	private final Lock decidedLock = new ReentrantLock();
 	private final Condition notEmptyQueue = decidedLock.newCondition();
+	// decisions from pipelined consensus that finished before the previous ones
+	private final HashMap<Integer, Decision> outOfOrder = new HashMap<>();
+	private final Lock outOfOrderLock = new ReentrantLock();
 
 	/**
 	 * Creates a new instance of DeliveryThread
@@ -85,6 +89,48 @@ public final class DeliveryThread extends Thread {
 	 */
 	public void delivery(Decision dec) {
 
+		if (tomLayer.getPipelineWindow() > 1) {
+			deliveryInOrder(dec);
+		} else {
+			deliveryDecided(dec);
+		}
+	}
+
+	/**
+	 * With pipelining, consensus instances may finish out of order. Decisions
+	 * ahead of the next expected consensus are held back until all the previous
+	 * ones are delivered.
+	 * 
+	 * @param dec Decision established from the consensus
+	 */
+	private void deliveryInOrder(Decision dec) {
+		outOfOrderLock.lock();
+		if (dec.getConsensusId() > tomLayer.getLastExec() + 1) {
+			logger.debug("Consensus " + dec.getConsensusId() + " finished before consensus "
+					+ (tomLayer.getLastExec() + 1) + ", holding its decision back");
+			outOfOrder.put(dec.getConsensusId(), dec);
+		} else {
+			deliveryDecided(dec);
+		}
+		deliverOutOfOrder();
+		outOfOrderLock.unlock();
+	}
+
+	/**
+	 * Delivers the decisions held back by deliveryInOrder that became next in
+	 * line.
+	 */
+	private void deliverOutOfOrder() {
+		outOfOrderLock.lock();
+		Decision next;
+		while ((next = outOfOrder.remove(tomLayer.getLastExec() + 1)) != null) {
+			deliveryDecided(next);
+		}
+		outOfOrderLock.unlock();
+	}
+
+	private void deliveryDecided(Decision dec) {
+
 		try {
 			decidedLock.lock();
 			decided.put(dec);
@@ -164,6 +210,11 @@ public final class DeliveryThread extends Thread {
 			tomLayer.execManager.removeOutOfContexts(stableConsensus);
 		}
 
+		// pipelined consensus started before the state was fetched are stale
+		if (tomLayer.getPipelineWindow() > 1) {
+			tomLayer.discardPipelinedExecs(lastCID);
+		}
+
 		// define that end of this execution
 		// stateManager.setWaiting(-1);
 		tomLayer.setNoExec();
@@ -171,6 +222,10 @@ public final class DeliveryThread extends Thread {
 		logger.info("Current decided size: " + decided.size());
 		decided.clear();
 
+		outOfOrderLock.lock();
+		outOfOrder.clear();
+		outOfOrderLock.unlock();
+
 		logger.info("All finished up to " + lastCID);
 	}
 
@@ -268,6 +323,12 @@ public final class DeliveryThread extends Thread {
 							// ******* EDUARDO END **************//
 
 							lastReconfig = -2;
+
+							if (tomLayer.getPipelineWindow() > 1) {
+								// the next consensus may have deferred its ACCEPT until this one was executed
+								tomLayer.acceptor.sendDeferredAccept();
+								deliverOutOfOrder();
+							}
 						}
 					}
 
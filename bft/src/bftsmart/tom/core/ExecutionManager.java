@@ -18,13 +18,10 @@ package bftsmart.tom.core;
 import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Queue;
-import java.util.TreeMap;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.consensus.Decision;
@@ -33,6 +30,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.consensus.roles.Acceptor;
 import bftsmart.consensus.roles.Proposer;
 import bftsmart.reconfiguration.ServerViewController;
+import bftsmart.tom.util.ConsensusWindow;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,12 +54,14 @@ public final class ExecutionManager {
     //private int[] acceptors; // Process ID's of all replicas, including this one
     //private int[] otherAcceptors; // Process ID's of all replicas, except this one
     //******* EDUARDO END **************//
-    private Map<Integer, Consensus> consensuses = new TreeMap<Integer, Consensus>(); // Consensuses
+    // The tables below are indexed by consensus id, in rings that hold all the
+    // consensuses up to the paxos high mark
+    private ConsensusWindow<Consensus> consensuses; // Consensuses
     private ReentrantLock consensusesLock = new ReentrantLock(); //lock for consensuses table
     // Paxos messages that were out of context (that didn't belong to the consensus that was/is is progress
-    private Map<Integer, List<ConsensusMessage>> outOfContext = new HashMap<Integer, List<ConsensusMessage>>();
+    private ConsensusWindow<List<ConsensusMessage>> outOfContext;
     // Proposes that were out of context (that belonged to future consensuses, and not the one running at the time)
-    private Map<Integer, ConsensusMessage> outOfContextProposes = new HashMap<Integer, ConsensusMessage>();
+    private ConsensusWindow<ConsensusMessage> outOfContextProposes;
     private ReentrantLock outOfContextLock = new ReentrantLock(); //lock for out of context
     private boolean stopped = false; // Is the execution manager stopped?
     // When the execution manager is stopped, incoming paxos messages are stored here
@@ -76,8 +76,6 @@ public final class ExecutionManager {
     private int revivalHighMark; // Paxos high mark for consensus instances when this replica CID equals 0
     private int timeoutHighMark; // Paxos high mark for a timed-out replica
     
-    private int lastRemovedCID = 0; // Addition to fix memory leak
-        
     /******************************************************************/
     
     // This is the new way of storing info about the leader,
@@ -105,6 +103,12 @@ public final class ExecutionManager {
         this.revivalHighMark = this.controller.getStaticConf().getRevivalHighMark();
         this.timeoutHighMark = this.controller.getStaticConf().getTimeoutHighMark();
         /******************************************************************/
+
+        int capacity = Math.max(paxosHighMark, Math.max(revivalHighMark, timeoutHighMark))
+                + this.controller.getStaticConf().getPipelineWindow() + 4;
+        this.consensuses = new ConsensusWindow<>(capacity);
+        this.outOfContext = new ConsensusWindow<>(capacity);
+        this.outOfContextProposes = new ConsensusWindow<>(capacity);
         //******* EDUARDO END **************//
         
         // Get initial leader
@@ -222,6 +226,10 @@ public final class ExecutionManager {
         
         int inExec = tomLayer.getInExec();
         
+        int lastStarted = tomLayer.getLastStarted();
+        
+        int window = tomLayer.getPipelineWindow();
+        
         logger.debug("Received message  " + msg);
         logger.debug("I'm at consensus " + 
                 inExec + " and my last consensus is " + lastConsId);
@@ -253,9 +261,10 @@ public final class ExecutionManager {
                 stoppedMsgsLock.unlock();
             } else {
                 if (isRetrievingState || 
-                        msg.getNumber() > (lastConsId + 1) || 
-                        (inExec != -1 && inExec < msg.getNumber()) || 
-                        (inExec == -1 && msg.getType() != MessageFactory.PROPOSE)) { //not propose message for the next consensus
+                        msg.getNumber() > (lastConsId + window) || 
+                        (inExec != -1 && lastStarted < msg.getNumber() && //not a running consensus...
+                            (msg.getType() != MessageFactory.PROPOSE || msg.getNumber() > lastStarted + 1)) || //...nor the next one to start
+                        (inExec == -1 && (msg.getType() != MessageFactory.PROPOSE || msg.getNumber() > lastConsId + 1))) { //not propose message for the next consensus
                     logger.debug("Message for consensus " + 
                             msg.getNumber() + " is out of context, adding it to out of context set");
                     
@@ -319,27 +328,52 @@ public final class ExecutionManager {
     }
 
     /**
-     * Removes a consensus from this manager
+     * Removes a consensus from this manager, together with all the
+     * consensuses (and out of context messages) that come before it
      * @param id ID of the consensus to be removed
      * @return The consensus that was removed
      */
     public Consensus removeConsensus(int id) {
         consensusesLock.lock();
         /******* BEGIN CONSENSUS CRITICAL SECTION *******/
-        Consensus consensus = consensuses.remove(id);
+        Consensus consensus = consensuses.get(id);
 
         // Addition to fix memory leak
-        for (int i = lastRemovedCID; i < id; i++) consensuses.remove(i);
-        lastRemovedCID = id;
+        consensuses.removeUpTo(id);
         
         /******* END CONSENSUS CRITICAL SECTION *******/
         consensusesLock.unlock();
 
+        outOfContextLock.lock();
+        /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextProposes.removeUpTo(id);
+        outOfContext.removeUpTo(id);
+
+        /******* END OUTOFCONTEXT CRITICAL SECTION *******/
+        outOfContextLock.unlock();
+
+        return consensus;
+    }
+
+    /**
+     * Removes a single consensus from this manager, together with the out of
+     * context messages stored for it. Unlike removeConsensus, this does not
+     * garbage-collect the consensuses that come before it.
+     * 
+     * @param id ID of the consensus to be discarded
+     * @return The consensus that was discarded, or null if it did not exist
+     */
+    public Consensus discardConsensus(int id) {
+        consensusesLock.lock();
+        /******* BEGIN CONSENSUS CRITICAL SECTION *******/
+        Consensus consensus = consensuses.remove(id);
+        /******* END CONSENSUS CRITICAL SECTION *******/
+        consensusesLock.unlock();
+
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextProposes.remove(id);
         outOfContext.remove(id);
-
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextLock.unlock();
 
@@ -351,21 +385,8 @@ public final class ExecutionManager {
 
         outOfContextLock.lock();
         /******* BEGIN OUTOFCONTEXT CRITICAL SECTION *******/
-        Integer[] keys = new Integer[outOfContextProposes.keySet().size()];
-        outOfContextProposes.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContextProposes.remove(keys[i]);
-            }
-        }
-
-        keys = new Integer[outOfContext.keySet().size()];
-        outOfContext.keySet().toArray(keys);
-        for (int i = 0; i < keys.length; i++) {
-            if (keys[i] <= id) {
-                outOfContext.remove(keys[i]);
-            }
-        }
+        outOfContextProposes.removeUpTo(id);
+        outOfContext.removeUpTo(id);
 
         /******* END OUTOFCONTEXT CRITICAL SECTION *******/
         outOfContextLock.unlock();
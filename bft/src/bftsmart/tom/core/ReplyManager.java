@@ -6,100 +6,119 @@ package bftsmart.tom.core;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.tom.core.messages.TOMMessage;
-import io.netty.channel.Channel;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 import org.slf4j.LoggerFactory;
 
 
 /**
+ * Sends replies to clients from a pool of threads, so that the delivery
+ * thread does not wait for the network. All the replies of a client are
+ * sent by the same thread, in the order they were given to the manager.
  *
  * @author joao
  */
 public class ReplyManager {
-        
-    private LinkedList<ReplyThread> threads;
-    private int iteration;
-    
+
+    private final ReplyThread[] threads;
+
     public ReplyManager(int numThreads, ServerCommunicationSystem cs) {
-        
-        this.threads = new LinkedList();
-        this.iteration = 0;
-        
+
+        this.threads = new ReplyThread[numThreads];
+
         for (int i = 0; i < numThreads; i++) {
-            this.threads.add(new ReplyThread(cs));
+            this.threads[i] = new ReplyThread(cs, i);
         }
-        
+
         for (ReplyThread t : threads)
             t.start();
     }
-    
+
     public void send (TOMMessage msg) {
-        
-        iteration++;
-        threads.get((iteration % threads.size())).send(msg);
+
+        threads[(msg.getSender() & Integer.MAX_VALUE) % threads.length].send(msg);
 
     }
 }
 class ReplyThread extends Thread {
-        
-    private LinkedBlockingQueue<TOMMessage> replies;
-    private ServerCommunicationSystem cs = null;
-    
-    private final Lock queueLock = new ReentrantLock();
-    private final Condition notEmptyQueue = queueLock.newCondition();
-    
-    private Map<Integer, Channel> channels;
-    
-    ReplyThread(ServerCommunicationSystem cs) {
+
+    // replies taken from the queue at once, to bound the latency of other clients
+    private static final int MAX_DRAIN = 1024;
+
+    // forget the per-client lists when there are more clients than this
+    private static final int MAX_CACHED_CLIENTS = 4096;
+
+    private final ConcurrentLinkedQueue<TOMMessage> replies;
+    private final ServerCommunicationSystem cs;
+
+    private volatile boolean waiting = false;
+
+    private final Map<Integer, List<TOMMessage>> byClient;
+    private final List<Integer> pending; // clients with replies to send
+
+    ReplyThread(ServerCommunicationSystem cs, int id) {
+        super("Reply Thread " + id);
         this.cs = cs;
-        this.replies = new LinkedBlockingQueue<TOMMessage>();
-        this.channels = new HashMap<>();
+        this.replies = new ConcurrentLinkedQueue<>();
+        this.byClient = new HashMap<>();
+        this.pending = new ArrayList<>();
+        this.setDaemon(true);
     }
-    
+
     void send(TOMMessage msg) {
-        
-        try {
-            queueLock.lock();
-            replies.put(msg);
-            notEmptyQueue.signalAll();
-            queueLock.unlock();
-        } catch (InterruptedException ex) {
-            Logger.getLogger(ReplyThread.class.getName()).log(Level.SEVERE, null, ex);
-        }
+
+        replies.offer(msg);
+        if (waiting) LockSupport.unpark(this);
     }
-    
+
     public void run() {
 
 
         while (true) {
 
-            try {
-                
-                LinkedList<TOMMessage> list = new LinkedList<>();
-                
-                queueLock.lock();
-                while (replies.isEmpty()) notEmptyQueue.await(10, TimeUnit.MILLISECONDS);
-                replies.drainTo(list);
-                queueLock.unlock();
-                
-                for (TOMMessage msg : list) {
-                    
-                    cs.getClientsConn().send(new int[] {msg.getSender()}, msg.reply, false);             
+            TOMMessage msg = replies.poll();
+
+            if (msg == null) {
+                waiting = true;
+                // a reply offered before this check is not missed: either it is seen
+                // here, or its sender sees the flag and unparks this thread
+                if (replies.isEmpty()) LockSupport.park(this);
+                waiting = false;
+                continue;
+            }
+
+            // group the available replies by client, keeping their order
+            int drained = 0;
+            do {
+                List<TOMMessage> list = byClient.get(msg.getSender());
+                if (list == null) {
+                    list = new ArrayList<>();
+                    byClient.put(msg.getSender(), list);
+                }
+                if (list.isEmpty()) pending.add(msg.getSender());
+                list.add(msg.reply);
+                drained++;
+            } while (drained < MAX_DRAIN && (msg = replies.poll()) != null);
+
+            for (int client : pending) {
+
+                List<TOMMessage> list = byClient.get(client);
+                try {
+                    cs.getClientsConn().send(client, list, false);
+                } catch (RuntimeException ex) {
+                    LoggerFactory.getLogger(this.getClass()).error("Could not send replies", ex);
                 }
-            } catch (InterruptedException ex) {
-                LoggerFactory.getLogger(this.getClass()).error("Could not retrieve reply from queue",ex);
+                list.clear();
             }
+            pending.clear();
+
+            if (byClient.size() > MAX_CACHED_CLIENTS) byClient.clear();
 
         }
 
     }
-}
\ No newline at end of file
+}
@@ -30,7 +30,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
 import java.security.SignedObject;
 import java.util.Arrays;
 import java.util.HashSet;
@@ -73,7 +72,6 @@ public class Synchronizer {
     private final ServerCommunicationSystem communication;
     private final StateManager stateManager;
     private final Acceptor acceptor;
-    private final MessageDigest md;
             
     // Attributes to temporarely store synchronization info
     // if state transfer is required for synchronization
@@ -96,10 +94,9 @@ public class Synchronizer {
         this.communication = this.tom.getCommunication();
         this.stateManager = this.tom.stateManager;
         this.acceptor = this.tom.acceptor;
-        this.md = this.tom.md;
         
         this.outOfContextLC = new HashSet<>();
-	this.lcManager = new LCManager(this.tom,this.controller, this.md);
+	this.lcManager = new LCManager(this.tom,this.controller, this.tom.getHashService());
     }
 
     public LCManager getLCManager() {
@@ -1187,6 +1184,9 @@ public class Synchronizer {
 
             }
 
+            // the other pipelined instances are abandoned, the new leader will propose them again
+            if (tom.getPipelineWindow() > 1) tom.discardPipelinedExecs(currentCID);
+
             // resume normal operation
             execManager.restart();
             //leaderChanged = true;
@@ -17,7 +17,6 @@
 package bftsmart.tom.core;
 
 import java.io.Serializable;
-import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
@@ -44,6 +43,7 @@ import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.RequestVerifier;
 import bftsmart.tom.util.BatchBuilder;
 import bftsmart.tom.util.BatchReader;
+import bftsmart.tom.util.HashService;
 import bftsmart.tom.util.TOMUtil;
 
 import java.util.HashMap;
@@ -76,6 +76,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
     //thread pool used to paralelise verification of requests contained in a batch
     private ExecutorService verifierExecutor = null;
+    private int verifierWorkers;
     
     /**
      * Manage timers for pending requests
@@ -93,14 +94,18 @@ public final class TOMLayer extends Thread implements RequestReceiver {
     /**
      * The id of the consensus being executed (or -1 if there is none)
      */
-    private int inExecution = -1;
-    private int lastExecuted = -1;
+    private volatile int inExecution = -1;
+    private volatile int lastExecuted = -1;
+    /**
+     * The id of the highest consensus started so far (with pipelining, the
+     * instances between inExecution and this one are also running)
+     */
+    private volatile int lastStarted = -1;
+    private final int pipelineWindow; // max number of consensus instances in flight
 
-    public MessageDigest md;
+    private final HashService hashService;
     private Signature engine;
 
-    private ReentrantLock hashLock = new ReentrantLock();
-
     //the next two are used to generate non-deterministic data in a deterministic way (by the leader)
     public BatchBuilder bb = new BatchBuilder(System.nanoTime());
 
@@ -146,6 +151,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         this.acceptor = a;
         this.communication = cs;
         this.controller = controller;
+        this.pipelineWindow = this.controller.getStaticConf().getPipelineWindow();
         
         /*Tulio Ribeiro*/
         this.privateKey = this.controller.getStaticConf().getPrivateKey();
@@ -158,6 +164,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         // or use a many as the number of cores available
         int nWorkers = this.controller.getStaticConf().getNumNettyWorkers();
         nWorkers = nWorkers > 0 ? nWorkers : Runtime.getRuntime().availableProcessors();
+        this.verifierWorkers = nWorkers;
         this.verifierExecutor = Executors.newWorkStealingPool(nWorkers);
         
         //do not create a timer manager if the timeout is 0
@@ -167,11 +174,8 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             this.requestsTimer = new RequestsTimer(this, communication, this.controller); // Create requests timers manager (a thread)
         }
         
-        try {
-            this.md = TOMUtil.getHashEngine();
-        } catch (Exception e) {
-            logger.error("Failed to get message digest engine",e);
-        }
+        this.hashService = new HashService(this.controller.getStaticConf().getTreeHashThreshold(),
+                this.controller.getStaticConf().getTreeHashChunkSize());
 
         try {
             this.engine = TOMUtil.getSigEngine();
@@ -217,12 +221,14 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      * @return Hash for the specified TOM message
      */
     public final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
+        return hashService.hashValue(data);
+    }
 
-        return ret;
+    /**
+     * @return the service used to hash proposed values
+     */
+    public HashService getHashService() {
+        return hashService;
     }
 
     public SignedObject sign(Serializable obj) {
@@ -291,14 +297,86 @@ public final class TOMLayer extends Thread implements RequestReceiver {
      */
     public void setInExec(int inEx) {
         proposeLock.lock();
+        if (inEx == -1 && lastStarted > lastExecuted) {
+            inEx = lastExecuted + 1; // a pipelined instance is still running
+        }
         logger.debug("Modifying inExec from " + this.inExecution + " to " + inEx);
         this.inExecution = inEx;
-        if (inEx == -1 && !isRetrievingState()) {
+        if (inEx > lastStarted) lastStarted = inEx;
+        if ((inEx == -1 || pipelineWindow > 1) && !isRetrievingState()) {
             canPropose.signalAll();
         }
         proposeLock.unlock();
     }
 
+    /**
+     * Marks a consensus as started, either because this replica proposed it
+     * or because it accepted the leader's proposal for it
+     *
+     * @param cid ID of the consensus that was started
+     */
+    public void startExec(int cid) {
+        proposeLock.lock();
+        if (this.inExecution == -1) {
+            logger.debug("Modifying inExec from " + this.inExecution + " to " + cid);
+            this.inExecution = cid;
+        }
+        if (cid > lastStarted) lastStarted = cid;
+        proposeLock.unlock();
+    }
+
+    /**
+     * Gets the ID of the highest consensus started so far
+     *
+     * @return ID of the highest consensus started so far
+     */
+    public int getLastStarted() {
+        return this.lastStarted;
+    }
+
+    /**
+     * Gets the maximum number of consensus instances that can be running at
+     * the same time (system.totalordermulticast.pipeline_window)
+     *
+     * @return Size of the pipelining window
+     */
+    public int getPipelineWindow() {
+        return this.pipelineWindow;
+    }
+
+    /**
+     * Checks if the leader can start a new consensus instance, i.e., if there
+     * is no consensus running or the pipelining window is not yet full
+     *
+     * @return True if a new consensus can be started, false otherwise
+     */
+    private boolean canStartExec() {
+        return this.inExecution == -1 || lastStarted - lastExecuted < pipelineWindow;
+    }
+
+    /**
+     * Discards the pipelined consensus instances started after the specified
+     * one. Invoked by the synchronization phase, which only carries the lowest
+     * running instance over to the new regency. Since no correct replica sends
+     * an ACCEPT for an instance before deciding the previous one, none of the
+     * discarded instances can have been decided.
+     *
+     * @param cid ID of the consensus that is resumed in the new regency
+     */
+    public void discardPipelinedExecs(int cid) {
+        proposeLock.lock();
+        cid = Math.max(cid, lastExecuted);
+        for (int i = cid + 1; i <= lastStarted; i++) {
+            Consensus cons = execManager.discardConsensus(i);
+            if (cons != null && cons.getDecision().proposedRequests != null) {
+                logger.info("Discarding pipelined consensus " + i + ", its requests will be proposed again");
+                clientsManager.requestsNotProposed(cons.getDecision().proposedRequests);
+            }
+        }
+        if (lastStarted > cid) lastStarted = cid;
+        proposeLock.unlock();
+    }
+
     /**
      * This method blocks until the PaW algorithm is finished
      */
@@ -383,6 +461,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             dec.firstMessageProposed = pendingRequests.getFirst();
             dec.firstMessageProposed.consensusStartTime = System.nanoTime();
         }
+        if (pipelineWindow > 1) dec.proposedRequests = pendingRequests;
         dec.batchSize = numberOfMessages;
 
         logger.debug("Creating a PROPOSE with " + numberOfMessages + " msgs");
@@ -414,10 +493,10 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             
             if (!doWork) break;
 
-            // blocks until the current consensus finishes
+            // blocks until the current consensus finishes (or the pipelining window has room)
             proposeLock.lock();
 
-            if (getInExec() != -1) { //there is some consensus running
+            while (doWork && !canStartExec()) { //there are too many consensus running
                 logger.debug("Waiting for consensus " + getInExec() + " termination.");
                 canPropose.awaitUninterruptibly();
             }
@@ -446,11 +525,11 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
             if ((execManager.getCurrentLeader() == this.controller.getStaticConf().getProcessId()) && //I'm the leader
                     (clientsManager.havePendingRequests()) && //there are messages to be ordered
-                    (getInExec() == -1)) { //there is no consensus in execution
+                    canStartExec()) { //there is no consensus in execution, or the pipeline has room
 
                 // Sets the current consensus
-                int execId = getLastExec() + 1;
-                setInExec(execId);
+                int execId = Math.max(getLastExec(), getLastStarted()) + 1;
+                startExec(execId);
 
                 Decision dec = execManager.getConsensus(execId).getDecision();
 
@@ -522,25 +601,36 @@ public final class TOMLayer extends Thread implements RequestReceiver {
             
             if (addToClientManager) {
 
-                //use parallelization to validate the request
-                final CountDownLatch latch = new CountDownLatch(requests.length);
+                //use parallelization to validate the requests, with one task per
+                //worker validating a contiguous chunk of the batch
+                final TOMMessage[] batch = requests;
+                final int chunks = Math.min(verifierWorkers, batch.length);
+                final CountDownLatch latch = new CountDownLatch(chunks);
 
-                for (TOMMessage request : requests) {
+                for (int c = 0; c < chunks; c++) {
+                    
+                    final int from = (int) ((long) batch.length * c / chunks);
+                    final int to = (int) ((long) batch.length * (c + 1) / chunks);
                     
                     verifierExecutor.submit(() -> {
-                        try {
-                            
-                            //notifies the client manager that this request was received and get
-                            //the result of its validation
-                            request.isValid = clientsManager.requestReceived(request, false);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
-                        }
-                        catch (Exception e) {
-                            
-                            logger.error("Error while validating requests", e);
-                            if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
-                            
+                        for (int i = from; i < to; i++) {
+                            TOMMessage request = batch[i];
+                            try {
+
+                                //verifies the signature without holding the client lock, then
+                                //notifies the client manager that this request was received and get
+                                //the result of its validation
+                                clientsManager.verifySignature(request);
+                                request.isValid = clientsManager.requestReceived(request, false);
+                                if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
+
+                            }
+                            catch (Exception e) {
+
+                                logger.error("Error while validating requests", e);
+                                if (Thread.holdsLock(clientsManager.getClientsLock())) clientsManager.getClientsLock().unlock();
+
+                            }
                         }
                         
                         latch.countDown();
@@ -599,16 +689,28 @@ public final class TOMLayer extends Thread implements RequestReceiver {
 
         proposeLock.lock();
         this.inExecution = -1;
+        this.lastStarted = -1;
         //ot.addUpdate();
         canPropose.signalAll();
         proposeLock.unlock();
     }
 
     public void processOutOfContext() {
+        // with pipelining, proposes for any consensus inside the window can be processed
         for (int nextConsensus = getLastExec() + 1;
-                execManager.receivedOutOfContextPropose(nextConsensus);
-                nextConsensus = getLastExec() + 1) {
-            execManager.processOutOfContextPropose(execManager.getConsensus(nextConsensus));
+                nextConsensus <= getLastExec() + pipelineWindow;
+                nextConsensus++) {
+            if (execManager.receivedOutOfContextPropose(nextConsensus)) {
+                final int cid = nextConsensus;
+                final boolean started = cid <= getLastStarted();
+                acceptor.execute(cid, () -> {
+                    execManager.processOutOfContextPropose(execManager.getConsensus(cid));
+                    if (!started) processOutOfContext(); // the next ones can start after this one
+                });
+                if (!started) break;
+            } else if (nextConsensus > getLastStarted()) {
+                break; // instances are started in order
+            }
         }
     }
 
@@ -643,6 +745,7 @@ public final class TOMLayer extends Thread implements RequestReceiver {
         }
         if (this.dt != null) this.dt.shutdown();
         if (this.communication != null) this.communication.shutdown();
+        if (this.acceptor != null) this.acceptor.shutdown();
  
     }
 }
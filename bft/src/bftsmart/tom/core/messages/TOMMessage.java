@@ -23,6 +23,8 @@ import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.Externalizable;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import bftsmart.communication.SystemMessage;
 import bftsmart.tom.util.DebugInfo;
@@ -64,12 +66,18 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
         
         public transient boolean recvFromClient = false; // Did the client already sent this message to me, or did it arrived in the batch?
         public transient boolean isValid = false; // Was this request already validated by the replica?
+        public transient boolean signatureVerified = false; // Was the signature of this request already verified?
         
 	//the bytes received from the client and its MAC and signature
 	public transient byte[] serializedMessage = null;
 	public transient byte[] serializedMessageSignature = null;
 	public transient byte[] serializedMessageMAC = null;
 
+	//when the message was read from a batch, its bytes stay in the batch until serializedMessage is needed
+	private transient byte[] serializedSource = null;
+	private transient int serializedOffset = 0;
+	private transient int serializedLength = 0;
+
 	//for benchmarking purposes
 	public transient long consensusStartTime = 0; //time the consensus is created
 	public transient long proposeReceivedTime = 0; //time the propose is received
@@ -189,6 +197,33 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		return content;
 	}
 
+	/**
+	 * Retrieves the bytes received from the client. If the message was read
+	 * from a batch, they are copied out of the batch on the first call.
+	 * @return The serialized message
+	 */
+	public byte[] getSerializedMessage() {
+		if (serializedMessage == null && serializedSource != null) {
+			serializedMessage = Arrays.copyOfRange(serializedSource, serializedOffset, serializedOffset + serializedLength);
+			serializedSource = null;
+		}
+		return serializedMessage;
+	}
+
+	/**
+	 * Sets the bytes received from the client as a region of a larger array
+	 * (e.g., the batch in which the message was proposed), without copying them.
+	 * @param source The array holding the serialized message
+	 * @param offset The offset of the serialized message in the array
+	 * @param length The length of the serialized message
+	 */
+	public void setSerializedMessage(byte[] source, int offset, int length) {
+		serializedMessage = null;
+		serializedSource = source;
+		serializedOffset = offset;
+		serializedLength = length;
+	}
+
 	/**
 	 * Verifies if two TOMMessage are equal. For performance reasons, the method
 	 * only verifies if the send and sequence are equal.
@@ -260,6 +295,32 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
 		buildId();
 	}
 
+	/**
+	 * Same as rExternal(DataInput), but reading from a buffer (e.g., a slice
+	 * of a batch). The content is the only field copied out of the buffer.
+	 * @param in The buffer positioned at the start of the message
+	 */
+	public void rExternal(ByteBuffer in) throws IOException {
+		sender = in.getInt();
+		viewID = in.getInt();
+		type = TOMMessageType.fromInt(in.getInt());
+		session = in.getInt();
+		sequence = in.getInt();
+		operationId = in.getInt();
+		replyServer = in.getInt();
+		
+		int toRead = in.getInt();
+		if (toRead != -1) {
+			if (toRead < 0 || toRead > in.remaining()) {
+				throw new IOException("Invalid content size " + toRead);
+			}
+			content = new byte[toRead];
+			in.get(content);
+		}
+
+		buildId();
+	}
+
 	/**
 	 * Used to build an unique id for the message
 	 */
@@ -368,6 +429,9 @@ public class TOMMessage extends SystemMessage implements Externalizable, Compara
                     clone.reply = this.reply;
                     clone.seed = this.seed;
                     clone.serializedMessage = this.serializedMessage;
+                    clone.serializedSource = this.serializedSource;
+                    clone.serializedOffset = this.serializedOffset;
+                    clone.serializedLength = this.serializedLength;
                     clone.serializedMessageMAC = this.serializedMessageMAC;
                     clone.serializedMessageSignature = this.serializedMessageSignature;
                     clone.signed = this.signed;
@@ -18,7 +18,6 @@ package bftsmart.tom.leaderchange;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectOutputStream;
-import java.security.MessageDigest;
 import java.security.PublicKey;
 import java.security.SignedObject;
 import java.util.Arrays;
@@ -36,6 +35,7 @@ import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.TOMLayer;
 import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.HashService;
 import bftsmart.tom.util.TOMUtil;
 
 /**
@@ -67,7 +67,7 @@ public class LCManager {
 
     //stuff from the TOM layer that this object needss
     private ServerViewController SVController;
-    private MessageDigest md;
+    private HashService hashService;
     private TOMLayer tomLayer;
     
     private int currentLeader;
@@ -77,9 +77,9 @@ public class LCManager {
      * Constructor
      *
      * @param reconfManager The reconfiguration manager from TOM layer
-     * @param md The message digest engine from TOM layer
+     * @param hashService The service used by the TOM layer to hash proposed values
      */
-    public LCManager(TOMLayer tomLayer,ServerViewController SVController, MessageDigest md) {
+    public LCManager(TOMLayer tomLayer,ServerViewController SVController, HashService hashService) {
         this.tomLayer = tomLayer;
         this.lastreg = 0;
         this.nextreg = 0;
@@ -90,7 +90,7 @@ public class LCManager {
         this.collects = new HashMap<>();
 
         this.SVController = SVController;
-        this.md = md;
+        this.hashService = hashService;
 
     }
     
@@ -750,7 +750,7 @@ public class LCManager {
             for (TimestampValuePair rv : c.getWriteSet()) {
 
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(hashService.hashValue(rv.getValue()));
                 else rv.setHashedValue(new byte[0]);
             }
         }
@@ -792,7 +792,7 @@ public class LCManager {
                                              // did not complete any consensus and cannot have
                                              // any proof
         
-        byte[] hashedValue = md.digest(cDec.getDecision());
+        byte[] hashedValue = hashService.hashValue(cDec.getDecision());
         Set<ConsensusMessage> ConsensusMessages = cDec.getConsMessages();
         int certificateCurrentView = (2*tomLayer.controller.getCurrentViewF()) + 1;
         int certificateLastView = -1;
@@ -15,15 +15,19 @@ limitations under the License.
 */
 package bftsmart.tom.leaderchange;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.communication.ServerCommunicationSystem;
 import bftsmart.reconfiguration.ServerViewController;
@@ -37,25 +41,41 @@ import org.slf4j.LoggerFactory;
 /**
  * This thread serves as a manager for all timers of pending requests.
  *
+ * The watched requests are kept in a hashed timer wheel: each bucket holds
+ * the requests that arrived during one tick, so watching and unwatching a
+ * request takes constant time, and a timeout only looks at the buckets of
+ * the ticks elapsed since the previous one. Requests found to be timed out
+ * are kept apart until they are unwatched.
+ *
+ * The request timeouts and the retransmissions of STOP messages are all
+ * scheduled on a single thread.
  */
 public class RequestsTimer {
     
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
-    private Timer timer = new Timer("request timer");
-    private RequestTimerTask rtTask = null;
+    private static final int WHEEL_SIZE = 512; // buckets, a power of two
+    private static final int TICKS_PER_TIMEOUT = 256; // the wheel spans twice the timeout
+
+    private ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((Runnable r) -> new Thread(r, "request timer"));
+    private ScheduledFuture<?> rtTask = null;
     private TOMLayer tomLayer; // TOM layer
     private long timeout;
     private long shortTimeout;
-    private TreeSet<TOMMessage> watched = new TreeSet<TOMMessage>();
-    private ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private ReentrantLock lock = new ReentrantLock();
+
+    private final long tick; // length of a tick, in milliseconds
+    private final Set<TOMMessage>[] wheel; // requests by tick of arrival, modulo WHEEL_SIZE
+    private final Set<TOMMessage> timedOut = new LinkedHashSet<>(); // requests that timed out
+    private final HashMap<TOMMessage, Set<TOMMessage>> watched = new HashMap<>(); // where each request is
+    private long cursor = -1; // tick of the oldest bucket that may hold requests not timed out
     
     private boolean enabled = true;
     
     private ServerCommunicationSystem communication; // Communication system between replicas
     private ServerViewController controller; // Reconfiguration manager
     
-    private HashMap <Integer, Timer> stopTimers = new HashMap<>();
+    private ConcurrentHashMap<Integer, ScheduledFuture<?>> stopTimers = new ConcurrentHashMap<>();
     
     //private Storage st1 = new Storage(100000);
     //private Storage st2 = new Storage(10000);
@@ -63,6 +83,7 @@ public class RequestsTimer {
      * Creates a new instance of RequestsTimer
      * @param tomLayer TOM layer
      */
+    @SuppressWarnings("unchecked")
     public RequestsTimer(TOMLayer tomLayer, ServerCommunicationSystem communication, ServerViewController controller) {
         this.tomLayer = tomLayer;
         
@@ -71,6 +92,12 @@ public class RequestsTimer {
         
         this.timeout = this.controller.getStaticConf().getRequestTimeout();
         this.shortTimeout = -1;
+
+        this.tick = Math.max(1, timeout / TICKS_PER_TIMEOUT);
+        this.wheel = (Set<TOMMessage>[]) new Set<?>[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel[i] = new HashSet<>();
+        }
     }
 
     public void setShortTimeout(long shortTimeout) {
@@ -81,14 +108,13 @@ public class RequestsTimer {
         if (rtTask == null) {
             long t = (shortTimeout > -1 ? shortTimeout : timeout);
             //shortTimeout = -1;
-            rtTask = new RequestTimerTask();
-            if (controller.getCurrentViewN() > 1) timer.schedule(rtTask, t);
+            if (controller.getCurrentViewN() > 1) rtTask = timer.schedule(new RequestTimerTask(), t, TimeUnit.MILLISECONDS);
         }
     }
     
     public void stopTimer() {
         if (rtTask != null) {
-            rtTask.cancel();
+            rtTask.cancel(false);
             rtTask = null;
         }
     }
@@ -108,10 +134,19 @@ public class RequestsTimer {
      */
     public void watch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        watched.add(request);
-        if (watched.size() >= 1 && enabled) startTimer();
-        rwLock.writeLock().unlock();
+        lock.lock();
+        if (!watched.containsKey(request)) {
+            long arrival = request.receptionTimestamp / tick;
+            if (cursor < 0) {
+                cursor = arrival;
+            }
+            //a request older than the cursor goes to its bucket, which is checked by every timeout
+            Set<TOMMessage> bucket = wheel[(int) (Math.max(arrival, cursor) & (WHEEL_SIZE - 1))];
+            bucket.add(request);
+            watched.put(request, bucket);
+        }
+        if (enabled) startTimer();
+        lock.unlock();
     }
 
     /**
@@ -120,27 +155,58 @@ public class RequestsTimer {
      */
     public void unwatch(TOMMessage request) {
         //long startInstant = System.nanoTime();
-        rwLock.writeLock().lock();
-        if (watched.remove(request) && watched.isEmpty()) stopTimer();
-        rwLock.writeLock().unlock();
+        lock.lock();
+        Set<TOMMessage> bucket = watched.remove(request);
+        if (bucket != null) {
+            bucket.remove(request);
+            if (watched.isEmpty()) stopTimer();
+        }
+        lock.unlock();
     }
 
     /**
      * Cancels all timers for all messages
      */
     public void clearAll() {
-        TOMMessage[] requests = new TOMMessage[watched.size()];
-        rwLock.writeLock().lock();
-        
-        watched.toArray(requests);
+        lock.lock();
+        for (Set<TOMMessage> bucket : wheel) {
+            bucket.clear();
+        }
+        timedOut.clear();
+        if (!watched.isEmpty()) {
+            watched.clear();
+            stopTimer();
+        }
+        lock.unlock();
+    }
 
-        for (TOMMessage request : requests) {
-            if (request != null && watched.remove(request) && watched.isEmpty() && rtTask != null) {
-                rtTask.cancel();
-                rtTask = null;
+    /**
+     * Moves the requests that arrived more than t milliseconds ago from the
+     * wheel to the timed out requests. Must be called with the lock held.
+     *
+     * @param now current time, in milliseconds
+     * @param t the timeout
+     */
+    private void expire(long now, long t) {
+        if (cursor < 0) {
+            return;
+        }
+        long limit = (now - t) / tick; // tick of the newest bucket that may hold timed out requests
+        long first = Math.max(cursor, limit - WHEEL_SIZE + 1); // older ticks share buckets with these
+        for (long i = first; i <= limit; i++) {
+            Set<TOMMessage> bucket = wheel[(int) (i & (WHEEL_SIZE - 1))];
+            if (bucket.isEmpty()) continue;
+            for (Iterator<TOMMessage> it = bucket.iterator(); it.hasNext();) {
+                TOMMessage request = it.next();
+                if ((now - request.receptionTimestamp) > t) {
+                    it.remove();
+                    timedOut.add(request);
+                    watched.put(request, timedOut);
+                }
             }
         }
-        rwLock.writeLock().unlock();
+        //the bucket at the limit may still have requests that did not time out yet
+        cursor = Math.max(cursor, limit);
     }
     
     public void run_lc_protocol() {
@@ -153,18 +219,21 @@ public class RequestsTimer {
 
         try {
         
-            rwLock.readLock().lock();
-        
-            for (Iterator<TOMMessage> i = watched.iterator(); i.hasNext();) {
-                TOMMessage request = i.next();
-                if ((System.currentTimeMillis() - request.receptionTimestamp ) > t) {
+            lock.lock();
+
+            long now = System.currentTimeMillis();
+            expire(now, t);
+
+            for (TOMMessage request : timedOut) {
+                //the timeout may have grown since the request was moved here
+                if ((now - request.receptionTimestamp) > t) {
                     pendingRequests.add(request);
                 }
             }
             
         } finally {
             
-            rwLock.readLock().unlock();
+            lock.unlock();
         }
         
         if (!pendingRequests.isEmpty()) {
@@ -192,15 +261,13 @@ public class RequestsTimer {
                 tomLayer.getSynchronizer().triggerTimeout(pendingRequests);
             }
             else {
-                rtTask = new RequestTimerTask();
-                timer.schedule(rtTask, t);
+                rtTask = timer.schedule(new RequestTimerTask(), t, TimeUnit.MILLISECONDS);
             }
         } else {
             
             logger.debug("Timeout triggered with no expired requests");
             
-            rtTask = new RequestTimerTask();
-            timer.schedule(rtTask, t);
+            rtTask = timer.schedule(new RequestTimerTask(), t, TimeUnit.MILLISECONDS);
         }
         
     }
@@ -209,43 +276,40 @@ public class RequestsTimer {
         
         stopSTOP(regency);
         
-        SendStopTask stopTask = new SendStopTask(stop);
-        Timer stopTimer = new Timer("Stop message");
-        
-        stopTimer.schedule(stopTask, timeout);
+        ScheduledFuture<?> stopTimer = timer.schedule(new SendStopTask(stop), timeout, TimeUnit.MILLISECONDS);
         
-       stopTimers.put(regency, stopTimer);
+        stopTimers.put(regency, stopTimer);
 
     }   
     
     public void stopAllSTOPs() {
-        Iterator stops = getTimers().iterator();
+        Iterator<Integer> stops = getTimers().iterator();
         while (stops.hasNext()) {
-            stopSTOP((Integer) stops.next());
+            stopSTOP(stops.next());
         }
     }
     
     public void stopSTOP(int regency){
         
-        Timer stopTimer = stopTimers.remove(regency);
-        if (stopTimer != null) stopTimer.cancel();
+        ScheduledFuture<?> stopTimer = stopTimers.remove(regency);
+        if (stopTimer != null) stopTimer.cancel(false);
 
     }
     
     public Set<Integer> getTimers() {
         
-        return ((HashMap <Integer,Timer>) stopTimers.clone()).keySet();
+        return new HashSet<>(stopTimers.keySet());
         
     }
     
     public void shutdown() {
-        timer.cancel();
         stopAllSTOPs();
+        timer.shutdownNow();
         LoggerFactory.getLogger(this.getClass()).info("RequestsTimer stopped.");
 
     }
     
-    class RequestTimerTask extends TimerTask {
+    class RequestTimerTask implements Runnable {
 
         @Override
         /**
@@ -262,7 +326,7 @@ public class RequestsTimer {
         }
     }
     
-    class SendStopTask extends TimerTask {
+    class SendStopTask implements Runnable {
         
         private LCMessage stop;
         
@@ -0,0 +1,53 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Optional interface for applications whose ordered requests can be executed
+ * in parallel. Each request declares the keys of the state it reads or
+ * writes; requests without common keys may be executed concurrently, while
+ * requests with a common key are executed in delivery order. The result is
+ * thus the same as executing the requests one after another.
+ *
+ * Used by DefaultRecoverable when system.numexecutors is greater than 1.
+ */
+public interface ConflictAwareExecutable {
+
+    /**
+     * Returns the conflict keys of an ordered request. Keys are compared with
+     * equals(). This method is called by the delivery thread, in delivery
+     * order, for all the requests delivered together before any of them is
+     * executed.
+     *
+     * @param command the command issued by the client
+     * @param msgCtx information related with the command
+     * @return the keys of the request, or null if it may conflict with any
+     * other request (it is then executed alone)
+     */
+    public Object[] getConflictKeys(byte[] command, MessageContext msgCtx);
+
+    /**
+     * Executes an ordered request. May be called concurrently by several
+     * threads, but never for two requests with a common conflict key.
+     *
+     * @param command the command issued by the client
+     * @param msgCtx information related with the command
+     * @return the reply for the request issued by the client
+     */
+    public byte[] executeNonConflicting(byte[] command, MessageContext msgCtx);
+}
@@ -0,0 +1,141 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+
+import bftsmart.tom.MessageContext;
+
+/**
+ * Executes the requests delivered together (which may span several
+ * consensus instances) on a fork-join pool, according to the conflict keys
+ * declared by a ConflictAwareExecutable.
+ *
+ * Each request starts once the previous requests with a common key are done,
+ * and a request without keys waits for all previous requests (and is waited
+ * for by all the following ones). Replies are returned in delivery order.
+ */
+public class ConflictAwareExecutor {
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param threads number of threads executing requests
+     */
+    public ConflictAwareExecutor(int threads) {
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Executes the requests and waits for all of them.
+     *
+     * @param app the application executing the requests
+     * @param commands the requests, in delivery order
+     * @param msgCtxs the context of each request
+     * @return the replies, in delivery order
+     */
+    public byte[][] execute(ConflictAwareExecutable app, byte[][] commands, MessageContext[] msgCtxs) {
+        byte[][] replies = new byte[commands.length][];
+
+        if (commands.length == 1) {
+            replies[0] = app.executeNonConflicting(commands[0], msgCtxs[0]);
+            return replies;
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<byte[]>[] results = (CompletableFuture<byte[]>[]) new CompletableFuture<?>[commands.length];
+
+        Map<Object, CompletableFuture<byte[]>> lastByKey = new HashMap<>();
+        List<CompletableFuture<byte[]>> sinceBarrier = new ArrayList<>();
+        CompletableFuture<byte[]> barrier = null; // last request without keys
+
+        List<CompletableFuture<byte[]>> deps = new ArrayList<>();
+
+        // all keys are taken before any request starts, so that the application
+        // can look at its state to find them
+        Object[][] allKeys = new Object[commands.length][];
+        for (int i = 0; i < commands.length; i++) {
+            allKeys[i] = app.getConflictKeys(commands[i], msgCtxs[i]);
+        }
+
+        for (int i = 0; i < commands.length; i++) {
+            final byte[] command = commands[i];
+            final MessageContext msgCtx = msgCtxs[i];
+
+            Object[] keys = allKeys[i];
+
+            deps.clear();
+            if (keys == null) {
+                deps.addAll(sinceBarrier);
+            } else {
+                for (Object key : keys) {
+                    CompletableFuture<byte[]> dep = lastByKey.get(key);
+                    if (dep != null && !deps.contains(dep)) {
+                        deps.add(dep);
+                    }
+                }
+            }
+            if (barrier != null && (keys == null || deps.isEmpty())) {
+                // with some key dependency, the barrier is already a transitive dependency
+                deps.add(barrier);
+            }
+
+            CompletableFuture<byte[]> result;
+            if (deps.isEmpty()) {
+                result = CompletableFuture.supplyAsync(() -> app.executeNonConflicting(command, msgCtx), pool);
+            } else if (deps.size() == 1) {
+                result = deps.get(0).thenApplyAsync(r -> app.executeNonConflicting(command, msgCtx), pool);
+            } else {
+                result = CompletableFuture.allOf(deps.toArray(new CompletableFuture<?>[deps.size()]))
+                        .thenApplyAsync(v -> app.executeNonConflicting(command, msgCtx), pool);
+            }
+            results[i] = result;
+
+            if (keys == null) {
+                barrier = result;
+                sinceBarrier.clear();
+                lastByKey.clear();
+            } else {
+                sinceBarrier.add(result);
+                for (Object key : keys) {
+                    lastByKey.put(key, result);
+                }
+            }
+        }
+
+        try {
+            for (int i = 0; i < results.length; i++) {
+                replies[i] = results[i].join();
+            }
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+        return replies;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,69 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+
+/**
+ * Optional interface for applications extending DefaultRecoverable that can
+ * freeze their state cheaply, e.g. with copy-on-write or versioned data
+ * structures. The frozen state is serialized, hashed and stored by a
+ * background thread while ordered requests keep being executed.
+ *
+ * Used by DefaultRecoverable when system.totalordermulticast.async_ckp is
+ * true.
+ */
+public interface AsyncCheckpointable {
+
+    /**
+     * Returns a view of the current state that the execution of later
+     * requests does not change. Called by the delivery thread, with no
+     * ordered request being executed, so it should not copy the state.
+     *
+     * @return the frozen state
+     */
+    public FrozenSnapshot freezeState();
+
+    /**
+     * The state of the application at a checkpoint.
+     */
+    public interface FrozenSnapshot {
+
+        /**
+         * Serializes the frozen state, in the format of getSnapshot(). Called
+         * by the checkpoint thread, concurrently with the execution of
+         * requests.
+         *
+         * @return A serialized snapshot of the frozen state
+         */
+        public byte[] serialize();
+
+        /**
+         * For a ChunkedState, serializes the chunks of the frozen state (see
+         * ChunkedState.getSnapshotChunks()). Called instead of serialize().
+         * By default, the chunks are taken from serialize().
+         *
+         * @return the serialized chunks
+         */
+        public default byte[][] serializeChunks() {
+            try {
+                return ChunkedSnapshot.deserialize(serialize());
+            } catch (IOException ex) {
+                throw new IllegalStateException("Snapshot is not made of chunks", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Format of the snapshots of a ChunkedState:
+ *
+ *   int chunks | chunks * (int length | length bytes)
+ *
+ * A length of -1 marks a chunk left out of the snapshot, which the receiver
+ * already has (see DefaultRecoverable.getState()).
+ */
+public final class ChunkedSnapshot {
+
+    private static final int OMITTED = -1;
+
+    private ChunkedSnapshot() {
+    }
+
+    /**
+     * @param chunks the serialized chunks, null for the ones left out
+     * @return the snapshot
+     */
+    public static byte[] serialize(byte[][] chunks) {
+        int size = Integer.BYTES;
+        for (byte[] chunk : chunks) {
+            size += Integer.BYTES + (chunk != null ? chunk.length : 0);
+        }
+        ByteBuffer snapshot = ByteBuffer.allocate(size);
+        snapshot.putInt(chunks.length);
+        for (byte[] chunk : chunks) {
+            if (chunk != null) {
+                snapshot.putInt(chunk.length);
+                snapshot.put(chunk);
+            } else {
+                snapshot.putInt(OMITTED);
+            }
+        }
+        return snapshot.array();
+    }
+
+    /**
+     * @param snapshot a snapshot
+     * @return the chunks of the snapshot, null for the ones left out
+     * @throws IOException if the snapshot is malformed
+     */
+    public static byte[][] deserialize(byte[] snapshot) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(snapshot);
+        if (in.remaining() < Integer.BYTES) {
+            throw new IOException("Truncated snapshot");
+        }
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / Integer.BYTES) {
+            throw new IOException("Invalid chunk count " + count);
+        }
+        byte[][] chunks = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            if (in.remaining() < Integer.BYTES) {
+                throw new IOException("Truncated snapshot");
+            }
+            int length = in.getInt();
+            if (length == OMITTED) {
+                continue;
+            }
+            if (length < 0 || length > in.remaining()) {
+                throw new IOException("Invalid chunk length " + length);
+            }
+            chunks[i] = new byte[length];
+            in.get(chunks[i]);
+        }
+        if (in.hasRemaining()) {
+            throw new IOException("Trailing bytes after snapshot");
+        }
+        return chunks;
+    }
+}
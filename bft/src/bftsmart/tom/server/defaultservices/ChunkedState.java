@@ -0,0 +1,42 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+/**
+ * Optional interface for applications extending DefaultRecoverable whose
+ * state is made of a fixed number of independently serialized chunks.
+ *
+ * Their snapshots are in the format of ChunkedSnapshot, and the hash of a
+ * checkpoint is the root of a Merkle tree over the chunks, so that only the
+ * chunks changed since the previous checkpoint are hashed again. In the state
+ * transfer, a replica only receives the chunks that differ from the ones of
+ * its last checkpoint.
+ */
+public interface ChunkedState {
+
+    /**
+     * Returns the serialized chunks of the current state. Called by the
+     * delivery thread, with no ordered request being executed, instead of
+     * getSnapshot(). The snapshot of the state is ChunkedSnapshot.serialize()
+     * of the chunks, and installSnapshot() receives snapshots in that format.
+     *
+     * A chunk that did not change since the previous call should be returned
+     * as the same array, which is then not hashed again.
+     *
+     * @return the serialized chunks, always as many
+     */
+    public byte[][] getSnapshotChunks();
+}
@@ -15,10 +15,19 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import bftsmart.communication.server.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
 import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
 
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -27,6 +36,9 @@ import java.util.Arrays;
 public class CommandsInfo implements Serializable {
 	
     private static final long serialVersionUID = 342711292879899682L;
+
+    // in the binary format, marks a proof or first request equal to the previous one
+    private static final int SAME_AS_PREVIOUS = -2;
 	
     public byte[][] commands;
     public MessageContext[] msgCtx;
@@ -58,6 +70,164 @@ public class CommandsInfo implements Serializable {
         this.msgCtx = onlyNeeded;
     }
 
+    /**
+     * Writes the batch in the binary format of the disk log. The proof and
+     * the first request of the batch, which are usually shared by all the
+     * message contexts, are written only once.
+     *
+     * @param out where the batch is written
+     * @throws IOException if the proof could not be encoded
+     */
+    public void write(DataOutput out) throws IOException {
+        if (commands == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(commands.length);
+            for (byte[] command : commands) {
+                writeBytes(out, command);
+            }
+        }
+
+        if (msgCtx == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(msgCtx.length);
+        Set<ConsensusMessage> lastProof = null;
+        TOMMessage lastFirst = null;
+        for (int i = 0; i < msgCtx.length; i++) {
+            MessageContext ctx = msgCtx[i];
+            out.writeInt(ctx.getSender());
+            out.writeInt(ctx.getViewID());
+            out.writeInt(ctx.getType() != null ? ctx.getType().toInt() : -1);
+            out.writeInt(ctx.getSession());
+            out.writeInt(ctx.getSequence());
+            out.writeInt(ctx.getOperationId());
+            out.writeInt(ctx.getReplyServer());
+            writeBytes(out, ctx.getSignature());
+            out.writeLong(ctx.getTimestamp());
+            out.writeInt(ctx.getNumOfNonces());
+            out.writeLong(ctx.getSeed());
+            out.writeInt(ctx.getRegency());
+            out.writeInt(ctx.getLeader());
+            out.writeInt(ctx.getConsensusId());
+            out.writeBoolean(ctx.isNoOp());
+
+            Set<ConsensusMessage> proof = ctx.getProof();
+            if (i > 0 && proof == lastProof) {
+                out.writeInt(SAME_AS_PREVIOUS);
+            } else if (proof == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(proof.size());
+                for (ConsensusMessage cm : proof) {
+                    writeBytes(out, SystemMessageCodec.encode(cm));
+                }
+            }
+            lastProof = proof;
+
+            TOMMessage first = ctx.getFirstInBatch();
+            if (i > 0 && first == lastFirst) {
+                out.writeInt(SAME_AS_PREVIOUS);
+            } else {
+                writeBytes(out, first != null ? TOMMessage.messageToBytes(first) : null);
+            }
+            lastFirst = first;
+        }
+    }
+
+    /**
+     * Reads a batch written by write(DataOutput).
+     *
+     * @param in buffer positioned at the start of the batch
+     * @return the batch
+     * @throws IOException if the batch is malformed
+     */
+    public static CommandsInfo read(ByteBuffer in) throws IOException {
+        CommandsInfo info = new CommandsInfo();
+        try {
+            int n = in.getInt();
+            if (n >= 0) {
+                info.commands = new byte[n][];
+                for (int i = 0; i < n; i++) {
+                    info.commands[i] = readBytes(in);
+                }
+            }
+
+            n = in.getInt();
+            if (n < 0) {
+                return info;
+            }
+            info.msgCtx = new MessageContext[n];
+            Set<ConsensusMessage> proof = null;
+            TOMMessage first = null;
+            for (int i = 0; i < n; i++) {
+                int sender = in.getInt();
+                int viewID = in.getInt();
+                int type = in.getInt();
+                int session = in.getInt();
+                int sequence = in.getInt();
+                int operationId = in.getInt();
+                int replyServer = in.getInt();
+                byte[] signature = readBytes(in);
+                long timestamp = in.getLong();
+                int numOfNonces = in.getInt();
+                long seed = in.getLong();
+                int regency = in.getInt();
+                int leader = in.getInt();
+                int consensusId = in.getInt();
+                boolean noOp = in.get() != 0;
+
+                int proofSize = in.getInt();
+                if (proofSize != SAME_AS_PREVIOUS) {
+                    proof = null;
+                    if (proofSize >= 0) {
+                        proof = new HashSet<>();
+                        for (int j = 0; j < proofSize; j++) {
+                            proof.add((ConsensusMessage) SystemMessageCodec.decode(readBytes(in)));
+                        }
+                    }
+                }
+
+                int firstLength = in.getInt();
+                if (firstLength != SAME_AS_PREVIOUS) {
+                    first = null;
+                    if (firstLength >= 0) {
+                        byte[] bytes = new byte[firstLength];
+                        in.get(bytes);
+                        first = TOMMessage.bytesToMessage(bytes);
+                    }
+                }
+
+                info.msgCtx[i] = new MessageContext(sender, viewID, type >= 0 ? TOMMessageType.fromInt(type) : null,
+                        session, sequence, operationId, replyServer, signature, timestamp, numOfNonces, seed,
+                        regency, leader, consensusId, proof, first, noOp);
+            }
+        } catch (RuntimeException | ClassNotFoundException ex) { // underflows, negative sizes, bad proofs
+            throw new IOException("Malformed batch", ex);
+        }
+        return info;
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return bytes;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj instanceof CommandsInfo) {
@@ -18,9 +18,12 @@
  */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import bftsmart.reconfiguration.ServerViewController;
@@ -31,8 +34,11 @@ import bftsmart.statemanagement.standard.StandardStateManager;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
+import bftsmart.tom.server.ConflictAwareExecutable;
+import bftsmart.tom.server.ConflictAwareExecutor;
 import bftsmart.tom.server.Recoverable;
-import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.HashService;
+import bftsmart.tom.util.MerkleTree;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,25 +56,18 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
     private int checkpointPeriod;
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
+    private ReentrantLock hashLock = new ReentrantLock(); // guards the Merkle tree of the state
     private ReentrantLock stateLock = new ReentrantLock();
     private TOMConfiguration config;
     private ServerViewController controller;
-    private MessageDigest md;
+    private HashService hashService = new HashService();
     private StateLog log;
     private StateManager stateManager;
-
-    /**
-     * Constructor
-     */
-    public DefaultRecoverable() {
-
-        try {
-            md = TOMUtil.getHashEngine();
-        } catch (NoSuchAlgorithmException ex) {
-            LoggerFactory.getLogger(this.getClass()).error("Failed to create DefaultRecoverable", ex);
-        }
-    }
+    private ConflictAwareExecutor executor; // null if requests are executed sequentially
+    private MerkleTree stateTree; // for a ChunkedState, over the chunks of the last state hashed
+    private byte[][] treeChunks;
+    private ExecutorService checkpointer; // null if checkpoints are taken by the delivery thread
+    private volatile Future<?> pendingCheckpoint;
 
     @Override
     public byte[][] executeBatch(byte[][] commands, MessageContext[] msgCtxs) {
@@ -91,7 +90,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             if (!noop) {
 
                 stateLock.lock();
-                replies = appExecuteBatch(commands, msgCtxs, true);
+                replies = executeOrdered(commands, msgCtxs);
                 stateLock.unlock();
 
             }
@@ -125,15 +124,20 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             if (!noop) {
                 stateLock.lock();
-                firstHalfReplies = appExecuteBatch(firstHalf, firstHalfMsgCtx, true);
+                firstHalfReplies = executeOrdered(firstHalf, firstHalfMsgCtx);
                 stateLock.unlock();
             }
 
             logger.info("Performing checkpoint for consensus " + cid);
-            stateLock.lock();
-            byte[] snapshot = getSnapshot();
-            stateLock.unlock();
-            saveState(snapshot, cid);
+            if (checkpointer != null) {
+                saveStateAsync(firstHalf, firstHalfMsgCtx, cid);
+            } else {
+                stateLock.lock();
+                byte[][] chunks = takeSnapshotChunks();
+                byte[] snapshot = (chunks != null ? ChunkedSnapshot.serialize(chunks) : getSnapshot());
+                stateLock.unlock();
+                saveState(snapshot, chunks, cid);
+            }
 
             System.arraycopy(firstHalfReplies, 0, replies, 0, firstHalfReplies.length);
 
@@ -144,7 +148,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
                 if (!noop) {
                     stateLock.lock();
-                    secondHalfReplies = appExecuteBatch(secondHalf, secondHalfMsgCtx, true);
+                    secondHalfReplies = executeOrdered(secondHalf, secondHalfMsgCtx);
                     stateLock.unlock();
                 }
 
@@ -162,13 +166,192 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return replies;
     }
 
+    /**
+     * Executes requests delivered by consensus, in parallel if the application
+     * is a ConflictAwareExecutable and system.numexecutors is greater than 1.
+     */
+    private byte[][] executeOrdered(byte[][] commands, MessageContext[] msgCtxs) {
+        if (executor != null) {
+            return executor.execute((ConflictAwareExecutable) this, commands, msgCtxs);
+        }
+        return appExecuteBatch(commands, msgCtxs, true);
+    }
+
     private final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
+        return hashService.hashValue(data);
+    }
+
+    /**
+     * @return the chunks of the current state if the application is a
+     * ChunkedState, null otherwise
+     */
+    private byte[][] takeSnapshotChunks() {
+        return (this instanceof ChunkedState ? ((ChunkedState) this).getSnapshotChunks() : null);
+    }
+
+    /**
+     * Computes the hash of a snapshot. For a ChunkedState, it is the root of
+     * the Merkle tree over its chunks, and only the chunks that changed since
+     * the previous snapshot hashed are hashed again.
+     *
+     * @param snapshot the snapshot
+     * @param chunks the chunks of the snapshot, or null to take them from it
+     * @return the hash of the snapshot
+     */
+    private byte[] computeStateHash(byte[] snapshot, byte[][] chunks) {
+        if (!(this instanceof ChunkedState)) {
+            return computeHash(snapshot);
+        }
+        if (chunks == null) {
+            try {
+                chunks = ChunkedSnapshot.deserialize(snapshot);
+            } catch (IOException ex) {
+                logger.error("Snapshot is not made of chunks", ex);
+                return computeHash(snapshot);
+            }
+        }
         hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
+        try {
+            if (stateTree == null || stateTree.getLeafCount() != Math.max(1, chunks.length)) {
+                stateTree = new MerkleTree(Math.max(1, chunks.length));
+                treeChunks = new byte[chunks.length][];
+            }
+            byte[][] changed = new byte[chunks.length][];
+            for (int i = 0; i < chunks.length; i++) {
+                if (chunks[i] != treeChunks[i]) {
+                    if (treeChunks[i] == null || !Arrays.equals(chunks[i], treeChunks[i])) {
+                        changed[i] = (chunks[i] != null ? chunks[i] : new byte[0]);
+                    }
+                    treeChunks[i] = chunks[i];
+                }
+            }
+            byte[][] hashes = hashService.hashLeaves(changed);
+            for (int i = 0; i < chunks.length; i++) {
+                if (hashes[i] != null) {
+                    stateTree.setLeafHash(i, hashes[i]);
+                }
+            }
+            return stateTree.getRoot();
+        } finally {
+            hashLock.unlock();
+        }
+    }
 
-        return ret;
+    /**
+     * Returns the hashes of the chunks of the last state hashed by this
+     * replica, to be sent in a state transfer request (see getState(int,
+     * boolean, byte[][])).
+     *
+     * @return the hashes of the chunks, or null if the application is not a
+     * ChunkedState
+     */
+    public byte[][] getChunkHashes() {
+        hashLock.lock();
+        try {
+            return (stateTree != null ? stateTree.getLeafHashes() : null);
+        } finally {
+            hashLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a representation of the application state, leaving out of the
+     * snapshot the chunks that the requesting replica already has.
+     *
+     * @param cid Consensus up to which the application should return an Application state
+     * @param sendState true if the replica should send a complete
+     * representation of the state instead of only the hash. False otherwise
+     * @param chunkHashes the hashes of the chunks of the requesting replica
+     * (see getChunkHashes()), or null if it has none
+     * @return A representation of the application state
+     */
+    public ApplicationState getState(int cid, boolean sendState, byte[][] chunkHashes) {
+        ApplicationState state = getState(cid, sendState);
+        byte[] snapshot = state.getSerializedState();
+        if (!(this instanceof ChunkedState) || chunkHashes == null || snapshot == null) {
+            return state;
+        }
+        byte[][] chunks;
+        try {
+            chunks = ChunkedSnapshot.deserialize(snapshot);
+        } catch (IOException ex) {
+            logger.error("Snapshot is not made of chunks", ex);
+            return state;
+        }
+        if (chunks.length != chunkHashes.length) {
+            return state;
+        }
+
+        byte[][] hashes = null;
+        hashLock.lock();
+        try {
+            // the hashes are already known if the state is the last one hashed
+            if (stateTree != null && Arrays.equals(stateTree.getRoot(), state.getStateHash())) {
+                hashes = stateTree.getLeafHashes();
+            }
+        } finally {
+            hashLock.unlock();
+        }
+        if (hashes == null || hashes.length != chunks.length) {
+            hashes = hashService.hashLeaves(chunks);
+        }
+
+        int omitted = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            if (Arrays.equals(hashes[i], chunkHashes[i])) {
+                chunks[i] = null;
+                omitted++;
+            }
+        }
+        logger.info("Leaving " + omitted + " of " + chunks.length + " chunks out of the state sent");
+        state.setSerializedState(ChunkedSnapshot.serialize(chunks));
+        return state;
+    }
+
+    /**
+     * Fills in the chunks left out of a state received in the state transfer
+     * with the ones this replica has, so that the state can be verified and
+     * installed.
+     *
+     * @param state the state received
+     */
+    public void completeState(ApplicationState state) {
+        byte[] snapshot = state.getSerializedState();
+        if (!(this instanceof ChunkedState) || snapshot == null) {
+            return;
+        }
+        try {
+            byte[][] chunks = ChunkedSnapshot.deserialize(snapshot);
+            int filled = 0;
+            hashLock.lock();
+            try {
+                for (int i = 0; i < chunks.length; i++) {
+                    if (chunks[i] == null && treeChunks != null && i < treeChunks.length && treeChunks[i] != null) {
+                        chunks[i] = treeChunks[i];
+                        filled++;
+                    }
+                }
+            } finally {
+                hashLock.unlock();
+            }
+            if (filled > 0) {
+                logger.info("Filled in " + filled + " of " + chunks.length + " chunks of the state received");
+                state.setSerializedState(ChunkedSnapshot.serialize(chunks));
+            }
+        } catch (IOException ex) {
+            logger.error("Snapshot is not made of chunks", ex);
+        }
+    }
+
+    /**
+     * Computes the hash of a state received in the state transfer, to be
+     * compared with ApplicationState.getStateHash().
+     *
+     * @param serializedState the state, as returned by getSerializedState()
+     * @return the hash of the state
+     */
+    public byte[] computeStateHash(byte[] serializedState) {
+        return computeStateHash(serializedState, null);
     }
 
     private StateLog getLog() {
@@ -176,7 +359,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         return log;
     }
 
-    private void saveState(byte[] snapshot, int lastCID) {
+    private void saveState(byte[] snapshot, byte[][] chunks, int lastCID) {
 
         StateLog thisLog = getLog();
 
@@ -184,7 +367,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
         logger.debug("(TOMLayer.saveState) Saving state of CID " + lastCID);
 
-        thisLog.newCheckpoint(snapshot, computeHash(snapshot), lastCID);
+        thisLog.newCheckpoint(snapshot, computeStateHash(snapshot, chunks), lastCID);
         thisLog.setLastCID(lastCID);
         thisLog.setLastCheckpointCID(lastCID);
 
@@ -192,6 +375,69 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
         logger.debug("(TOMLayer.saveState) Finished saving state of CID " + lastCID);
     }
 
+    /**
+     * Takes a checkpoint in the background: the state is frozen by the
+     * application, and then serialized, hashed and stored by the checkpoint
+     * thread. The batches up to the checkpoint are logged, and only discarded
+     * once the checkpoint is stored, so that the log and the last stored
+     * checkpoint always give the current state.
+     *
+     * @param commands the commands executed since the last logged ones, up
+     * to the checkpoint
+     * @param msgCtxs the contexts of the commands
+     * @param lastCID consensus ID of the checkpoint
+     */
+    private void saveStateAsync(byte[][] commands, MessageContext[] msgCtxs, int lastCID) {
+
+        // only one checkpoint is stored at a time
+        waitCheckpoint();
+
+        stateLock.lock();
+        AsyncCheckpointable.FrozenSnapshot frozen = ((AsyncCheckpointable) this).freezeState();
+        stateLock.unlock();
+
+        saveCommands(commands, msgCtxs);
+
+        StateLog thisLog = getLog();
+        logLock.lock();
+        thisLog.beginCheckpoint(lastCID);
+        logLock.unlock();
+
+        pendingCheckpoint = checkpointer.submit(() -> {
+
+            byte[][] chunks = (this instanceof ChunkedState ? frozen.serializeChunks() : null);
+            byte[] snapshot = (chunks != null ? ChunkedSnapshot.serialize(chunks) : frozen.serialize());
+            byte[] hash = computeStateHash(snapshot, chunks);
+
+            logger.debug("(TOMLayer.saveStateAsync) Saving state of CID " + lastCID);
+            thisLog.prepareCheckpoint(snapshot, hash, lastCID);
+
+            logLock.lock();
+            thisLog.newCheckpoint(snapshot, hash, lastCID);
+            thisLog.setLastCheckpointCID(lastCID);
+            logLock.unlock();
+            logger.debug("(TOMLayer.saveStateAsync) Finished saving state of CID " + lastCID);
+        });
+    }
+
+    /**
+     * Waits for the checkpoint being stored in the background, if any.
+     */
+    private void waitCheckpoint() {
+        Future<?> checkpoint = pendingCheckpoint;
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            checkpoint.get();
+        } catch (ExecutionException ex) {
+            // the batches stay in the log until the next checkpoint
+            logger.error("Failed to take checkpoint", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Write commands to log file
      *
@@ -225,6 +471,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
             }
         }
         logLock.unlock();
+
+        // the batches are forced to disk together
+        log.sync();
     }
 
     @Override
@@ -254,6 +503,9 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
 
             logger.info("I'm going to update myself from CID "
                     + lastCheckpointCID + " to CID " + lastCID);
+
+            // the installed state replaces the log and checkpoint being stored
+            waitCheckpoint();
            
             stateLock.lock();
             if (state.getSerializedState() != null) {
@@ -378,13 +630,16 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     private void initLog() {
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
-            byte[] state = getSnapshot();
+            byte[][] chunks = takeSnapshotChunks();
+            byte[] state = (chunks != null ? ChunkedSnapshot.serialize(chunks) : getSnapshot());
+            byte[] stateHash = computeStateHash(state, chunks);
             if (config.isToLog() && config.logToDisk()) {
                 int replicaId = config.getProcessId();
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, stateHash, isToLog, syncLog, syncCkp,
+                        config.getLogGroupSize(), config.getLogGroupDelay());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -392,7 +647,7 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
                     getStateManager().setLastCID(storedState.getLastCID());
                 }
             } else {
-                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, computeHash(state));
+                log = new StateLog(this.config.getProcessId(), checkpointPeriod, state, stateHash);
             }
         }
     }
@@ -401,6 +656,19 @@ public abstract class DefaultRecoverable implements Recoverable, BatchExecutable
     public void setReplicaContext(ReplicaContext replicaContext) {
         this.config = replicaContext.getStaticConfiguration();
         this.controller = replicaContext.getSVController();
+        this.hashService = new HashService(config.getTreeHashThreshold(), config.getTreeHashChunkSize());
+        if (executor == null && this instanceof ConflictAwareExecutable && config.getNumExecutors() > 1) {
+            logger.info("Executing non-conflicting requests with " + config.getNumExecutors() + " threads");
+            executor = new ConflictAwareExecutor(config.getNumExecutors());
+        }
+        if (checkpointer == null && this instanceof AsyncCheckpointable && config.isToWriteAsyncCkp()) {
+            logger.info("Taking checkpoints in the background");
+            checkpointer = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Checkpoint thread");
+                t.setDaemon(true);
+                return t;
+            });
+        }
         initLog();
         getStateManager().askCurrentConsensusId();
     }
@@ -15,8 +15,6 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
@@ -31,7 +29,7 @@ import bftsmart.tom.MessageContext;
 import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.SingleExecutable;
-import bftsmart.tom.util.TOMUtil;
+import bftsmart.tom.util.HashService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,10 +48,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     private int checkpointPeriod;
 
     private ReentrantLock logLock = new ReentrantLock();
-    private ReentrantLock hashLock = new ReentrantLock();
     private ReentrantLock stateLock = new ReentrantLock();
     
-    private MessageDigest md;
+    private HashService hashService = new HashService();
         
     private StateLog log;
     private List<byte[]> commands = new ArrayList<>();
@@ -61,15 +58,6 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     
     private StateManager stateManager;
     
-    public DefaultSingleRecoverable() {
-
-        try {
-            md = TOMUtil.getHashEngine();
-        } catch (NoSuchAlgorithmException ex) {
-            logger.error("Failed to get message digest engine", ex);
-        }
-    }
-    
     @Override
     public byte[] executeOrdered(byte[] command, MessageContext msgCtx) {
         
@@ -110,12 +98,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
     }
     
     private final byte[] computeHash(byte[] data) {
-        byte[] ret = null;
-        hashLock.lock();
-        ret = md.digest(data);
-        hashLock.unlock();
-
-        return ret;
+        return hashService.hashValue(data);
     }
     
     private StateLog getLog() {
@@ -168,6 +151,9 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         }
         
         logLock.unlock();
+
+        // the batches are forced to disk together
+        log.sync();
     }
 
     @Override
@@ -246,6 +232,7 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
         this.replicaContext = replicaContext;
         this.config = replicaContext.getStaticConfiguration();
         this.controller = replicaContext.getSVController();
+        this.hashService = new HashService(config.getTreeHashThreshold(), config.getTreeHashChunkSize());
 
         if (log == null) {
             checkpointPeriod = config.getCheckpointPeriod();
@@ -255,7 +242,8 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
                 boolean isToLog = config.isToLog();
                 boolean syncLog = config.isToWriteSyncLog();
                 boolean syncCkp = config.isToWriteSyncCkp();
-                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+                log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp,
+                        config.getLogGroupSize(), config.getLogGroupDelay());
 
                 ApplicationState storedState = ((DiskStateLog) log).loadDurableState();
                 if (storedState.getLastCID() > 0) {
@@ -285,7 +273,8 @@ public abstract class DefaultSingleRecoverable implements Recoverable, SingleExe
             	boolean isToLog = config.isToLog();
             	boolean syncLog = config.isToWriteSyncLog();
             	boolean syncCkp = config.isToWriteSyncCkp();
-            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
+            	log = new DiskStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp,
+            			config.getLogGroupSize(), config.getLogGroupDelay());
             } else
             	log = new StateLog(controller.getStaticConf().getProcessId(), checkpointPeriod, state, computeHash(state));
     	}
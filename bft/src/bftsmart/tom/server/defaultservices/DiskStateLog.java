@@ -15,15 +15,16 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -38,22 +39,46 @@ public class DiskStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private GroupCommitLog log;
 	private boolean syncLog;
+	private int groupSize;
+	private int groupDelay;
 	private String logPath;
 	private String lastCkpPath;
 	private boolean syncCkp;
 	private boolean isToLog;
 	private ReentrantLock checkpointLock = new ReentrantLock();
 	private Map<Integer, Long> logPointers;
+	private long lastLogTimestamp = 0;
+
+	// log of the batches up to a checkpoint being stored in the background
+	private GroupCommitLog pendingLog;
+	private String pendingLogPath;
+	private int pendingCID = -1;
+	// checkpoint stored by prepareCheckpoint, but not installed yet
+	private String preparedCkpPath;
+	private int preparedCID = -1;
 	
 	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, syncCkp,
+				GroupCommitLog.DEFAULT_GROUP_SIZE, 0);
+	}
+
+	/**
+	 * @param groupSize number of batches that triggers a force of the log
+	 * @param groupDelay microseconds the log waits for more batches before
+	 * forcing the ones already waited for (see GroupCommitLog)
+	 */
+	public DiskStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, boolean syncCkp, int groupSize, int groupDelay) {
 		super(id, initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
+		this.groupSize = groupSize;
+		this.groupDelay = groupDelay;
 		this.logPointers = new HashMap<>();
                 
                 File directory = new File(DEFAULT_DIR);
@@ -61,15 +86,13 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void createLogFile() {
+		// a log created right after another must not reuse its name
+		lastLogTimestamp = Math.max(System.currentTimeMillis(), lastLogTimestamp + 1);
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".log";
+				+ lastLogTimestamp + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-			// PreAllocation
-			/*
-			 * log.setLength(TEN_MB); log.seek(0);
-			 */
-		} catch (FileNotFoundException e) {
+			log = new GroupCommitLog(logPath, syncLog, GroupCommitLog.DEFAULT_SEGMENT_SIZE, groupSize, groupDelay);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -78,7 +101,7 @@ public class DiskStateLog extends StateLog {
 	 * Adds a message batch to the log. This batches should be added to the log
 	 * in the same order in which they are delivered to the application. Only
 	 * the 'k' batches received after the last checkpoint are supposed to be
-	 * kept
+	 * kept. The batch is only durable after sync().
 	 * 
 	 * @param commands The batch of messages to be kept.
          * @param consensusId
@@ -95,52 +118,68 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(consensusId, commandsInfo);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
+	}
+
+	/**
+	 * Waits until the batches added to the log are on disk (only if the log
+	 * is synchronous). Batches added together are forced at once.
+	 */
+        @Override
+	public void sync() {
+		if (log != null) {
+			try {
+				log.sync();
+			} catch (IOException e) {
+				logger.error("Failed to force log to disk",e);
+			}
+		}
+	}
+
+	/**
+	 * Batches of later consensus instances go to a new log file, so that
+	 * the current one can be deleted once the checkpoint is stored. If a
+	 * previous checkpoint failed, its log is still pending and the batches
+	 * keep going to the current log file, from which those up to the
+	 * checkpoint are then skipped when reading.
+	 */
+        @Override
+	public void beginCheckpoint(int cid) {
+		if (isToLog && log != null && pendingLog == null) {
+			log.close();
+			pendingLog = log;
+			pendingLogPath = logPath;
+			pendingCID = cid;
+			log = null;
+		}
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file, installed by newCheckpoint.
+	 */
+        @Override
+	public void prepareCheckpoint(byte[] state, byte[] stateHash, int cid) {
+		try {
+			preparedCkpPath = writeCkpFile(state, stateHash, cid);
+			preparedCID = cid;
+		} catch (IOException e) {
+			logger.error("Failed to write checkpoint to disk",e);
+		}
 	}
 
         @Override
 	public void newCheckpoint(byte[] state, byte[] stateHash, int consensusId) {
-		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
-				+ System.currentTimeMillis() + ".tmp";
+		if (preparedCkpPath != null && preparedCID == consensusId) {
+			installPreparedCkp();
+			return;
+		}
 		try {
 			checkpointLock.lock();
-			RandomAccessFile ckp = new RandomAccessFile(ckpPath,
-					(syncCkp ? "rwd" : "rw"));
-
-			ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
-					+ 4 * INT_BYTE_SIZE);
-			bf.putInt(state.length);
-			bf.put(state);
-			bf.putInt(stateHash.length);
-			bf.put(stateHash);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-
-			byte[] ckpState = bf.array();
-			
-			ckp.write(ckpState);
-			ckp.close();
+			String ckpPath = writeCkpFile(state, stateHash, consensusId);
 
 			if (isToLog)
 				deleteLogFile();
@@ -160,6 +199,49 @@ public class DiskStateLog extends StateLog {
 		}
 	}
 
+	private String writeCkpFile(byte[] state, byte[] stateHash, int consensusId) throws IOException {
+		String ckpPath = DEFAULT_DIR + String.valueOf(id) + "."
+				+ System.currentTimeMillis() + ".tmp";
+		RandomAccessFile ckp = new RandomAccessFile(ckpPath,
+				(syncCkp ? "rwd" : "rw"));
+
+		ByteBuffer bf = ByteBuffer.allocate(state.length + stateHash.length
+				+ 4 * INT_BYTE_SIZE);
+		bf.putInt(state.length);
+		bf.put(state);
+		bf.putInt(stateHash.length);
+		bf.put(stateHash);
+		bf.putInt(EOF);
+		bf.putInt(consensusId);
+
+		byte[] ckpState = bf.array();
+		
+		ckp.write(ckpState);
+		ckp.close();
+		return ckpPath;
+	}
+
+	private void installPreparedCkp() {
+		checkpointLock.lock();
+		try {
+			// the new checkpoint replaces the previous one before the log is deleted,
+			// so that a crash leaves either of them with all the batches after it
+			String previousCkpPath = lastCkpPath;
+			renameCkp(preparedCkpPath);
+			if (previousCkpPath != null && !previousCkpPath.equals(lastCkpPath))
+				new File(previousCkpPath).delete();
+			if (pendingLog != null)
+				pendingLog.delete();
+			pendingLog = null;
+			pendingLogPath = null;
+			pendingCID = -1;
+			preparedCkpPath = null;
+			preparedCID = -1;
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+
 	private void renameCkp(String ckpPath) {
 		String finalCkpPath = ckpPath.replace(".tmp", ".ckp");
 		new File(ckpPath).renameTo(new File(finalCkpPath));
@@ -172,13 +254,10 @@ public class DiskStateLog extends StateLog {
 	}
 
 	private void deleteLogFile() {
-		try {
-			if(log != null)
-				log.close();
-			new File(logPath).delete();
-		} catch (IOException e) {
-			logger.error("Failed to delete log file",e);
-		}
+		if(log != null)
+			log.delete();
+		else if (logPath != null)
+			GroupCommitLog.delete(logPath);
 	}
 
 	/**
@@ -206,12 +285,7 @@ public class DiskStateLog extends StateLog {
 
 //			if (size > 0 && sendState) {
 			if (size > 0) {
-				CommandsInfo[] recoveredBatches = fr.getLogState(size, logPath);
-
-				batches = new CommandsInfo[size];
-
-				for (int i = 0; i < size; i++)
-					batches[i] = recoveredBatches[i];
+				batches = readBatches(fr, lastCheckpointCID + 1, size);
 			}
 			
 			checkpointLock.lock();
@@ -230,6 +304,29 @@ public class DiskStateLog extends StateLog {
 		return null;
 	}
 	
+	/**
+	 * Reads batches from the log of a checkpoint being stored in the
+	 * background, if any, and then from the current log.
+	 */
+	private CommandsInfo[] readBatches(FileRecoverer fr, int firstCID, int size) {
+		CommandsInfo[] batches = new CommandsInfo[size];
+		int read = 0;
+		if (pendingLogPath != null && firstCID <= pendingCID) {
+			CommandsInfo[] recoveredBatches = fr.getLogStateFrom(firstCID,
+					Math.min(size, pendingCID - firstCID + 1), pendingLogPath);
+			if (recoveredBatches != null) {
+				System.arraycopy(recoveredBatches, 0, batches, 0, recoveredBatches.length);
+				read = recoveredBatches.length;
+			}
+		}
+		if (read < size && logPath != null) {
+			CommandsInfo[] recoveredBatches = fr.getLogStateFrom(firstCID + read, size - read, logPath);
+			if (recoveredBatches != null)
+				System.arraycopy(recoveredBatches, 0, batches, read, Math.min(recoveredBatches.length, size - read));
+		}
+		return batches;
+	}
+
 	public void transferApplicationState(SocketChannel sChannel, int cid) {
 		FileRecoverer fr = new FileRecoverer(id, DEFAULT_DIR);
 		fr.transferCkpState(sChannel, lastCkpPath);
@@ -246,12 +343,8 @@ public class DiskStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.position());
+			logPointers.put(ckpReplicaIndex, log.position());
 		}
 	}
 
@@ -276,11 +369,11 @@ public class DiskStateLog extends StateLog {
 		byte[] checkpoint = null;
 		if(lastCkpPath != null)
 			checkpoint = fr.getCkpState(lastCkpPath);
+		int ckpLastConsensusId = fr.getCkpLastConsensusId();
 		CommandsInfo[] log = null;
 		if(logPath !=null)
-			log = fr.getLogState(0, logPath);
-		int ckpLastConsensusId = fr.getCkpLastConsensusId();
-		int logLastConsensusId = fr.getLogLastConsensusId();
+			log = readDurableLog(fr, ckpLastConsensusId);
+		int logLastConsensusId = ckpLastConsensusId + (log != null ? log.length : 0);
 		logger.info("log last consensus id: " + logLastConsensusId);
 		ApplicationState state = new DefaultApplicationState(log, ckpLastConsensusId,
 				logLastConsensusId, checkpoint, fr.getCkpStateHash(), this.id);
@@ -292,4 +385,22 @@ public class DiskStateLog extends StateLog {
 		
 		return state;
 	}
+
+	/**
+	 * Reads the batches after the checkpoint from the log files, oldest
+	 * first. The batches after a checkpoint are in more than one file if the
+	 * replica stopped while the checkpoint was stored in the background, or
+	 * while it was running after a previous recovery.
+	 */
+	private CommandsInfo[] readDurableLog(FileRecoverer fr, int ckpLastConsensusId) {
+		List<CommandsInfo> batches = new ArrayList<>();
+		for (String path : fr.getFiles(".log")) {
+			CommandsInfo[] recoveredBatches = fr.getLogStateFrom(ckpLastConsensusId + batches.size() + 1, 0, path);
+			// a file with other consensus instances only (e.g., left by a previous run) is skipped
+			if (recoveredBatches != null && recoveredBatches.length > 0
+					&& fr.getLogLastConsensusId() == ckpLastConsensusId + batches.size() + recoveredBatches.length)
+				batches.addAll(Arrays.asList(recoveredBatches));
+		}
+		return batches.toArray(new CommandsInfo[batches.size()]);
+	}
 }
@@ -15,16 +15,20 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,49 +63,33 @@ public class FileRecoverer {
 //	}
 
 	public CommandsInfo[] getLogState(int index, String logPath) {
-		RandomAccessFile log = null;
-
 		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, index);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
-
-		return null;
+		return recoverLogState(logPath, GroupCommitLog.position(0, 0), 0, -1, index);
 	}
 
 	/**
 	 * Recover portions of the log for collaborative state transfer.
-	 * @param start the index for which the commands start to be collected
+	 * @param pointer position in the log from which to read (see GroupCommitLog.position())
+	 * @param startOffset number of batches skipped after the pointer
 	 * @param number the number of commands retrieved
 	 * @return The commands for the period selected
 	 */
 	public CommandsInfo[] getLogState(long pointer, int startOffset,  int number, String logPath) {
-		RandomAccessFile log = null;
-
 		logger.info("GETTING LOG FROM " + logPath);
-		if ((log = openLogFile(logPath)) != null) {
-
-			CommandsInfo[] logState = recoverLogState(log, pointer, startOffset, number);
-
-			try {
-				log.close();
-			} catch (IOException e) {
-				logger.error("Failed to get state log",e);
-			}
-
-			return logState;
-		}
+		return recoverLogState(logPath, pointer, startOffset, -1, number);
+	}
 
-		return null;
+	/**
+	 * Reads the batches of a range of consensus instances. The sparse index
+	 * of the log is used to start reading close to the first one, and the
+	 * batches before it are skipped without being decoded.
+	 * @param firstCID the first consensus ID to retrieve
+	 * @param number the number of batches retrieved
+	 * @return The batches of the consensus instances firstCID and following
+	 */
+	public CommandsInfo[] getLogStateFrom(int firstCID, int number, String logPath) {
+		logger.info("GETTING LOG FROM " + logPath + " STARTING AT CID " + firstCID);
+		return recoverLogState(logPath, seek(logPath, firstCID), 0, firstCID, number);
 	}
 
 	public byte[] getCkpState(String ckpPath) {
@@ -290,119 +278,167 @@ public class FileRecoverer {
 		return null;
 	}
 
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, int endOffset) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-			logger.debug("filepointer: " + log.getFilePointer() + " loglength " + logLength + " endoffset " + endOffset);
-			while (mayRead) {
+	/**
+	 * Reads batches from a log written by GroupCommitLog, following its
+	 * segments. Segments are mapped in memory, and the batches that are
+	 * skipped are not decoded. The log ends at the first empty or corrupted
+	 * record.
+	 * @param logPath path of the first segment of the log
+	 * @param pointer position from which to read
+	 * @param startOffset number of batches to skip
+	 * @param firstCID batches of previous consensus instances are skipped
+	 * @param number number of batches to read, or 0 to read until the end of
+	 * the log (in which case the last consensus ID in the log is also kept)
+	 * @return The batches read, or null if the log could not be read
+	 */
+	private CommandsInfo[] recoverLogState(String logPath, long pointer, int startOffset, int firstCID, int number) {
+		ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
+		CRC32 crc = new CRC32();
+		int skipped = 0;
+		int lastCID = -1;
+		long offset = GroupCommitLog.offsetOf(pointer);
+
+		for (int segment = GroupCommitLog.segmentOf(pointer); ; segment++, offset = 0) {
+			MappedByteBuffer log = mapSegment(GroupCommitLog.segmentPath(logPath, segment));
+			if (log == null) {
+				if (segment == GroupCommitLog.segmentOf(pointer) && !new File(logPath).exists()) {
+					return null;
+				}
+				break;
+			}
+			int position = (int) Math.max(offset, GroupCommitLog.SEGMENT_HEADER_SIZE);
+
+			while (log.limit() - position >= GroupCommitLog.RECORD_HEADER_SIZE) {
+				int length = log.getInt(position);
+				int cid = log.getInt(position + 2 * Integer.BYTES);
+				if (length <= 0) {
+					break; // end of the records in this segment
+				}
+				if (length > log.limit() - position - GroupCommitLog.RECORD_HEADER_SIZE) {
+					logger.warn("Log " + logPath + " ends with a truncated record");
+					return finish(state, lastCID, number);
+				}
+				int next = position + GroupCommitLog.RECORD_HEADER_SIZE + length;
+
+				if (skipped < startOffset || cid < firstCID) {
+					// the checksum of the next record tells whether this one was complete
+					skipped++;
+					position = next;
+					continue;
+				}
+				if (!checksumMatches(log, position, crc)) {
+					logger.warn("Log " + logPath + " ends with a corrupted record");
+					return finish(state, lastCID, number);
+				}
+
+				ByteBuffer batch = log.duplicate();
+				batch.limit(next).position(position + GroupCommitLog.RECORD_HEADER_SIZE);
 				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-								state.add((CommandsInfo) ois.readObject());
-								if (++recoveredBatches == endOffset) {
-									logger.debug("read all " + endOffset + " log messages");
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							logLastConsensusId = log.readInt();
-							return state.toArray(new CommandsInfo[state.size()]);
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recover log state",e);
-					state.clear();
-					mayRead = false;
+					state.add(CommandsInfo.read(batch.slice()));
+				} catch (IOException e) {
+					logger.error("Failed to recover log state", e);
+					return null;
+				}
+				lastCID = cid;
+				position = next;
+				if (state.size() == number) {
+					logger.debug("read all " + number + " log messages");
+					return state.toArray(new CommandsInfo[state.size()]);
 				}
 			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception", e);
 		}
-
-		return null;
+		return finish(state, lastCID, number);
 	}
 
 	/**
-	 * Searches the log file and retrieves the portion selected.
-	 * @param log The log file
-	 * @param start The offset to start retrieving commands
-	 * @param number The number of commands retrieved
-	 * @return The commands for the period selected
+	 * Finds where to start reading to get to a consensus instance, using the
+	 * sparse indexes of the segments.
+	 * @return the position of the last indexed record of a consensus before
+	 * (or equal to) cid, or the start of the log if there is none
 	 */
-	private CommandsInfo[] recoverLogState(RandomAccessFile log, long pointer, int startOffset, int number) {
-		try {
-			long logLength = log.length();
-			ArrayList<CommandsInfo> state = new ArrayList<CommandsInfo>();
-			int recoveredBatches = 0;
-			boolean mayRead = true;
-
-			log.seek(pointer);
-
-			int index = 0;
-			while(index < startOffset) {
-				int size = log.readInt();
-				byte[] bytes = new byte[size];
-				log.read(bytes);
-				index++;
+	private long seek(String logPath, int cid) {
+		long best = GroupCommitLog.position(0, 0);
+		CRC32 crc = new CRC32();
+		for (int segment = 0; ; segment++) {
+			File index = new File(GroupCommitLog.indexPath(logPath, segment));
+			if (!index.exists() || !new File(GroupCommitLog.segmentPath(logPath, segment)).exists()) {
+				return best;
+			}
+			ByteBuffer entries;
+			try {
+				entries = ByteBuffer.wrap(Files.readAllBytes(index.toPath()));
+			} catch (IOException e) {
+				logger.warn("Failed to read log index " + index, e);
+				return best;
+			}
+			if (entries.remaining() < GroupCommitLog.INDEX_ENTRY_SIZE || entries.getInt(0) > cid) {
+				return best; // the consensus is in a previous segment
 			}
 
-			while (mayRead) {
-
-				try {
-					if (log.getFilePointer() < logLength) {
-						int size = log.readInt();
-
-						if (size > 0) {
-							byte[] bytes = new byte[size];
-							int read = log.read(bytes);
-							if (read == size) {
-								ByteArrayInputStream bis = new ByteArrayInputStream(
-										bytes);
-								ObjectInputStream ois = new ObjectInputStream(
-										bis);
-
-								state.add((CommandsInfo) ois.readObject());
-
-								if (++recoveredBatches == number) {
-									return state.toArray(new CommandsInfo[state.size()]);
-								}
-							} else {
-								mayRead = false;
-								state.clear();
-							}
-						} else {
-							mayRead = false;
-						}
-					} else {
-						mayRead = false;
-					}
-				} catch (Exception e) {
-					logger.error("Failed to recolver log state",e);
-					state.clear();
-					mayRead = false;
+			// last entry before the consensus that points to a valid record
+			MappedByteBuffer log = null;
+			int entry = entries.remaining() / GroupCommitLog.INDEX_ENTRY_SIZE;
+			while (--entry >= 0) {
+				int entryCID = entries.getInt(entry * GroupCommitLog.INDEX_ENTRY_SIZE);
+				int offset = entries.getInt(entry * GroupCommitLog.INDEX_ENTRY_SIZE + Integer.BYTES);
+				if (entryCID > cid) {
+					continue;
+				}
+				if (log == null && (log = mapSegment(GroupCommitLog.segmentPath(logPath, segment))) == null) {
+					return best;
+				}
+				if (offset >= GroupCommitLog.SEGMENT_HEADER_SIZE
+						&& offset <= log.limit() - GroupCommitLog.RECORD_HEADER_SIZE
+						&& log.getInt(offset + 2 * Integer.BYTES) == entryCID
+						&& checksumMatches(log, offset, crc)) {
+					best = GroupCommitLog.position(segment, offset);
+					break;
 				}
 			}
-		} catch (Exception e) {
-			logger.error("State recover was aborted due to an unexpected exception",e);
+			if (entry < 0) {
+				return best; // no usable entry (e.g., the index was not written before a crash)
+			}
 		}
+	}
 
-		return null;
+	private MappedByteBuffer mapSegment(String path) {
+		File file = new File(path);
+		if (!file.exists()) {
+			return null;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (segment.limit() < GroupCommitLog.SEGMENT_HEADER_SIZE || segment.getInt(0) != GroupCommitLog.MAGIC
+					|| segment.getInt(Integer.BYTES) != GroupCommitLog.VERSION) {
+				logger.error("Log segment " + path + " is not in the current log format");
+				return null;
+			}
+			return segment;
+		} catch (IOException e) {
+			logger.error("Failed to map log segment " + path, e);
+			return null;
+		}
+	}
+
+	private static boolean checksumMatches(ByteBuffer log, int position, CRC32 crc) {
+		int length = log.getInt(position);
+		if (length <= 0 || length > log.limit() - position - GroupCommitLog.RECORD_HEADER_SIZE) {
+			return false;
+		}
+		ByteBuffer covered = log.duplicate();
+		covered.limit(position + GroupCommitLog.RECORD_HEADER_SIZE + length).position(position + 2 * Integer.BYTES);
+		crc.reset();
+		crc.update(covered);
+		return (int) crc.getValue() == log.getInt(position + Integer.BYTES);
+	}
+
+	private CommandsInfo[] finish(ArrayList<CommandsInfo> state, int lastCID, int number) {
+		if (number <= 0) {
+			logLastConsensusId = lastCID;
+		}
+		return state.toArray(new CommandsInfo[state.size()]);
 	}
 
 	public String getLatestFile(String extention) {
@@ -424,6 +460,21 @@ public class FileRecoverer {
 		return latestFile;
 	}
 
+	/**
+	 * @return the files of this replica with an extension, oldest first
+	 */
+	public List<String> getFiles(String extention) {
+		File directory = new File(defaultDir);
+		TreeMap<Long, String> files = new TreeMap<>();
+		if (directory.isDirectory()) {
+			for (File f : directory.listFiles(new FileListFilter(replicaId, extention))) {
+				String[] nameItems = f.getName().split("\\.");
+				files.put(Long.parseLong(nameItems[1]), f.getAbsolutePath());
+			}
+		}
+		return new ArrayList<>(files.values());
+	}
+
 	private class FileListFilter implements FilenameFilter {
 
 		private int id;
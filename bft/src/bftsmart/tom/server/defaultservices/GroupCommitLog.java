@@ -0,0 +1,400 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only log of message batches, written to preallocated segment files.
+ *
+ * The first segment is the log path itself (e.g. files/0.1234.log) and the
+ * next ones get a suffix (files/0.1234.log.1, ...). Each segment starts with
+ * a header (magic, version) followed by records:
+ *
+ *   int length | int crc | int consensus id | length bytes (CommandsInfo.write)
+ *
+ * The CRC covers the consensus id and the batch. Segments are zero-filled
+ * when preallocated, so the log ends at the first record with length 0 (or
+ * with a bad CRC, if the replica crashed while writing it).
+ *
+ * Each segment has a sparse index (the segment path plus ".idx") with the
+ * consensus id and offset of its first record and of every INDEX_INTERVAL-th
+ * record after it, so that readers can start close to a given consensus. The
+ * index is never forced: readers check that an entry points to a valid record
+ * before using it.
+ *
+ * Records are written by the appending thread. When the log is synchronous,
+ * a group commit thread forces them to disk: it is woken when groupSize
+ * records are pending or when a thread waits in sync(), and then forces all
+ * the records appended so far with a single FileChannel.force(false).
+ */
+public class GroupCommitLog {
+
+    public static final int MAGIC = 0x4246544C; // "BFTL"
+    public static final int VERSION = 1;
+    public static final int SEGMENT_HEADER_SIZE = 2 * Integer.BYTES;
+    public static final int RECORD_HEADER_SIZE = 3 * Integer.BYTES;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final int DEFAULT_GROUP_SIZE = 64;
+    public static final int INDEX_INTERVAL = 64;
+    public static final int INDEX_ENTRY_SIZE = 2 * Integer.BYTES;
+
+    private Logger logger = LoggerFactory.getLogger(this.getClass());
+
+    private final String path;
+    private final boolean sync;
+    private final int segmentSize;
+    private final int groupSize;
+    private final long groupDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition pending = lock.newCondition();
+    private final Condition forced = lock.newCondition();
+
+    private FileChannel channel;
+    private FileChannel indexChannel;
+    private int segmentRecords; // records in the current segment
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+    private int segment = 0;
+    private long offset; // end of the last record in the current segment
+    private long capacity; // preallocated size of the current segment
+
+    private long appended = 0; // records written
+    private long durable = 0; // records forced to disk
+    private int waiting = 0; // threads in sync()
+    private boolean closed = false;
+    private IOException failure = null;
+
+    // reused by the appending thread
+    private final RecordBuffer buffer = new RecordBuffer();
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final CRC32 crc = new CRC32();
+
+    private Thread committer;
+
+    /**
+     * Creates a new log.
+     *
+     * @param path path of the first segment
+     * @param sync if records must be forced to disk before sync() returns
+     * @param segmentSize size to which segments are preallocated
+     * @param groupSize number of pending records that triggers a force
+     * @param groupDelayMicros time the group commit thread waits for more
+     * records (up to groupSize) before forcing the ones some thread waits for
+     * @throws IOException if the first segment could not be created
+     */
+    public GroupCommitLog(String path, boolean sync, int segmentSize, int groupSize, int groupDelayMicros) throws IOException {
+        this.path = path;
+        this.sync = sync;
+        this.segmentSize = segmentSize;
+        this.groupSize = Math.max(1, groupSize);
+        this.groupDelayNanos = TimeUnit.MICROSECONDS.toNanos(groupDelayMicros);
+
+        this.channel = createSegment(0, segmentSize);
+
+        if (sync) {
+            committer = new Thread(this::commitLoop, "Log group commit " + new File(path).getName());
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * @param logPath path of the first segment of a log
+     * @param index index of the segment
+     * @return path of the segment
+     */
+    public static String segmentPath(String logPath, int index) {
+        return index == 0 ? logPath : logPath + "." + index;
+    }
+
+    /**
+     * @param logPath path of the first segment of a log
+     * @param index index of the segment
+     * @return path of the sparse index of the segment
+     */
+    public static String indexPath(String logPath, int index) {
+        return segmentPath(logPath, index) + ".idx";
+    }
+
+    /**
+     * A position in the log, as returned by position(): the segment index in
+     * the high 32 bits and the offset in the segment in the low ones.
+     */
+    public static long position(int segment, long offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    public static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    public static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Appends a batch to the log. The batch is in the file (and visible to
+     * readers) when this returns, but only durable after sync().
+     *
+     * @param consensusId consensus in which the batch was decided
+     * @param batch the batch
+     * @throws IOException if the log could not be written
+     */
+    public void append(int consensusId, CommandsInfo batch) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            buffer.reset();
+            buffer.skip(RECORD_HEADER_SIZE);
+            batch.write(out);
+            out.flush();
+
+            ByteBuffer record = buffer.toByteBuffer();
+            int length = record.remaining() - RECORD_HEADER_SIZE;
+            record.putInt(0, length);
+            record.putInt(2 * Integer.BYTES, consensusId);
+            crc.reset();
+            crc.update(buffer.array(), 2 * Integer.BYTES, length + Integer.BYTES);
+            record.putInt(Integer.BYTES, (int) crc.getValue());
+
+            if (offset + record.remaining() > capacity) {
+                nextSegment(record.remaining());
+            }
+            long start = offset;
+            while (record.hasRemaining()) {
+                offset += channel.write(record, offset);
+            }
+            if (segmentRecords++ % INDEX_INTERVAL == 0) {
+                indexEntry.clear();
+                indexEntry.putInt(consensusId).putInt((int) start).flip();
+                indexChannel.write(indexEntry);
+            }
+
+            appended++;
+            if (sync && appended - durable >= groupSize) {
+                pending.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all the appended records are on disk. Returns at once if
+     * the log is not synchronous.
+     *
+     * @throws IOException if the records could not be forced
+     */
+    public void sync() throws IOException {
+        if (!sync) {
+            return;
+        }
+        lock.lock();
+        try {
+            long target = appended;
+            waiting++;
+            pending.signal();
+            try {
+                while (durable < target && failure == null && !closed) {
+                    forced.awaitUninterruptibly();
+                }
+            } finally {
+                waiting--;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return position after the last record, see position(int, long)
+     */
+    public long position() {
+        lock.lock();
+        try {
+            return position(segment, offset);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.signal();
+            forced.signalAll();
+            try {
+                if (sync) {
+                    channel.force(false);
+                }
+                channel.close();
+                indexChannel.close();
+            } catch (IOException e) {
+                logger.error("Failed to close log segment", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the log and deletes all its segments.
+     */
+    public void delete() {
+        close();
+        delete(path);
+    }
+
+    /**
+     * Deletes all the segments of a log that is not open.
+     *
+     * @param logPath path of the first segment of the log
+     */
+    public static void delete(String logPath) {
+        for (int i = 0; new File(segmentPath(logPath, i)).exists() || new File(indexPath(logPath, i)).exists(); i++) {
+            new File(segmentPath(logPath, i)).delete();
+            new File(indexPath(logPath, i)).delete();
+        }
+    }
+
+    private FileChannel createSegment(int number, int size) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentPath(path, number), "rw");
+        // preallocated, so that forcing the segment does not have to update its length
+        file.setLength(size);
+        FileChannel ch = file.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        ch.write(header, 0);
+        offset = SEGMENT_HEADER_SIZE;
+        capacity = size;
+
+        indexChannel = new RandomAccessFile(indexPath(path, number), "rw").getChannel();
+        indexChannel.truncate(0);
+        segmentRecords = 0;
+        return ch;
+    }
+
+    // called with the lock held
+    private void nextSegment(int recordSize) throws IOException {
+        // the records of the full segment must be durable before it is closed
+        if (sync) {
+            channel.force(false);
+        }
+        channel.close();
+        indexChannel.close();
+        segment++;
+        channel = createSegment(segment, Math.max(segmentSize, SEGMENT_HEADER_SIZE + recordSize));
+        logger.debug("Log {} moved to segment {}", path, segment);
+    }
+
+    private void commitLoop() {
+        lock.lock();
+        try {
+            while (!closed) {
+                while (!closed && (durable == appended || (waiting == 0 && appended - durable < groupSize))) {
+                    pending.awaitUninterruptibly();
+                }
+                if (closed) {
+                    break;
+                }
+
+                // give other appenders the chance to join this group
+                long remaining = groupDelayNanos;
+                while (remaining > 0 && !closed && appended - durable < groupSize) {
+                    try {
+                        remaining = pending.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+
+                long target = appended;
+                FileChannel ch = channel;
+                lock.unlock();
+                try {
+                    ch.force(false);
+                } catch (ClosedChannelException e) {
+                    // the segment was closed (and forced) by nextSegment() or close()
+                } catch (IOException e) {
+                    logger.error("Failed to force log " + path + " to disk", e);
+                    lock.lock();
+                    failure = e; // reported to the threads in sync()
+                    forced.signalAll();
+                    break;
+                }
+                lock.lock();
+                durable = Math.max(durable, target);
+                forced.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Growable buffer whose contents can be used without copying them.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        RecordBuffer() {
+            super(4096);
+        }
+
+        void skip(int n) {
+            for (int i = 0; i < n; i++) {
+                write(0);
+            }
+        }
+
+        byte[] array() {
+            return buf;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -15,6 +15,8 @@ limitations under the License.
 */
 package bftsmart.tom.server.defaultservices;
 
+import java.util.Arrays;
+
 import bftsmart.tom.MessageContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,7 +84,30 @@ public class StateLog {
     }
     
     /**
-     * Sets the state associated with the last checkpoint, and updates the consensus ID associated with it
+     * Marks the start of a checkpoint of the state at consensus cid that is
+     * stored in the background (see prepareCheckpoint). Batches of later
+     * consensus instances keep being added meanwhile, and the ones up to cid
+     * are only discarded by newCheckpoint.
+     * @param cid Consensus ID of the checkpoint
+     */
+    public void beginCheckpoint(int cid) {
+    }
+
+    /**
+     * Stores a checkpoint started with beginCheckpoint, without changing the
+     * contents of this log. Called by the checkpoint thread, without the log
+     * lock, before newCheckpoint is called for the same checkpoint. This log
+     * keeps the checkpoint in memory, so there is nothing to store.
+     * @param state State associated with the checkpoint
+     * @param stateHash
+     * @param cid Consensus ID of the checkpoint
+     */
+    public void prepareCheckpoint(byte[] state, byte[] stateHash, int cid) {
+    }
+
+    /**
+     * Sets the state associated with the last checkpoint, and discards the
+     * batches up to the consensus ID associated with it
      * @param state State associated with the last checkpoint
      * @param stateHash
      * @param lastConsensusId
@@ -90,11 +115,16 @@ public class StateLog {
     public void newCheckpoint(byte[] state, byte[] stateHash, int lastConsensusId) {
 
     	if(messageBatches != null) {
-    		for (int i = 0; i < this.messageBatches.length; i++)
+            // batches added after a checkpoint started with beginCheckpoint are kept
+            int kept = Math.max(0, position - Math.max(0, lastConsensusId - lastCheckpointCID));
+            System.arraycopy(messageBatches, position - kept, messageBatches, 0, kept);
+    		for (int i = kept; i < this.messageBatches.length; i++)
                 messageBatches[i] = null;
-    	}
+            position = kept;
+    	} else {
+            position = 0;
+        }
 
-        position = 0;
         this.state = state;
         this.stateHash = stateHash;
                        
@@ -153,19 +183,28 @@ public class StateLog {
     /**
      * Adds a message batch to the log. This batches should be added to the log
      * in the same order in which they are delivered to the application. Only
-     * the 'k' batches received after the last checkpoint are supposed to be kept
+     * the 'k' batches received after the last checkpoint are supposed to be kept,
+     * plus the ones received while a checkpoint is stored in the background
      * @param commands The batch of messages to be kept.
      * @param msgCtx The message contexts related to the commands
      * @param lastConsensusId
      */
     public void addMessageBatch(byte[][] commands, MessageContext[] msgCtx, int lastConsensusId) {
-        if (position < messageBatches.length) {
-            messageBatches[position] = new CommandsInfo(commands, msgCtx);
-            position++;
+        if (position == messageBatches.length) {
+            messageBatches = Arrays.copyOf(messageBatches, Math.max(1, 2 * messageBatches.length));
         }
+        messageBatches[position] = new CommandsInfo(commands, msgCtx);
+        position++;
         setLastCID(lastConsensusId);
     }
 
+    /**
+     * Waits until the batches added to the log are durable. The batches of
+     * this log are kept in memory, so there is nothing to wait for.
+     */
+    public void sync() {
+    }
+
     /**
      * Returns a batch of messages, given its correspondent consensus ID
      * @param cid Consensus ID associated with the batch to be fetched
@@ -233,6 +272,9 @@ public class StateLog {
 
         position = 0;
         if (transState.getMessageBatches() != null) {
+            if (transState.getMessageBatches().length > messageBatches.length) {
+                messageBatches = new CommandsInfo[transState.getMessageBatches().length];
+            }
             for (int i = 0; i < transState.getMessageBatches().length; i++, position = i) {
                 this.messageBatches[i] = transState.getMessageBatches()[i];
             }
@@ -0,0 +1,199 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.server.defaultservices;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+
+import bftsmart.communication.server.SystemMessageCodec;
+import bftsmart.consensus.messages.ConsensusMessage;
+import bftsmart.consensus.messages.MessageFactory;
+import bftsmart.tom.MessageContext;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+
+/**
+ * Writes batches with GroupCommitLog and reads them back with FileRecoverer,
+ * checking that every field of the batches survives the disk log format:
+ * commands, message contexts, proofs and first requests (shared by several
+ * contexts or not), across several segments and from the sparse index.
+ *
+ * Usage: ... TestLogRecovery [batches]
+ */
+public class TestLogRecovery {
+
+    private static final Random random = new Random(7);
+
+    public static void main(String[] args) throws Exception {
+        int batches = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+
+        File dir = Files.createTempDirectory("bftlog").toFile();
+        String path = new File(dir, "test.log").getPath();
+        try {
+            CommandsInfo[] written = new CommandsInfo[batches];
+            // small segments, so that the log spans several of them
+            GroupCommitLog log = new GroupCommitLog(path, false, 16 * 1024, 1, 0);
+            for (int cid = 0; cid < batches; cid++) {
+                written[cid] = randomBatch(cid);
+                log.append(cid, written[cid]);
+            }
+            log.close();
+
+            int segments = 0;
+            while (new File(GroupCommitLog.segmentPath(path, segments)).exists()) {
+                segments++;
+            }
+            check(segments > 2, "log has only " + segments + " segments");
+
+            FileRecoverer recoverer = new FileRecoverer(0, dir.getPath());
+
+            CommandsInfo[] all = recoverer.getLogState(0, path);
+            check(all != null && all.length == batches, "getLogState read " + (all == null ? null : all.length) + " batches");
+            for (int cid = 0; cid < batches; cid++) {
+                compare(written[cid], all[cid], "batch " + cid);
+            }
+            check(recoverer.getLogLastConsensusId() == batches - 1, "last consensus " + recoverer.getLogLastConsensusId());
+
+            // seeks through the sparse index, including the first and last
+            // records of segments and of index intervals
+            int[] starts = {0, 1, GroupCommitLog.INDEX_INTERVAL - 1, GroupCommitLog.INDEX_INTERVAL,
+                    GroupCommitLog.INDEX_INTERVAL + 1, batches / 2, batches - 2, batches - 1};
+            for (int first : starts) {
+                int number = Math.min(10, batches - first);
+                CommandsInfo[] range = recoverer.getLogStateFrom(first, number, path);
+                check(range != null && range.length == number, "getLogStateFrom(" + first + ") read "
+                        + (range == null ? null : range.length) + " batches");
+                for (int i = 0; i < number; i++) {
+                    compare(written[first + i], range[i], "batch " + (first + i) + " from " + first);
+                }
+            }
+            for (int i = 0; i < 20; i++) {
+                int first = random.nextInt(batches);
+                CommandsInfo[] range = recoverer.getLogStateFrom(first, 1, path);
+                check(range != null && range.length == 1, "getLogStateFrom(" + first + ") failed");
+                compare(written[first], range[0], "batch " + first);
+            }
+
+            CommandsInfo[] skipped = recoverer.getLogState(GroupCommitLog.position(0, 0), 5, 3, path);
+            check(skipped != null && skipped.length == 3, "getLogState with offset failed");
+            for (int i = 0; i < 3; i++) {
+                compare(written[5 + i], skipped[i], "batch " + (5 + i) + " after offset");
+            }
+
+            System.out.println("Recovered " + batches + " batches from " + segments + " segments: OK");
+        } finally {
+            GroupCommitLog.delete(path);
+            dir.delete();
+        }
+    }
+
+    private static CommandsInfo randomBatch(int cid) {
+        int n = 1 + random.nextInt(6);
+        byte[][] commands = new byte[n][];
+        MessageContext[] msgCtx = new MessageContext[n];
+
+        Set<ConsensusMessage> proof = random.nextInt(4) == 0 ? null : randomProof(cid);
+        TOMMessage first = random.nextInt(5) == 0 ? null
+                : new TOMMessage(random.nextInt(10), 0, cid, 0, randomBytes(20), 0, TOMMessageType.ORDERED_REQUEST);
+        for (int i = 0; i < n; i++) {
+            commands[i] = randomBytes(random.nextInt(3) == 0 ? 2000 : 30);
+            // usually all the contexts share the proof and the first request
+            if (i > 0 && random.nextInt(4) == 0) {
+                proof = random.nextBoolean() ? null : randomProof(cid);
+                first = new TOMMessage(random.nextInt(10), 1, cid, i, randomBytes(10), 0, TOMMessageType.UNORDERED_REQUEST);
+            }
+            msgCtx[i] = new MessageContext(random.nextInt(10), 0,
+                    random.nextBoolean() ? TOMMessageType.ORDERED_REQUEST : null,
+                    random.nextInt(3), random.nextInt(1000), random.nextInt(5), -1,
+                    random.nextBoolean() ? randomBytes(64) : null, random.nextLong(), random.nextInt(3),
+                    random.nextLong(), random.nextInt(3), random.nextInt(4), cid, proof, first,
+                    random.nextInt(10) == 0);
+        }
+        return new CommandsInfo(commands, msgCtx);
+    }
+
+    private static Set<ConsensusMessage> randomProof(int cid) {
+        Set<ConsensusMessage> proof = new HashSet<>();
+        for (int sender = 0; sender < 3; sender++) {
+            ConsensusMessage accept = new ConsensusMessage(MessageFactory.ACCEPT, cid, 0, sender, randomBytes(32));
+            accept.setProof(randomBytes(72));
+            proof.add(accept);
+        }
+        return proof;
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void compare(CommandsInfo expected, CommandsInfo actual, String what) throws Exception {
+        check(actual != null, what + " missing");
+        check(Arrays.deepEquals(expected.commands, actual.commands), what + ": commands differ");
+        check(actual.msgCtx != null && expected.msgCtx.length == actual.msgCtx.length, what + ": contexts differ");
+        for (int i = 0; i < expected.msgCtx.length; i++) {
+            MessageContext e = expected.msgCtx[i];
+            MessageContext a = actual.msgCtx[i];
+            String ctx = what + ", context " + i;
+            check(e.getSender() == a.getSender() && e.getViewID() == a.getViewID() && e.getType() == a.getType()
+                    && e.getSession() == a.getSession() && e.getSequence() == a.getSequence()
+                    && e.getOperationId() == a.getOperationId() && e.getReplyServer() == a.getReplyServer()
+                    && e.getTimestamp() == a.getTimestamp() && e.getNumOfNonces() == a.getNumOfNonces()
+                    && e.getSeed() == a.getSeed() && e.getRegency() == a.getRegency()
+                    && e.getLeader() == a.getLeader() && e.getConsensusId() == a.getConsensusId()
+                    && e.isNoOp() == a.isNoOp(), ctx + ": fields differ");
+            check(Arrays.equals(e.getSignature(), a.getSignature()), ctx + ": signature differs");
+            check(Objects.equals(encoded(e.getProof()), encoded(a.getProof())), ctx + ": proof differs");
+            check(Arrays.equals(bytes(e.getFirstInBatch()), bytes(a.getFirstInBatch())), ctx + ": first request differs");
+            if (i > 0) {
+                // what was shared when written is shared when read
+                check((e.getProof() == expected.msgCtx[i - 1].getProof()) == (a.getProof() == actual.msgCtx[i - 1].getProof())
+                        || e.getProof() == null, ctx + ": proof sharing differs");
+                check((e.getFirstInBatch() == expected.msgCtx[i - 1].getFirstInBatch())
+                        == (a.getFirstInBatch() == actual.msgCtx[i - 1].getFirstInBatch())
+                        || e.getFirstInBatch() == null, ctx + ": first request sharing differs");
+            }
+        }
+    }
+
+    private static Set<String> encoded(Set<ConsensusMessage> proof) throws Exception {
+        if (proof == null) {
+            return null;
+        }
+        Set<String> set = new HashSet<>();
+        for (ConsensusMessage cm : proof) {
+            set.add(Base64.getEncoder().encodeToString(SystemMessageCodec.encode(cm)));
+        }
+        return set;
+    }
+
+    private static byte[] bytes(TOMMessage msg) {
+        return msg == null ? null : TOMMessage.messageToBytes(msg);
+    }
+
+    private static void check(boolean condition, String failure) {
+        if (!condition) {
+            throw new AssertionError(failure);
+        }
+    }
+}
@@ -15,8 +15,6 @@ limitations under the License.
  */
 package bftsmart.tom.server.durability;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -31,6 +29,7 @@ import bftsmart.tom.ReplicaContext;
 import bftsmart.tom.server.BatchExecutable;
 import bftsmart.tom.server.Recoverable;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
+import bftsmart.tom.util.HashService;
 import bftsmart.tom.util.TOMUtil;
 
 import org.slf4j.Logger;
@@ -53,13 +52,10 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
         private Logger logger = LoggerFactory.getLogger(this.getClass());
 
 	private ReentrantLock logLock = new ReentrantLock();
-	private ReentrantLock hashLock = new ReentrantLock();
 	private ReentrantLock stateLock = new ReentrantLock();
 
 	private TOMConfiguration config;
 
-	private MessageDigest md;
-
 	private DurableStateLog log;
 
 	private StateManager stateManager;
@@ -69,14 +65,6 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	private int checkpointPortion;
 	private int replicaCkpIndex;
 
-	public DurabilityCoordinator() {
-		try {
-			md = TOMUtil.getHashEngine();
-		} catch (NoSuchAlgorithmException ex) {
-			logger.error("Failed to get message digest object", ex);
-		}
-	}
-
         @Override
         public byte[][] executeBatch(byte[][] commands, MessageContext[] msgCtxs) {
             return executeBatch(commands, msgCtxs, false);
@@ -285,11 +273,7 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 	}
 
 	private final byte[] computeHash(byte[] data) {
-		byte[] ret = null;
-		hashLock.lock();
-		ret = md.digest(data);
-		hashLock.unlock();
-		return ret;
+		return HashService.hash(data);
 	}
 
 	private void saveState(byte[] snapshot, int lastCID) {
@@ -344,6 +328,9 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 			}
 		}
 		logLock.unlock();
+
+		// the batches are forced to disk together
+		log.sync();
 	}
 
 
@@ -367,7 +354,8 @@ public abstract class DurabilityCoordinator implements Recoverable, BatchExecuta
 				boolean syncLog = config.isToWriteSyncLog();
 				boolean syncCkp = config.isToWriteSyncCkp();
 //				log = new DurableStateLog(replicaId, state, computeHash(state), isToLog, syncLog, syncCkp);
-				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp);
+				log = new DurableStateLog(replicaId, null, null, isToLog, syncLog, syncCkp,
+						config.getLogGroupSize(), config.getLogGroupDelay());
 				CSTState storedState = log.loadDurableState();
 				if(storedState.getLastCID() > -1) {
 					logger.info("LAST CID RECOVERED FROM LOG: " + storedState.getLastCID());
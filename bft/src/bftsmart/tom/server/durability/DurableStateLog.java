@@ -15,11 +15,9 @@ limitations under the License.
 */
 package bftsmart.tom.server.durability;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
@@ -33,6 +31,7 @@ import bftsmart.statemanagement.durability.CSTState;
 import bftsmart.tom.MessageContext;
 import bftsmart.tom.server.defaultservices.CommandsInfo;
 import bftsmart.tom.server.defaultservices.FileRecoverer;
+import bftsmart.tom.server.defaultservices.GroupCommitLog;
 import bftsmart.tom.server.defaultservices.StateLog;
 import bftsmart.tom.util.TOMUtil;
 
@@ -44,8 +43,10 @@ public class DurableStateLog extends StateLog {
 	private static final int INT_BYTE_SIZE = 4;
 	private static final int EOF = 0;
 
-	private RandomAccessFile log;
+	private GroupCommitLog log;
 	private boolean syncLog;
+	private int groupSize;
+	private int groupDelay;
 	private String logPath;
 	private String lastCkpPath;
 	private boolean syncCkp;
@@ -56,11 +57,19 @@ public class DurableStateLog extends StateLog {
 	
 	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
 			boolean isToLog, boolean syncLog, boolean syncCkp) {
+		this(id, initialState, initialHash, isToLog, syncLog, syncCkp,
+				GroupCommitLog.DEFAULT_GROUP_SIZE, 0);
+	}
+
+	public DurableStateLog(int id, byte[] initialState, byte[] initialHash,
+			boolean isToLog, boolean syncLog, boolean syncCkp, int groupSize, int groupDelay) {
 		super(id, initialState, initialHash);
 		this.id = id;
 		this.isToLog = isToLog;
 		this.syncLog = syncLog;
 		this.syncCkp = syncCkp;
+		this.groupSize = groupSize;
+		this.groupDelay = groupDelay;
 		this.logPointers = new HashMap<Integer, Long>();
                 
                 File directory = new File(DEFAULT_DIR);
@@ -73,8 +82,8 @@ public class DurableStateLog extends StateLog {
 		logPath = DEFAULT_DIR + String.valueOf(id) + "."
 				+ System.currentTimeMillis() + ".log";
 		try {
-			log = new RandomAccessFile(logPath, (syncLog ? "rwd" : "rw"));
-		} catch (FileNotFoundException e) {
+			log = new GroupCommitLog(logPath, syncLog, GroupCommitLog.DEFAULT_SEGMENT_SIZE, groupSize, groupDelay);
+		} catch (IOException e) {
 			logger.error("Failed to create log file",e);
 		}
 	}
@@ -100,28 +109,22 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void writeCommandToDisk(CommandsInfo commandsInfo, int consensusId) {
-		ByteArrayOutputStream bos = new ByteArrayOutputStream();
 		try {
-			ObjectOutputStream oos = new ObjectOutputStream(bos);
-			oos.writeObject(commandsInfo);
-			oos.flush();
-
-			byte[] batchBytes = bos.toByteArray();
-
-			ByteBuffer bf = ByteBuffer.allocate(3 * INT_BYTE_SIZE
-					+ batchBytes.length);
-			bf.putInt(batchBytes.length);
-			bf.put(batchBytes);
-			bf.putInt(EOF);
-			bf.putInt(consensusId);
-			
-			log.write(bf.array());
-			log.seek(log.length() - 2 * INT_BYTE_SIZE);// Next write will overwrite
-													// the EOF mark
+			log.append(consensusId, commandsInfo);
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			logger.error("Failed to write command to disk",e);
-	    }
+		}
+	}
+
+        @Override
+	public void sync() {
+		if (log != null) {
+			try {
+				log.sync();
+			} catch (IOException e) {
+				logger.error("Failed to force log to disk",e);
+			}
+		}
 	}
 	
         @Override
@@ -177,13 +180,10 @@ public class DurableStateLog extends StateLog {
 	}
 
 	private void deleteLogFile() {
-		try {
-			if(log != null)
-				log.close();
+		if(log != null)
+			log.delete();
+		else if (logPath != null)
 			new File(logPath).delete();
-		} catch (IOException e) {
-			logger.error("Failed to delete log file",e);
-		}
 	}
 
 	public CSTState getState(CSTRequest cstRequest) {
@@ -273,12 +273,8 @@ public class DurableStateLog extends StateLog {
 		// save the file pointer to retrieve log information later
 		if((cid % checkpointPeriod) % checkpointPortion == checkpointPortion -1) {
 			int ckpReplicaIndex = (((cid % checkpointPeriod) + 1) / checkpointPortion) -1;
-			try {
-				logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.getFilePointer());
-				logPointers.put(ckpReplicaIndex, log.getFilePointer());
-			} catch (IOException e) {
-				logger.error("Failed to get file pointer",e);
-			}
+			logger.info("Replica " + ckpReplicaIndex + " took checkpoint. My current log pointer is " + log.position());
+			logPointers.put(ckpReplicaIndex, log.position());
 		}
 	}
 
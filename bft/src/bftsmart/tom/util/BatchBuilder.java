@@ -113,7 +113,7 @@ public final class BatchBuilder {
 		for (TOMMessage msg : msgs) {
 			//TOMMessage msg = msgs.next();
 			logger.debug("Adding request from client " + msg.getSender() + " with sequence number " + msg.getSequence() + " for session " + msg.getSession() + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
+			messages[i] = msg.getSerializedMessage();
 			signatures[i] = msg.serializedMessageSignature;
 
 			totalMessageSize += messages[i].length;
@@ -139,7 +139,7 @@ public final class BatchBuilder {
 		for (TOMMessage msg : msgs) {
 			//TOMMessage msg = msgs.next();
 			//Logger.println("(TOMLayer.run) adding req " + msg + " to PROPOSE");
-			messages[i] = msg.serializedMessage;
+			messages[i] = msg.getSerializedMessage();
 			signatures[i] = msg.serializedMessageSignature;
 
 			totalMessageSize += messages[i].length;
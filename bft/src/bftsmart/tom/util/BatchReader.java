@@ -15,82 +15,150 @@ limitations under the License.
 */
 package bftsmart.tom.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.nio.ByteBuffer;
-import java.util.Random;
 
 import bftsmart.reconfiguration.ServerViewController;
 import bftsmart.tom.core.messages.TOMMessage;
 import org.slf4j.LoggerFactory;
 
 /**
- * Batch format: N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte)] +
- *               TIMESTAMP(long) + N_NONCES(int) + NONCES(byte[])
+ * Batch format: TIMESTAMP(long) + N_NONCES(int) + SEED(long, only if N_NONCES > 0) +
+ *               N_MESSAGES(int) + N_MESSAGES*[MSGSIZE(int),MSG(byte),SIGSIZE(int),SIG(byte)]
+ *               (SIGSIZE and SIG are present only if signatures are used)
  *
+ * The reader is a view over the batch: the header and the position of each
+ * request are read in place the first time they are needed, and the bytes of
+ * each request can be accessed as a slice of the batch, without copying them.
  */
 public final class BatchReader {
 
-    private ByteBuffer proposalBuffer;
-    private boolean useSignatures;
+    private final byte[] batch;
+    private final boolean useSignatures;
+
+    // header fields and request positions, filled by index()
+    private boolean indexed = false;
+    private long timestamp;
+    private int numberOfNonces;
+    private long seed;
+    private int[] offsets; // offset of each request in the batch
+    private int[] lengths; // length of each request
+    private int[] sigOffsets; // offset of each signature, or -1 if there is none
+    private int[] sigLengths;
 
     /** wrap buffer */
     public BatchReader(byte[] batch, boolean useSignatures) {
-        proposalBuffer = ByteBuffer.wrap(batch);
+        this.batch = batch;
         this.useSignatures = useSignatures;
     }
 
-    public TOMMessage[] deserialiseRequests(ServerViewController controller) {
+    // reads the header and the size of each request, without copying anything
+    private void index() {
+        if (indexed) return;
 
-        //obtain the timestamps to be delivered to the application
-        long timestamp = proposalBuffer.getLong();
+        ByteBuffer proposalBuffer = ByteBuffer.wrap(batch);
 
-        int numberOfNonces = proposalBuffer.getInt();
-        
-        long seed = 0;
+        timestamp = proposalBuffer.getLong();
 
-        Random rnd = null;
-        if(numberOfNonces > 0){
+        numberOfNonces = proposalBuffer.getInt();
+        if (numberOfNonces > 0) {
             seed = proposalBuffer.getLong();
-            rnd = new Random(seed);
+        } else {
+            numberOfNonces = 0; // make sure the value is correct
         }
-        else numberOfNonces = 0; // make sure the value is correct
-        
+
         int numberOfMessages = proposalBuffer.getInt();
 
-        TOMMessage[] requests = new TOMMessage[numberOfMessages];
+        offsets = new int[numberOfMessages];
+        lengths = new int[numberOfMessages];
+        if (useSignatures) {
+            sigOffsets = new int[numberOfMessages];
+            sigLengths = new int[numberOfMessages];
+        }
 
         for (int i = 0; i < numberOfMessages; i++) {
-            //read the message and its signature from the batch
             int messageSize = proposalBuffer.getInt();
+            offsets[i] = proposalBuffer.position();
+            lengths[i] = messageSize;
+            proposalBuffer.position(offsets[i] + messageSize);
 
-            byte[] message = new byte[messageSize];
-            proposalBuffer.get(message);
-
-            byte[] signature = null;
-            
             if (useSignatures) {
-                
                 int sigSize = proposalBuffer.getInt();
-
-                if (sigSize > 0) {
-                    signature = new byte[sigSize];
-                    proposalBuffer.get(signature);
-                }
-            }
-            
-            //obtain the nonces to be delivered to the application
-            byte[] nonces = new byte[numberOfNonces];
-            if (nonces.length > 0) {
-                rnd.nextBytes(nonces);
+                sigOffsets[i] = sigSize > 0 ? proposalBuffer.position() : -1;
+                sigLengths[i] = sigSize > 0 ? sigSize : 0;
+                if (sigSize > 0) proposalBuffer.position(sigOffsets[i] + sigSize);
             }
+        }
+
+        indexed = true;
+    }
+
+    public long getTimestamp() {
+        index();
+        return timestamp;
+    }
+
+    public int getNumberOfNonces() {
+        index();
+        return numberOfNonces;
+    }
+
+    public long getSeed() {
+        index();
+        return seed;
+    }
+
+    public int getNumberOfMessages() {
+        index();
+        return offsets.length;
+    }
+
+    /**
+     * Returns the serialized i-th request of the batch.
+     *
+     * @param i index of the request
+     * @return read-only slice of the batch holding the request
+     */
+    public ByteBuffer getMessage(int i) {
+        index();
+        return ByteBuffer.wrap(batch, offsets[i], lengths[i]).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the signature of the i-th request of the batch.
+     *
+     * @param i index of the request
+     * @return read-only slice of the batch holding the signature, or null if
+     * the request is not signed
+     */
+    public ByteBuffer getSignature(int i) {
+        index();
+        if (!useSignatures || sigOffsets[i] == -1) return null;
+        return ByteBuffer.wrap(batch, sigOffsets[i], sigLengths[i]).slice().asReadOnlyBuffer();
+    }
+
+    public TOMMessage[] deserialiseRequests(ServerViewController controller) {
+
+        index();
+
+        TOMMessage[] requests = new TOMMessage[offsets.length];
+
+        // a single buffer over the batch, moved from one request to the next
+        ByteBuffer in = ByteBuffer.wrap(batch);
+
+        for (int i = 0; i < requests.length; i++) {
             try {
-                DataInputStream ois = new DataInputStream(new ByteArrayInputStream(message));
+                in.limit(offsets[i] + lengths[i]);
+                in.position(offsets[i]);
+
                 TOMMessage tm = new TOMMessage();
-                tm.rExternal(ois);
+                tm.rExternal(in);
 
-                tm.serializedMessage = message;
-                tm.serializedMessageSignature = signature;
+                tm.setSerializedMessage(batch, offsets[i], lengths[i]);
+                if (useSignatures && sigOffsets[i] != -1) {
+                    tm.serializedMessageSignature = new byte[sigLengths[i]];
+                    System.arraycopy(batch, sigOffsets[i], tm.serializedMessageSignature, 0, sigLengths[i]);
+                }
+                //the nonces are generated by the application from the seed
                 tm.numOfNonces = numberOfNonces;
                 tm.seed = seed;
                 tm.timestamp = timestamp;
@@ -0,0 +1,139 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Map from consensus ids to values, for ids that are dense and mostly grow.
+ * The values are kept in a ring buffer indexed by the id modulo its capacity,
+ * so that the usual operations take constant time and do not box the id.
+ * Discarding all the ids up to a stable one costs one step per id discarded
+ * (at most the capacity).
+ *
+ * An id whose slot is taken by another id still in the map (i.e., ids more
+ * than a capacity apart) goes to a hash map instead.
+ *
+ * This class is not thread safe.
+ */
+public class ConsensusWindow<V> {
+
+    private final int mask;
+    private final int[] ids;
+    private final Object[] values; // null for an empty slot
+    private final HashMap<Integer, V> overflow = new HashMap<>();
+    private int low = Integer.MAX_VALUE; // no id below this one is in the ring
+
+    /**
+     * Creates an empty map.
+     *
+     * @param capacity minimum number of consecutive ids kept in the ring
+     */
+    public ConsensusWindow(int capacity) {
+        int n = 1;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        this.mask = n - 1;
+        this.ids = new int[n];
+        this.values = new Object[n];
+    }
+
+    /**
+     * @param id consensus id
+     * @return the value of the id, or null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int id) {
+        int slot = id & mask;
+        if (values[slot] != null && ids[slot] == id) {
+            return (V) values[slot];
+        }
+        return overflow.isEmpty() ? null : overflow.get(id);
+    }
+
+    /**
+     * Associates a value to an id, replacing the previous one.
+     *
+     * @param id consensus id
+     * @param value the value, not null
+     */
+    public void put(int id, V value) {
+        int slot = id & mask;
+        if ((values[slot] != null && ids[slot] != id) || (!overflow.isEmpty() && overflow.containsKey(id))) {
+            overflow.put(id, value);
+            return;
+        }
+        ids[slot] = id;
+        values[slot] = value;
+        if (id < low) {
+            low = id;
+        }
+    }
+
+    /**
+     * @param id consensus id
+     * @return the value that was removed, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int id) {
+        int slot = id & mask;
+        if (values[slot] != null && ids[slot] == id) {
+            V value = (V) values[slot];
+            values[slot] = null;
+            return value;
+        }
+        return overflow.isEmpty() ? null : overflow.remove(id);
+    }
+
+    /**
+     * Removes all the ids up to (and including) the given one.
+     *
+     * @param id the highest consensus id to remove
+     */
+    public void removeUpTo(int id) {
+        if (id >= low) {
+            if ((long) id - low >= values.length) {
+                for (int slot = 0; slot < values.length; slot++) {
+                    if (values[slot] != null && ids[slot] <= id) {
+                        values[slot] = null;
+                    }
+                }
+            } else {
+                for (int i = low; i <= id; i++) {
+                    int slot = i & mask;
+                    if (values[slot] != null && ids[slot] == i) {
+                        values[slot] = null;
+                    }
+                }
+            }
+            low = (id == Integer.MAX_VALUE) ? id : id + 1;
+        }
+        if (!overflow.isEmpty()) {
+            overflow.keySet().removeIf(k -> k <= id);
+        }
+    }
+
+    /**
+     * Removes all the ids.
+     */
+    public void clear() {
+        Arrays.fill(values, null);
+        overflow.clear();
+        low = Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.IntStream;
+
+/**
+ * Computes hashes with the hash engine of TOMUtil. Each thread has its own
+ * engine, so hashes are computed in parallel and without locks.
+ *
+ * Values of at least a given size (e.g. large batches and snapshots) can be
+ * hashed as a Merkle tree over chunks of the value, whose hashes are computed
+ * in parallel. The root of that tree is not the plain hash of the value, so
+ * all the replicas must use the same threshold and chunk size.
+ */
+public class HashService {
+
+    private static final ThreadLocal<MessageDigest> engines = ThreadLocal.withInitial(() -> {
+        try {
+            return TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Failed to create hash engine", ex);
+        }
+    });
+
+    private final int treeThreshold; // 0 to never hash values as a tree
+    private final int chunkSize;
+
+    /**
+     * Creates a service that hashes every value sequentially.
+     */
+    public HashService() {
+        this(0, 1);
+    }
+
+    /**
+     * Creates a service.
+     *
+     * @param treeThreshold size from which values are hashed as a tree (0 to
+     * never hash them as a tree)
+     * @param chunkSize size of the chunks of a value hashed as a tree
+     */
+    public HashService(int treeThreshold, int chunkSize) {
+        this.treeThreshold = Math.max(0, treeThreshold);
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    /**
+     * @return the hash engine of the calling thread, reset
+     */
+    public static MessageDigest getEngine() {
+        MessageDigest md = engines.get();
+        md.reset();
+        return md;
+    }
+
+    /**
+     * @param data the data
+     * @return the hash of the data
+     */
+    public static byte[] hash(byte[] data) {
+        return getEngine().digest(data);
+    }
+
+    /**
+     * @param data array with the data
+     * @param offset position of the data in the array
+     * @param length size of the data
+     * @return the hash of the data
+     */
+    public static byte[] hash(byte[] data, int offset, int length) {
+        MessageDigest md = getEngine();
+        md.update(data, offset, length);
+        return md.digest();
+    }
+
+    /**
+     * @param data the data, from the position to the limit of the buffer
+     * (which are left unchanged)
+     * @return the hash of the data
+     */
+    public static byte[] hash(ByteBuffer data) {
+        MessageDigest md = getEngine();
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    /**
+     * @param length size of a value
+     * @return true if a value of that size is hashed as a tree
+     */
+    public boolean isTreeHashed(int length) {
+        return treeThreshold > 0 && length >= treeThreshold;
+    }
+
+    /**
+     * Hashes a value, as a tree if it is large enough.
+     *
+     * @param data the value
+     * @return the hash of the value
+     */
+    public byte[] hashValue(byte[] data) {
+        return isTreeHashed(data.length) ? treeHash(ByteBuffer.wrap(data)) : hash(data);
+    }
+
+    /**
+     * Hashes a value, as a tree if it is large enough.
+     *
+     * @param data the value, from the position to the limit of the buffer
+     * (which are left unchanged)
+     * @return the hash of the value
+     */
+    public byte[] hashValue(ByteBuffer data) {
+        return isTreeHashed(data.remaining()) ? treeHash(data) : hash(data);
+    }
+
+    /**
+     * Computes the hashes of the leaves of a Merkle tree (see
+     * MerkleTree.setLeafHash()), in parallel if they add up to a value that is
+     * hashed as a tree.
+     *
+     * @param data the data of each leaf, null for the leaves not to hash
+     * @return the hash of each leaf, null for the leaves not hashed
+     */
+    public byte[][] hashLeaves(byte[][] data) {
+        byte[][] hashes = new byte[data.length][];
+        long total = 0;
+        for (byte[] d : data) {
+            total += (d != null ? d.length : 0);
+        }
+        IntStream leaves = IntStream.range(0, data.length).filter(i -> data[i] != null);
+        if (isTreeHashed((int) Math.min(total, Integer.MAX_VALUE)) && data.length > 1) {
+            leaves = leaves.parallel();
+        }
+        leaves.forEach(i -> hashes[i] = MerkleTree.hashLeaf(getEngine(), ByteBuffer.wrap(data[i])));
+        return hashes;
+    }
+
+    private byte[] treeHash(ByteBuffer data) {
+        int start = data.position();
+        int length = data.remaining();
+        int n = (int) (((long) length + chunkSize - 1) / chunkSize);
+        byte[][] hashes = new byte[n][];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            ByteBuffer chunk = data.duplicate();
+            chunk.position(start + i * chunkSize);
+            chunk.limit(start + (int) Math.min((long) (i + 1) * chunkSize, length));
+            hashes[i] = MerkleTree.hashLeaf(getEngine(), chunk);
+        });
+        MerkleTree tree = new MerkleTree(n);
+        for (int i = 0; i < n; i++) {
+            tree.setLeafHash(i, hashes[i]);
+        }
+        return tree.getRoot();
+    }
+}
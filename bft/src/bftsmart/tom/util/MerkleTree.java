@@ -0,0 +1,190 @@
+/**
+Copyright (c) 2007-2013 Alysson Bessani, Eduardo Alchieri, Paulo Sousa, and the authors indicated in the @author tags
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package bftsmart.tom.util;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Merkle tree over a fixed number of leaves, updated incrementally: changing
+ * a leaf only marks its path to the root, which is hashed again by the next
+ * getRoot(). The cost of a new root is thus proportional to the number of
+ * leaves changed (times the height of the tree), not to the number of leaves.
+ *
+ * Leaves are hashed as H(0x00 | data) and inner nodes as H(0x01 | left |
+ * right), with the hash engine of TOMUtil. The number of leaves is rounded up
+ * to a power of two with empty leaves.
+ *
+ * This class is not thread safe.
+ */
+public class MerkleTree {
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private final int leaves;
+    private final int size; // leaves, rounded up to a power of two
+    private final byte[][] nodes; // nodes[1] is the root, the children of i are 2i and 2i+1
+    private final boolean[] dirty;
+    private final MessageDigest md;
+
+    /**
+     * Creates a tree whose leaves are all empty.
+     *
+     * @param leaves number of leaves
+     */
+    public MerkleTree(int leaves) {
+        if (leaves < 1) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one leaf");
+        }
+        this.leaves = leaves;
+        int n = 1;
+        while (n < leaves) {
+            n <<= 1;
+        }
+        this.size = n;
+        this.nodes = new byte[2 * n][];
+        this.dirty = new boolean[2 * n];
+        try {
+            this.md = TOMUtil.getHashEngine();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Failed to create hash engine", ex);
+        }
+
+        byte[] empty = hashLeaf(new byte[0]);
+        for (int i = 0; i < n; i++) {
+            nodes[n + i] = empty;
+        }
+        for (int i = n - 1; i > 0; i--) {
+            dirty[i] = true;
+        }
+    }
+
+    /**
+     * @return number of leaves
+     */
+    public int getLeafCount() {
+        return leaves;
+    }
+
+    /**
+     * Changes the data of a leaf.
+     *
+     * @param index index of the leaf
+     * @param data new data of the leaf
+     */
+    public void setLeaf(int index, byte[] data) {
+        setLeafHash(index, hashLeaf(data));
+    }
+
+    /**
+     * Changes the hash of a leaf, e.g. to one taken from another tree with
+     * getLeafHash().
+     *
+     * @param index index of the leaf
+     * @param hash new hash of the leaf
+     */
+    public void setLeafHash(int index, byte[] hash) {
+        if (index < 0 || index >= leaves) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " of " + leaves);
+        }
+        int node = size + index;
+        if (Arrays.equals(nodes[node], hash)) {
+            return;
+        }
+        nodes[node] = hash;
+        for (node >>= 1; node > 0 && !dirty[node]; node >>= 1) {
+            dirty[node] = true;
+        }
+    }
+
+    /**
+     * @param index index of the leaf
+     * @return hash of the leaf
+     */
+    public byte[] getLeafHash(int index) {
+        if (index < 0 || index >= leaves) {
+            throw new IndexOutOfBoundsException("Leaf " + index + " of " + leaves);
+        }
+        return nodes[size + index];
+    }
+
+    /**
+     * @return hashes of all the leaves, in order
+     */
+    public byte[][] getLeafHashes() {
+        return Arrays.copyOfRange(nodes, size, size + leaves);
+    }
+
+    /**
+     * Returns the root of the tree, hashing the nodes on the path of the
+     * leaves changed since the previous call.
+     *
+     * @return root of the tree
+     */
+    public byte[] getRoot() {
+        rehash(1);
+        return nodes[1];
+    }
+
+    /**
+     * Computes the root of a tree without keeping it.
+     *
+     * @param data data of each leaf
+     * @return root of the tree
+     */
+    public static byte[] computeRoot(byte[][] data) {
+        MerkleTree tree = new MerkleTree(Math.max(1, data.length));
+        for (int i = 0; i < data.length; i++) {
+            tree.setLeaf(i, data[i]);
+        }
+        return tree.getRoot();
+    }
+
+    private void rehash(int node) {
+        if (!dirty[node]) {
+            return;
+        }
+        rehash(2 * node);
+        rehash(2 * node + 1);
+        md.update(NODE);
+        md.update(nodes[2 * node]);
+        md.update(nodes[2 * node + 1]);
+        nodes[node] = md.digest();
+        dirty[node] = false;
+    }
+
+    private byte[] hashLeaf(byte[] data) {
+        md.update(LEAF);
+        return md.digest(data);
+    }
+
+    /**
+     * Hashes the data of a leaf, from the position to the limit of the
+     * buffer (which are left unchanged).
+     *
+     * @param md hash engine
+     * @param data data of the leaf
+     * @return hash of the leaf, as computed by setLeaf()
+     */
+    static byte[] hashLeaf(MessageDigest md, ByteBuffer data) {
+        md.update(LEAF);
+        md.update(data.duplicate());
+        return md.digest();
+    }
+}
@@ -19,7 +19,6 @@ import bftsmart.consensus.Consensus;
 import bftsmart.consensus.Epoch;
 import bftsmart.consensus.TimestampValuePair;
 import bftsmart.tom.core.TOMLayer;
-import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import org.slf4j.LoggerFactory;
@@ -31,12 +30,10 @@ import org.slf4j.LoggerFactory;
 public class ShutdownHookThread extends Thread {
 
     private final TOMLayer tomLayer;
-    private final MessageDigest md;
 
     public ShutdownHookThread(TOMLayer tomLayer) {
 
         this.tomLayer = tomLayer;
-        this.md = this.tomLayer.md;
     }
 
     @Override
@@ -61,7 +58,7 @@ public class ShutdownHookThread extends Thread {
             
             for (TimestampValuePair rv : c.getWriteSet()) {
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(tomLayer.computeHash(rv.getValue()));
             }
             
             buffer.append("\n\n\t -- Consensus state: \n\n\t\tETS=" + c.getEts() + " \n\t\tWriteSet=["+ c.getWriteSet()
@@ -82,7 +79,7 @@ public class ShutdownHookThread extends Thread {
             
             for (TimestampValuePair rv : c.getWriteSet()) {
                 if  (rv.getValue() != null && rv.getValue().length > 0)
-                    rv.setHashedValue(md.digest(rv.getValue()));
+                    rv.setHashedValue(tomLayer.computeHash(rv.getValue()));
             }
             
             buffer.append("\n\n\t -- Consensus state: \n\n\t\tETS=" + c.getEts() + " \n\t\tWriteSet=["+ c.getWriteSet()
@@ -94,6 +91,11 @@ public class ShutdownHookThread extends Thread {
             }
         }
 
+        buffer.append("\n\nMessages waiting in the communication layer: " + tomLayer.getCommunication().getInQueueSize());
+        if (tomLayer.acceptor.getWorkers() != null) {
+            buffer.append("\nAcceptor workers: " + tomLayer.acceptor.getWorkers());
+        }
+
         buffer.append("\n\n---------- ---------- ----------\n");
         
         LoggerFactory.getLogger(this.getClass()).info(buffer.toString());
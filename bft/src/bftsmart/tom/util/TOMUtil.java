@@ -224,17 +224,7 @@ public class TOMUtil {
 
     public static final byte[] computeHash(byte[] data) {
         
-        byte[] result = null;
-        
-        try {
-            MessageDigest md = getHashEngine();
-            result = md.digest(data);
-            
-        } catch (NoSuchAlgorithmException e) {
-            logger.error("Failed to compute hash",e);
-        } // TODO: shouldn't it be SHA?
-                
-        return result;
+        return HashService.hash(data);
     }
     
     public static Signature getSigEngine() throws NoSuchAlgorithmException {